@@ -0,0 +1,57 @@
+package mailserver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Checking addresses with AddressValidator, next to the regex it replaced
+ * (compiled on every call as it was, and once), and a recipient domain
+ * found in the verdict cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmailserver.log.console=false")
+public class AddressBenchmark {
+
+    private static final String LEGACY_REGEX = "^[_A-Za-z0-9-\\+]+(\\.[_A-Za-z0-9-]+)*@"
+        + "[A-Za-z0-9-]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$";
+    private static final Pattern LEGACY_PATTERN = Pattern.compile(LEGACY_REGEX);
+
+    @Param({ "jane.doe@example.com", "first.last+tag@mail.sub.example.org", "\"john smith\"@example.com",
+        "user@bücher.example", "not-an-address@" })
+    String address;
+
+    private final DomainVerdicts mVerdicts = new DomainVerdicts(1000);
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < 1000; i++) {
+            mVerdicts.put("d" + i + ".example.com",
+                new DomainVerdicts.Verdict("mx.example.com", null, Long.MAX_VALUE));
+        }
+    }
+
+    @Benchmark
+    public boolean validate() {
+        return AddressValidator.isValid(address);
+    }
+
+    @Benchmark
+    public boolean legacyRegex() {
+        return Pattern.compile(LEGACY_REGEX).matcher(address).matches();
+    }
+
+    @Benchmark
+    public boolean legacyRegexPrecompiled() {
+        return LEGACY_PATTERN.matcher(address).matches();
+    }
+
+    @Benchmark
+    public DomainVerdicts.Verdict cachedVerdict() {
+        return mVerdicts.get("d500.example.com");
+    }
+}
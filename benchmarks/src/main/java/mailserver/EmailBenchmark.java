@@ -0,0 +1,50 @@
+package mailserver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Creating an email, which deflates long texts, and reading it back as
+ * the status page and delivery do
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmailserver.log.console=false")
+public class EmailBenchmark {
+
+    @Param({"30", "8192"})
+    public int messageLength;
+
+    private String mMessage;
+    private Email mEmail;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder(messageLength);
+        String[] words = { "Hi", "see", "you", "on", "Friday", "the", "report", "is", "attached" };
+        for (int i = 0; sb.length() < messageLength; i++) {
+            sb.append(words[i % words.length]).append(i % 12 == 11 ? "\r\n" : " ");
+        }
+        mMessage = sb.substring(0, messageLength);
+        mEmail = construct();
+    }
+
+    @Benchmark
+    public Email construct() {
+        return new Email("john.smith@example.com", "jane.doe@example.com", "Meeting on Friday",
+            "mx.example.com", 60, mMessage);
+    }
+
+    @Benchmark
+    public String sendTime() {
+        return mEmail.getSendTime();
+    }
+
+    @Benchmark
+    public String message() {
+        return mEmail.getMessage();
+    }
+}
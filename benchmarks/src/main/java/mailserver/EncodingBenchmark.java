@@ -0,0 +1,80 @@
+package mailserver;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Quoted-printable encoding of subjects and bodies, next to the original
+ * string-concatenating encoders so the gain stays visible.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmailserver.log.console=false")
+public class EncodingBenchmark {
+
+    @Param({ "80", "1024", "16384" })
+    int length;
+
+    private String mText;
+
+    @Setup
+    public void setup() {
+        // mostly ASCII with some accented letters and line breaks, like a real mail
+        String sample = "Grüße aus Köln, the café opens at 9.\r\nSee you there, José!\r\n";
+        StringBuilder sb = new StringBuilder(length + sample.length());
+        while (sb.length() < length) {
+            sb.append(sample);
+        }
+        mText = sb.substring(0, length);
+    }
+
+    @Benchmark
+    public String encodeSubject() {
+        return EmailAgent.encodeSubject(mText);
+    }
+
+    @Benchmark
+    public String encodeMessage() {
+        return EmailAgent.encodeMessage(mText);
+    }
+
+    @Benchmark
+    public String legacyEncodeSubject() throws UnsupportedEncodingException {
+        return legacyEncode(mText, false);
+    }
+
+    @Benchmark
+    public String legacyEncodeMessage() throws UnsupportedEncodingException {
+        return legacyEncode(mText, true);
+    }
+
+    /**
+     * The encoders as they were before QuotedPrintable: every byte escaped
+     * and appended with String.concat
+     */
+    static String legacyEncode(String s, boolean wrap) throws UnsupportedEncodingException {
+        byte[] b = s.getBytes("ISO-8859-15");
+        String code = "";
+        int wc = 0;
+        for (int i = 0; i < b.length; i++) {
+            byte c = b[i];
+            if (c == 13) {
+                code = code.concat("\n");
+                continue;
+            } else if (c == 10) {
+                continue;
+            }
+            code = code.concat("=" + Integer.toHexString(c & 255).toUpperCase());
+            wc += 3;
+            if (wrap && wc >= 75) {
+                code = code.concat("=\n");
+                wc = 0;
+            }
+        }
+        return code;
+    }
+}
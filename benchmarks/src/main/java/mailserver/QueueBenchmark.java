@@ -0,0 +1,49 @@
+package mailserver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Adding to and removing from the pending queue at different sizes. The
+ * queue is kept at its size: each operation adds an email and removes one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "-Dmailserver.log.console=false" })
+public class QueueBenchmark {
+    private static final int SPARE = 4096;
+
+    @Param({ "1000", "100000", "1000000" })
+    int queueSize;
+
+    private PendingQueue mQueue;
+    private Email[] mSpare;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mQueue = new PendingQueue();
+        StatusBenchmark.fill(mQueue, queueSize);
+        // emails created up front so the benchmark does not measure their construction
+        mSpare = new Email[SPARE];
+        for (int i = 0; i < SPARE; i++) {
+            mSpare[i] = new Email("sender@example.com", "user@example.com", "Spare #" + i,
+                "mx.example.com", i % 86400, "Hello");
+        }
+    }
+
+    @Benchmark
+    public Email addAndRemove() {
+        Email email = mSpare[mNext++ & (SPARE - 1)];
+        mQueue.add(email);
+        return mQueue.remove(email.id);
+    }
+
+    @Benchmark
+    public Email first() {
+        return mQueue.first();
+    }
+}
@@ -0,0 +1,71 @@
+package mailserver;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing and validating a compose request: the whole request with its
+ * form body, and the two addresses in it. The regex and split based form
+ * parsing that came before HttpRequestParser is kept for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dmailserver.log.console=false")
+public class RequestBenchmark {
+
+    @Param({ "jane.doe@example.com", "first.last+tag@mail.sub.example.org", "not-an-address@", "x@y" })
+    String address;
+
+    private String mForm;
+    private ByteBuffer mRequest;
+    private final HttpRequestParser mParser = new HttpRequestParser();
+
+    @Setup
+    public void setup() throws Exception {
+        mForm = "from=" + URLEncoder.encode("john.smith@example.com", "ISO-8859-15")
+            + "&to=" + URLEncoder.encode(address, "ISO-8859-15")
+            + "&subject=" + URLEncoder.encode("Meeting on Friday – agenda", "ISO-8859-15")
+            + "&delayTime=60&smtpServer="
+            + "&message=" + URLEncoder.encode("Hi,\r\nplease find the agenda below.\r\n\r\n1. Budget\r\n"
+                + "2. Hiring\r\n3. Anything else\r\n\r\nRegards,\r\nJohn", "ISO-8859-15");
+        mRequest = ByteBuffer.wrap(("POST /composeEmail HTTP/1.1\r\nHost: localhost\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: " + mForm.length()
+            + "\r\n\r\n" + mForm).getBytes("ISO-8859-1"));
+    }
+
+    @Benchmark
+    public String parseRequest() {
+        mParser.next();
+        mRequest.clear();
+        mParser.parse(mRequest);
+        mParser.parseForm();
+        return mParser.formValue("message");
+    }
+
+    @Benchmark
+    public Map<String, String> legacyParsePOSTData() throws Exception {
+        Map<String, String> data = new HashMap<String, String>();
+        for (String field : mForm.split("&")) {
+            field = URLDecoder.decode(field, "ISO-8859-15");
+            String[] tmp = (field + " ").split("=", 2);
+            if (tmp.length < 2) {
+                continue;
+            }
+            data.put(tmp[0], tmp[1].trim());
+        }
+        return data;
+    }
+
+    @Benchmark
+    public boolean isValidEmail() {
+        return EmailAgent.isValidEmail(address);
+    }
+}
@@ -0,0 +1,75 @@
+package mailserver;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * A million deliveries through the timing wheel on a virtual clock: each
+ * invocation schedules them with random delays up to the given maximum,
+ * cancels the given share, then advances the clock until every other one
+ * has run. Delays of up to a day go through the coarse levels and their
+ * cascades; those of up to a minute mostly stay in the finest.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "-Dmailserver.log.console=false" })
+public class SchedulerBenchmark {
+    private static final long TICK_MILLIS = 100;
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Param({ "1000000" })
+    int tasks;
+
+    @Param({ "60000", "86400000" })
+    long maxDelayMillis;
+
+    @Param({ "0", "50" })
+    int cancelPercent;
+
+    private long[] mDelays;
+    private DeliveryScheduler.Handle[] mHandles;
+    private int mRan;
+    private final Runnable mTask = new Runnable() {
+        public void run() {
+            mRan++;
+        }
+    };
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        mDelays = new long[tasks];
+        for (int i = 0; i < tasks; i++) {
+            mDelays[i] = (long) (random.nextDouble() * maxDelayMillis);
+        }
+        mHandles = new DeliveryScheduler.Handle[tasks];
+    }
+
+    @Benchmark
+    public int scheduleAndRun() {
+        DeliveryScheduler scheduler = new DeliveryScheduler(TICK_MILLIS, 512, DIRECT, true);
+        scheduler.start();
+        mRan = 0;
+        for (int i = 0; i < tasks; i++) {
+            mHandles[i] = scheduler.schedule(mTask, mDelays[i]);
+        }
+        int cancelled = (int) ((long) tasks * cancelPercent / 100);
+        for (int i = 0; i < cancelled; i++) {
+            mHandles[i].cancel();
+        }
+        scheduler.advance(maxDelayMillis + TICK_MILLIS);
+        if (mRan != tasks - cancelled) {
+            throw new IllegalStateException(mRan + " of " + (tasks - cancelled) + " tasks ran");
+        }
+        return mRan;
+    }
+}
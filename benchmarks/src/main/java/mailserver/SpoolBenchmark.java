@@ -0,0 +1,82 @@
+package mailserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Recovering the spool after a restart. The spool is written once: an ADD
+ * record for every email and a DONE record for the given share of them,
+ * as a server that went down with that backlog would leave it. Each
+ * invocation opens it anew and recovers every pending email.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "-Dmailserver.log.console=false" })
+public class SpoolBenchmark {
+
+    @Param({ "1000000" })
+    int emails;
+
+    @Param({ "0", "50", "90" })
+    int donePercent;
+
+    private File mDir;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mDir = Files.createTempDirectory("spool-bench").toFile();
+        MailSpool spool = open();
+        spool.recover(new MailSpool.Visitor() {
+            public void visit(Email email, boolean needConfirm) {
+            }
+        });
+        int done = (int) ((long) emails * donePercent / 100);
+        Email[] finished = new Email[done];
+        for (int i = 0; i < emails; i++) {
+            Email email = new Email("sender" + (i % 100) + "@example.com", "user" + (i % 10) + "@example.com",
+                "Newsletter #" + i, "mx.example.com", i % 86400, "Hello");
+            spool.add(email, false);
+            if (i < done) {
+                finished[i] = email;
+            }
+        }
+        // the DONE records follow, as deliveries catch up with the backlog
+        for (Email email : finished) {
+            email.state = EmailState.DELIVERED;
+            spool.done(email);
+        }
+        spool.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (File file : mDir.listFiles()) {
+            file.delete();
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public int recover() throws IOException {
+        MailSpool spool = open();
+        try {
+            return spool.recover(new MailSpool.Visitor() {
+                public void visit(Email email, boolean needConfirm) {
+                }
+            });
+        } finally {
+            spool.close();
+        }
+    }
+
+    private MailSpool open() throws IOException {
+        // no fsync and no compaction: the spool must stay as written
+        return new MailSpool(mDir, 64 * 1024 * 1024, false, 0);
+    }
+}
@@ -0,0 +1,74 @@
+package mailserver;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Serving the status page and API with queues of different sizes. The
+ * requests go through HttpRequest.process, as on the NIO engine, so the
+ * figures include parsing the request and writing the response.
+ *
+ * Run from src (as the bench profile does) to include the page's HTML.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", "-Dmailserver.log.console=false",
+                                   "-Dmailserver.spool.enabled=false" })
+public class StatusBenchmark {
+
+    @Param({ "10", "1000", "100000", "1000000" })
+    int queueSize;
+
+    private EmailAgent mAgent;
+    private byte[] mStatusPage;
+    private byte[] mStatusApi;
+    private byte[] mStatusCount;
+    private byte[] mFilteredCount;
+
+    @Setup
+    public void setup() {
+        mAgent = new EmailAgent();
+        fill(mAgent.getPendingQueue(), queueSize);
+        mStatusPage = request("/status");
+        mStatusApi = request("/api/status?limit=100");
+        mStatusCount = request("/api/status?count=true");
+        mFilteredCount = request("/api/status?count=true&to=user7%40example.com");
+    }
+
+    /**
+     * Queue emails to a few recipients, spread over a day of send times
+     */
+    static void fill(PendingQueue queue, int count) {
+        for (int i = 0; i < count; i++) {
+            queue.add(new Email("sender" + (i % 100) + "@example.com", "user" + (i % 10) + "@example.com",
+                "Newsletter #" + i, "mx.example.com", i % 86400, "Hello"));
+        }
+    }
+
+    private static byte[] request(String target) {
+        return ("GET " + target + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes();
+    }
+
+    @Benchmark
+    public byte[] statusPage() throws Exception {
+        return new HttpRequest(null, mAgent).process(mStatusPage, true);
+    }
+
+    @Benchmark
+    public byte[] statusApi() throws Exception {
+        return new HttpRequest(null, mAgent).process(mStatusApi, true);
+    }
+
+    @Benchmark
+    public byte[] statusCount() throws Exception {
+        return new HttpRequest(null, mAgent).process(mStatusCount, true);
+    }
+
+    @Benchmark
+    public byte[] filteredCount() throws Exception {
+        return new HttpRequest(null, mAgent).process(mFilteredCount, true);
+    }
+}
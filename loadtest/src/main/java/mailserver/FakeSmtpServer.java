@@ -0,0 +1,267 @@
+package mailserver;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An SMTP server that accepts mail and throws it away, for load tests.
+ *
+ * It listens on the loopback addresses the stub resolver hands out as mail
+ * servers, offers PIPELINING and SIZE, and can be made slow (a delay before
+ * every reply) or unreliable (a share of the recipients refused with 451
+ * or 550). Messages whose subject is "lt <send time millis>" count as load
+ * test deliveries and their lag behind the send time is recorded.
+ */
+public class FakeSmtpServer {
+    private final int mPort;
+    private final int mHosts;
+    private final long mLatencyMillis;
+    private final double mTempFailRate;
+    private final double mPermFailRate;
+
+    private final List<ServerSocket> mSockets = new ArrayList<ServerSocket>();
+    private final ExecutorService mThreads = Executors.newCachedThreadPool(new NamedThreadFactory("fake-smtp", true));
+    private volatile boolean mRunning;
+
+    private final LongAdder mConnections = new LongAdder();
+    private final LongAdder mMessages = new LongAdder();
+    private final LongAdder mDelivered = new LongAdder();
+    private final LongAdder mOtherRecipients = new LongAdder();
+    private final LongAdder mTempFailures = new LongAdder();
+    private final LongAdder mPermFailures = new LongAdder();
+    private final LatencyHistogram mLag = new LatencyHistogram();
+
+    public FakeSmtpServer(int port, int hosts, long latencyMillis, double tempFailRate, double permFailRate) {
+        mPort = port;
+        mHosts = hosts;
+        mLatencyMillis = latencyMillis;
+        mTempFailRate = tempFailRate;
+        mPermFailRate = permFailRate;
+    }
+
+    /**
+     * Listen on 127.0.0.1 to 127.0.0.n
+     */
+    public void start() throws IOException {
+        mRunning = true;
+        for (int i = 1; i <= mHosts; i++) {
+            ServerSocket socket = new ServerSocket();
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) i }), mPort), 1024);
+            mSockets.add(socket);
+            final ServerSocket server = socket;
+            mThreads.execute(new Runnable() {
+                public void run() {
+                    accept(server);
+                }
+            });
+        }
+    }
+
+    public void stop() {
+        mRunning = false;
+        for (ServerSocket socket : mSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        mThreads.shutdownNow();
+    }
+
+    private void accept(ServerSocket server) {
+        while (mRunning) {
+            try {
+                final Socket socket = server.accept();
+                mConnections.increment();
+                mThreads.execute(new Runnable() {
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (mRunning) {
+                    Log.error("Fake SMTP server cannot accept", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Talk SMTP on one connection until the client quits
+     */
+    private void serve(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), 8192);
+            OutputStream out = socket.getOutputStream();
+            StringBuilder line = new StringBuilder(128);
+            int accepted = 0;
+            reply(out, "220 fake-smtp ready");
+            while (readLine(in, line)) {
+                String command = line.length() >= 4 ? line.substring(0, 4).toUpperCase() : line.toString();
+                if (command.equals("EHLO")) {
+                    reply(out, "250-fake-smtp\r\n250-PIPELINING\r\n250 SIZE 10485760");
+                } else if (command.equals("MAIL")) {
+                    accepted = 0;
+                    reply(out, "250 OK");
+                } else if (command.equals("RCPT")) {
+                    double draw = ThreadLocalRandom.current().nextDouble();
+                    if (draw < mTempFailRate) {
+                        mTempFailures.increment();
+                        reply(out, "451 4.3.0 Try again later");
+                    } else if (draw < mTempFailRate + mPermFailRate) {
+                        mPermFailures.increment();
+                        reply(out, "550 5.1.1 No such user");
+                    } else {
+                        accepted++;
+                        reply(out, "250 OK");
+                    }
+                } else if (command.equals("DATA")) {
+                    if (accepted == 0) {
+                        reply(out, "503 No valid recipients");
+                        continue;
+                    }
+                    reply(out, "354 End data with <CR><LF>.<CR><LF>");
+                    receive(in, line, accepted);
+                    accepted = 0;
+                    reply(out, "250 OK queued");
+                } else if (command.equals("QUIT")) {
+                    reply(out, "221 Bye");
+                    break;
+                } else {
+                    // HELO, RSET, NOOP and anything else
+                    if (command.equals("RSET")) {
+                        accepted = 0;
+                    }
+                    reply(out, "250 OK");
+                }
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // closed anyway
+            }
+        }
+    }
+
+    /**
+     * Read the message up to the final dot, recording the lag of load test
+     * messages for each of their recipients
+     */
+    private void receive(InputStream in, StringBuilder line, int recipients) throws IOException {
+        long sendTime = -1;
+        boolean headers = true;
+        while (readLine(in, line)) {
+            if (line.length() == 1 && line.charAt(0) == '.') {
+                break;
+            }
+            if (headers) {
+                if (line.length() == 0) {
+                    headers = false;
+                } else if (line.length() > 12 && line.substring(0, 12).equalsIgnoreCase("Subject: lt ")) {
+                    try {
+                        sendTime = Long.parseLong(line.substring(12).trim());
+                    } catch (NumberFormatException e) {
+                        // not one of ours
+                    }
+                }
+            }
+        }
+        mMessages.increment();
+        if (sendTime < 0) {
+            mOtherRecipients.add(recipients);
+            return;
+        }
+        long lagMicros = Math.max(0, System.currentTimeMillis() - sendTime) * 1000;
+        for (int i = 0; i < recipients; i++) {
+            mLag.recordMicros(lagMicros);
+        }
+        mDelivered.add(recipients);
+    }
+
+    private void reply(OutputStream out, String reply) throws IOException {
+        if (mLatencyMillis > 0) {
+            try {
+                Thread.sleep(mLatencyMillis);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+        }
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    /**
+     * Read a line without its CRLF; returns false at the end of the stream
+     */
+    private static boolean readLine(InputStream in, StringBuilder line) throws IOException {
+        line.setLength(0);
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return true;
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0;
+    }
+
+    public long getConnections() {
+        return mConnections.sum();
+    }
+
+    public long getMessages() {
+        return mMessages.sum();
+    }
+
+    /**
+     * Return the number of load test recipients delivered
+     */
+    public long getDelivered() {
+        return mDelivered.sum();
+    }
+
+    /**
+     * Return the number of other recipients, e.g. of confirmations
+     */
+    public long getOtherRecipients() {
+        return mOtherRecipients.sum();
+    }
+
+    public long getTempFailures() {
+        return mTempFailures.sum();
+    }
+
+    public long getPermFailures() {
+        return mPermFailures.sum();
+    }
+
+    /**
+     * Return the lag of deliveries behind their send time
+     */
+    public LatencyHistogram getLag() {
+        return mLag;
+    }
+}
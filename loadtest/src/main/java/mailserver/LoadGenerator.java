@@ -0,0 +1,182 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Clients that post composeEmail forms and poll the status page as fast as
+ * the server answers, over keep-alive connections, recording the latency
+ * of every request.
+ *
+ * Every email goes to a random one of a number of domains, and a share of
+ * them to domains that do not exist. Its subject carries its send time for
+ * the fake SMTP server to measure the delivery lag.
+ */
+public class LoadGenerator {
+    private final String mBaseUrl;
+    private final int mClients;
+    private final double mStatusRatio;
+    private final int mDomains;
+    private final double mMissingDomainRate;
+    private final int mMaxDelaySeconds;
+    private final String mMessage;
+
+    private final LatencyHistogram mComposeTime = new LatencyHistogram();
+    private final LatencyHistogram mStatusTime = new LatencyHistogram();
+    private final LongAdder mAccepted = new LongAdder();
+    private final LongAdder mRefused = new LongAdder();
+    private final LongAdder mErrors = new LongAdder();
+
+    public LoadGenerator(String baseUrl, int clients, double statusRatio, int domains,
+                         double missingDomainRate, int maxDelaySeconds, int messageBytes) {
+        mBaseUrl = baseUrl;
+        mClients = clients;
+        mStatusRatio = statusRatio;
+        mDomains = Math.max(1, domains);
+        mMissingDomainRate = missingDomainRate;
+        mMaxDelaySeconds = maxDelaySeconds;
+        StringBuilder sb = new StringBuilder(messageBytes);
+        while (sb.length() < messageBytes) {
+            sb.append("The quick brown fox jumps over the lazy dog.\r\n");
+        }
+        mMessage = sb.substring(0, messageBytes);
+    }
+
+    /**
+     * Run the clients for the given time and wait for them to finish
+     */
+    public void run(long durationMillis) throws InterruptedException {
+        final long end = System.currentTimeMillis() + durationMillis;
+        Thread[] clients = new Thread[mClients];
+        for (int i = 0; i < mClients; i++) {
+            final int client = i;
+            clients[i] = new Thread(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        request(client);
+                    }
+                }
+            }, "load-client-" + i);
+            clients[i].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+    }
+
+    private void request(int client) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        boolean status = random.nextDouble() < mStatusRatio;
+        long start = System.nanoTime();
+        try {
+            if (status) {
+                get("/status?limit=100");
+                mStatusTime.recordSince(start);
+            } else {
+                String reply = post("/composeEmail", composeForm(client, random));
+                mComposeTime.recordSince(start);
+                if (reply.contains("will be sent")) {
+                    mAccepted.increment();
+                } else {
+                    mRefused.increment();
+                }
+            }
+        } catch (IOException e) {
+            mErrors.increment();
+        }
+    }
+
+    private String composeForm(int client, ThreadLocalRandom random) throws IOException {
+        int delay = mMaxDelaySeconds > 0 ? random.nextInt(mMaxDelaySeconds + 1) : 0;
+        long sendTime = System.currentTimeMillis() + delay * 1000L;
+        String domain = random.nextDouble() < mMissingDomainRate
+            ? "nx" + random.nextInt(mDomains) + ".loadtest"
+            : "d" + random.nextInt(mDomains) + ".loadtest";
+        return "from=" + encode("client" + client + "@sender.loadtest")
+            + "&to=" + encode("user" + random.nextInt(1000) + "@" + domain)
+            + "&subject=" + encode("lt " + sendTime)
+            + "&delayTime=" + delay
+            + "&smtpServer="
+            + "&message=" + encode(mMessage);
+    }
+
+    private static String encode(String s) throws IOException {
+        return URLEncoder.encode(s, "ISO-8859-15");
+    }
+
+    private String get(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        return read(connection);
+    }
+
+    private String post(String path, String form) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        byte[] body = form.getBytes(StandardCharsets.US_ASCII);
+        connection.setFixedLengthStreamingMode(body.length);
+        OutputStream out = connection.getOutputStream();
+        out.write(body);
+        out.close();
+        return read(connection);
+    }
+
+    /**
+     * Read the whole response so the connection can be reused
+     */
+    private static String read(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (in != null) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                body.write(buf, 0, n);
+            }
+            in.close();
+        }
+        if (status >= 400) {
+            throw new IOException("HTTP " + status);
+        }
+        return body.toString("UTF-8");
+    }
+
+    public LatencyHistogram getComposeTime() {
+        return mComposeTime;
+    }
+
+    public LatencyHistogram getStatusTime() {
+        return mStatusTime;
+    }
+
+    /**
+     * Return the number of emails the server accepted
+     */
+    public long getAccepted() {
+        return mAccepted.sum();
+    }
+
+    /**
+     * Return the number of compose requests answered with an error message
+     */
+    public long getRefused() {
+        return mRefused.sum();
+    }
+
+    /**
+     * Return the number of requests that failed outright
+     */
+    public long getErrors() {
+        return mErrors.sum();
+    }
+}
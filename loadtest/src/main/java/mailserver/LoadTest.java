@@ -0,0 +1,141 @@
+package mailserver;
+
+import java.io.File;
+import java.net.Socket;
+import org.xbill.DNS.Lookup;
+
+/**
+ * Runs the whole mail server in this process against a stub resolver and
+ * a fake SMTP server, loads it over HTTP and reports throughput, request
+ * latencies and delivery lag. Needs no network.
+ *
+ * Settings are system properties (java -D<name>=<value> -jar loadtest.jar);
+ * mailserver.* properties are passed on to the server.
+ */
+public class LoadTest {
+    private static final int HTTP_PORT = Config.getInt("loadtest.httpPort", 18080);
+    private static final int SMTP_PORT = Config.getInt("loadtest.smtpPort", 12525);
+    private static final int DURATION_SECONDS = Config.getInt("loadtest.durationSeconds", 30);
+    private static final int DRAIN_SECONDS = Config.getInt("loadtest.drainSeconds", 60);
+    private static final int CLIENTS = Config.getInt("loadtest.clients", 16);
+    private static final double STATUS_RATIO = getDouble("loadtest.statusRatio", 0.1);
+    private static final int DOMAINS = Config.getInt("loadtest.domains", 1000);
+    private static final double MISSING_DOMAIN_RATE = getDouble("loadtest.missingDomainRate", 0.0);
+    private static final int MAX_DELAY_SECONDS = Config.getInt("loadtest.maxDelaySeconds", 0);
+    private static final int MESSAGE_BYTES = Config.getInt("loadtest.messageBytes", 1024);
+    private static final int MAIL_HOSTS = Config.getInt("loadtest.mailHosts", 4);
+    private static final long DNS_LATENCY_MILLIS = Config.getLong("loadtest.dns.latencyMillis", 0);
+    private static final long SMTP_LATENCY_MILLIS = Config.getLong("loadtest.smtp.latencyMillis", 0);
+    private static final double SMTP_TEMP_FAIL_RATE = getDouble("loadtest.smtp.tempFailRate", 0.0);
+    private static final double SMTP_PERM_FAIL_RATE = getDouble("loadtest.smtp.permFailRate", 0.0);
+
+    public static void main(String[] args) throws Exception {
+        configureServer();
+
+        StubResolver resolver = new StubResolver(MAIL_HOSTS, DNS_LATENCY_MILLIS);
+        Lookup.setDefaultResolver(resolver);
+        FakeSmtpServer smtp = new FakeSmtpServer(SMTP_PORT, MAIL_HOSTS, SMTP_LATENCY_MILLIS,
+            SMTP_TEMP_FAIL_RATE, SMTP_PERM_FAIL_RATE);
+        smtp.start();
+        startServer();
+
+        System.out.println("Loading http://127.0.0.1:" + HTTP_PORT + " with " + CLIENTS + " clients for "
+            + DURATION_SECONDS + "s");
+        LoadGenerator load = new LoadGenerator("http://127.0.0.1:" + HTTP_PORT, CLIENTS, STATUS_RATIO,
+            DOMAINS, MISSING_DOMAIN_RATE, MAX_DELAY_SECONDS, MESSAGE_BYTES);
+        long start = System.nanoTime();
+        load.run(DURATION_SECONDS * 1000L);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // wait for the deliveries, the delayed ones included
+        long deadline = System.currentTimeMillis() + (MAX_DELAY_SECONDS + DRAIN_SECONDS) * 1000L;
+        long expected = load.getAccepted();
+        while (smtp.getDelivered() + smtp.getPermFailures() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(200);
+        }
+
+        long requests = load.getComposeTime().getCount() + load.getStatusTime().getCount();
+        System.out.println();
+        System.out.printf("Requests:   %d in %.1fs = %.0f/s (%d compose, %d status, %d failed)%n",
+            requests, seconds, requests / seconds, load.getComposeTime().getCount(),
+            load.getStatusTime().getCount(), load.getErrors());
+        printLatency("Compose:", load.getComposeTime());
+        printLatency("Status:", load.getStatusTime());
+        System.out.printf("Emails:     %d accepted, %d refused, %d delivered, %d refused by SMTP (%d 4xx replies)%n",
+            expected, load.getRefused(), smtp.getDelivered(), smtp.getPermFailures(), smtp.getTempFailures());
+        System.out.printf("SMTP:       %d connections, %d messages, %d other recipients, %d DNS queries%n",
+            smtp.getConnections(), smtp.getMessages(), smtp.getOtherRecipients(), resolver.getQueries());
+        printLatency("Lag:", smtp.getLag());
+
+        smtp.stop();
+        Log.flush(1000);
+        System.exit(0);
+    }
+
+    /**
+     * Point the server at the fake SMTP server and keep it quiet, unless
+     * told otherwise
+     */
+    private static void configureServer() {
+        System.setProperty("mailserver.http.port", String.valueOf(HTTP_PORT));
+        System.setProperty("mailserver.smtp.port", String.valueOf(SMTP_PORT));
+        setDefault("mailserver.log.console", "false");
+        setDefault("mailserver.http.workers", String.valueOf(Math.max(10, CLIENTS)));
+        if (System.getProperty("mailserver.spool.dir") == null) {
+            File dir = new File(System.getProperty("java.io.tmpdir"), "loadtest-spool-" + System.nanoTime());
+            System.setProperty("mailserver.spool.dir", dir.getPath());
+        }
+        // as many keep-alive connections as there are clients
+        setDefault("http.maxConnections", String.valueOf(CLIENTS));
+    }
+
+    private static void setDefault(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    /**
+     * Start the server on its own thread and wait until it accepts connections
+     */
+    private static void startServer() throws Exception {
+        Thread server = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    HttpServer.main(new String[0]);
+                } catch (Exception e) {
+                    Log.error("The server stopped", e);
+                }
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try {
+                new Socket("127.0.0.1", HTTP_PORT).close();
+                return;
+            } catch (Exception e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("The server did not start on port " + HTTP_PORT);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void printLatency(String label, LatencyHistogram histogram) {
+        System.out.printf("%-11s p50 %.3f ms, p99 %.3f ms, p999 %.3f ms (%d)%n", label,
+            histogram.quantileMicros(0.5) / 1000.0, histogram.quantileMicros(0.99) / 1000.0,
+            histogram.quantileMicros(0.999) / 1000.0, histogram.getCount());
+    }
+
+    private static double getDouble(String name, double defaultValue) {
+        String value = Config.getString(name, null);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
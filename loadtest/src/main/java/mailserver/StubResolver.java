@@ -0,0 +1,123 @@
+package mailserver;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import org.xbill.DNS.*;
+
+/**
+ * A dnsjava resolver that answers every query itself, for load tests
+ * without a network. Set it with Lookup.setDefaultResolver.
+ *
+ * Every domain has one mail server, one of the loopback addresses
+ * 127.0.0.1 to 127.0.0.n picked by the domain name, and every name has the
+ * address 127.0.0.1, or its own if it is one of those loopback addresses.
+ * Names whose first label starts with "nx" do not exist.
+ */
+public class StubResolver implements Resolver {
+    private static final long TTL = 300;
+
+    private final int mMailHosts;
+    private final long mLatencyMillis;
+    private final LongAdder mQueries = new LongAdder();
+
+    public StubResolver(int mailHosts, long latencyMillis) {
+        mMailHosts = Math.max(1, Math.min(254, mailHosts));
+        mLatencyMillis = latencyMillis;
+    }
+
+    public Message send(Message query) throws IOException {
+        mQueries.increment();
+        if (mLatencyMillis > 0) {
+            try {
+                Thread.sleep(mLatencyMillis);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while resolving");
+            }
+        }
+        Record question = query.getQuestion();
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.RD);
+        response.getHeader().setFlag(Flags.RA);
+        response.addRecord(question, Section.QUESTION);
+
+        Name name = question.getName();
+        if (name.labels() > 1 && name.getLabelString(0).toLowerCase().startsWith("nx")) {
+            response.getHeader().setRcode(Rcode.NXDOMAIN);
+            return response;
+        }
+        if (question.getType() == Type.MX) {
+            response.addRecord(new MXRecord(name, DClass.IN, TTL, 10, mailHost(name)), Section.ANSWER);
+        } else if (question.getType() == Type.A) {
+            response.addRecord(new ARecord(name, DClass.IN, TTL, address(name)), Section.ANSWER);
+        }
+        // any other type exists but has no records
+        return response;
+    }
+
+    public Object sendAsync(final Message query, final ResolverListener listener) {
+        final Object id = new Object();
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    listener.receiveMessage(id, send(query));
+                } catch (Exception e) {
+                    listener.handleException(id, e);
+                }
+            }
+        }, "stub-resolver");
+        thread.setDaemon(true);
+        thread.start();
+        return id;
+    }
+
+    /**
+     * Return the mail server of the domain, the same one every time
+     */
+    private Name mailHost(Name domain) throws TextParseException {
+        int host = (domain.toString().toLowerCase().hashCode() & Integer.MAX_VALUE) % mMailHosts;
+        return Name.fromString("127.0.0." + (host + 1) + ".");
+    }
+
+    private static InetAddress address(Name name) throws IOException {
+        String text = name.toString(true);
+        byte[] loopback = Address.toByteArray(text, Address.IPv4);
+        if (loopback != null && loopback[0] == 127) {
+            return InetAddress.getByAddress(loopback);
+        }
+        return InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+    }
+
+    public long getQueries() {
+        return mQueries.sum();
+    }
+
+    // the settings below only matter for resolvers that go to the network
+
+    public void setPort(int port) {
+    }
+
+    public void setTCP(boolean flag) {
+    }
+
+    public void setIgnoreTruncation(boolean flag) {
+    }
+
+    public void setEDNS(int level) {
+    }
+
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+    }
+
+    public void setTSIGKey(TSIG key) {
+    }
+
+    public void setTimeout(int secs, int msecs) {
+    }
+
+    public void setTimeout(int secs) {
+    }
+}
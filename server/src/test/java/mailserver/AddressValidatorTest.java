@@ -0,0 +1,246 @@
+package mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class AddressValidatorTest {
+    // the regex the validator replaced
+    private static final Pattern LEGACY_PATTERN = Pattern.compile("^[_A-Za-z0-9-\\+]+(\\.[_A-Za-z0-9-]+)*@"
+        + "[A-Za-z0-9-]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$");
+    private static final String ALPHABET =
+        "abcxyzABCXYZ0189.....-----@@__++\"\"\\ !#$%&'*/=?^`{|}~(),:;<>[]\tüßé漢";
+    private static final String[] TLDS = { "com", "org", "se", "c", "c0m", "xn--p1ai", "рф", "COM", "123" };
+    private static final int FUZZ_INPUTS = 200000;
+    private static final int MAX_REPORTED = 20;
+
+    private Random mRandom;
+
+    @Test
+    public void acceptsValidAddresses() {
+        String[] valid = {
+            "jane.doe@example.com",
+            "first.last+tag@mail.sub.example.org",
+            "\"john smith\"@example.com",
+            "\"quote\\\"d\"@example.com",
+            "o'brien!#$%&*/=?^`{|}~@example.com",
+            "user@bücher.example",
+            "user@example.xn--p1ai",
+            "a@b-c.example.se",
+            repeat("l", 64) + "@example.com",
+        };
+        for (String address : valid) {
+            assertTrue(address, AddressValidator.isValid(address));
+        }
+    }
+
+    @Test
+    public void refusesInvalidAddresses() {
+        String[] invalid = {
+            null,
+            "",
+            "not-an-address@",
+            "@example.com",
+            "no-at-sign.example.com",
+            "two..dots@example.com",
+            ".leading@example.com",
+            "trailing.@example.com",
+            "user@localhost",
+            "user@example.c",
+            "user@example.c0m",
+            "user@-example.com",
+            "user@example-.com",
+            "user@[192.0.2.1]",
+            "jöhn@example.com",
+            "\"unterminated@example.com",
+            repeat("l", 65) + "@example.com",
+            "user@" + repeat("d", 64) + ".com",
+            repeat("l", 64) + "@" + repeat(repeat("d", 60) + ".", 4) + "com",
+        };
+        for (String address : invalid) {
+            assertFalse(String.valueOf(address), AddressValidator.isValid(address));
+        }
+    }
+
+    @Test
+    public void convertsInternationalDomains() {
+        assertEquals("user@xn--bcher-kva.example", AddressValidator.toAscii("user@bücher.example"));
+        assertEquals("jane@example.com", AddressValidator.toAscii("jane@example.com"));
+        assertEquals("xn--bcher-kva.example", AddressValidator.toAscii("bücher.example"));
+    }
+
+    /**
+     * Compare the validator with the regex it replaced on random and
+     * mutated addresses. The two must agree, except where the difference
+     * is intended:
+     * - the regex accepted addresses over the RFC 5321 length limits and
+     *   labels starting or ending with a hyphen, which are now refused;
+     * - the validator accepts what the regex did not know: quoted local
+     *   parts, the other RFC 5322 atext characters, '+' after a dot, hyphens
+     *   after the first label, non-ASCII domains and A-label TLDs.
+     */
+    @Test
+    public void agreesWithLegacyRegex() {
+        long seed = Long.getLong("addressFuzz.seed", 42);
+        mRandom = new Random(seed);
+        List<String> failures = new ArrayList<String>();
+        for (int i = 0; i < FUZZ_INPUTS; i++) {
+            String input = nextInput();
+            String failure = check(input);
+            if (failure != null && failures.size() < MAX_REPORTED) {
+                failures.add(failure + ": " + input);
+            }
+        }
+        assertTrue("Seed " + seed + ": " + failures, failures.isEmpty());
+    }
+
+    /**
+     * Return why the validator and the regex disagree on the input, or
+     * null if they agree or the difference is intended
+     */
+    private static String check(String input) {
+        boolean valid;
+        try {
+            valid = AddressValidator.isValid(input);
+            if (valid) {
+                AddressValidator.toAscii(input);
+            }
+        } catch (RuntimeException e) {
+            return e.toString();
+        }
+        boolean legacy = LEGACY_PATTERN.matcher(input).matches();
+        if (valid && !legacy && !usesExtensions(input)) {
+            return "accepted, but the regex refuses it";
+        }
+        if (!valid && legacy && !breaksLimits(input)) {
+            return "refused, but the regex accepts it";
+        }
+        return null;
+    }
+
+    /**
+     * Return whether a valid address uses something the regex did not know
+     */
+    private static boolean usesExtensions(String s) {
+        int at = s.lastIndexOf('@');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            boolean known = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                || c == '.' || c == '-' || c == '_' || c == '+' || c == '@';
+            if (!known) {
+                return true;
+            }
+        }
+        String local = s.substring(0, at);
+        String domain = s.substring(at + 1);
+        int localDot = local.indexOf('.');
+        return localDot >= 0 && local.indexOf('+', localDot) >= 0
+            || domain.indexOf('-', domain.indexOf('.')) >= 0
+            || domain.substring(domain.lastIndexOf('.') + 1).toLowerCase().startsWith("xn--");
+    }
+
+    /**
+     * Return whether an address the regex accepts is over a length limit or
+     * has a label starting or ending with a hyphen
+     */
+    private static boolean breaksLimits(String s) {
+        int at = s.lastIndexOf('@');
+        if (s.length() > AddressValidator.MAX_LENGTH || at > AddressValidator.MAX_LOCAL_LENGTH) {
+            return true;
+        }
+        for (String label : s.substring(at + 1).split("\\.", -1)) {
+            if (label.length() > AddressValidator.MAX_LABEL_LENGTH
+                    || label.startsWith("-") || label.endsWith("-")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String nextInput() {
+        String s;
+        switch (mRandom.nextInt(3)) {
+        case 0:
+            s = randomString(mRandom.nextInt(40));
+            break;
+        case 1:
+            s = address();
+            break;
+        default:
+            s = address();
+            for (int i = 1 + mRandom.nextInt(3); i > 0; i--) {
+                s = mutate(s);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Return a plausible address, valid or not
+     */
+    private String address() {
+        StringBuilder sb = new StringBuilder();
+        if (mRandom.nextInt(8) == 0) {
+            sb.append('"').append(randomString(mRandom.nextInt(10)).replace("\"", "\\\"")).append('"');
+        } else {
+            int atoms = 1 + mRandom.nextInt(3);
+            for (int i = 0; i < atoms; i++) {
+                if (i > 0) {
+                    sb.append('.');
+                }
+                sb.append(atom(1 + mRandom.nextInt(mRandom.nextInt(20) == 0 ? 70 : 8)));
+            }
+        }
+        sb.append('@');
+        int labels = 1 + mRandom.nextInt(3);
+        for (int i = 0; i < labels; i++) {
+            sb.append(atom(1 + mRandom.nextInt(mRandom.nextInt(20) == 0 ? 70 : 8)).replace('_', '-')).append('.');
+        }
+        sb.append(TLDS[mRandom.nextInt(TLDS.length)]);
+        return sb.toString();
+    }
+
+    private String atom(int length) {
+        String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789-_+";
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(chars.charAt(mRandom.nextInt(mRandom.nextInt(4) == 0 ? chars.length() : 52)));
+        }
+        return sb.toString();
+    }
+
+    private String randomString(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(mRandom.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private String mutate(String s) {
+        int i = s.isEmpty() ? 0 : mRandom.nextInt(s.length());
+        String c = String.valueOf(ALPHABET.charAt(mRandom.nextInt(ALPHABET.length())));
+        switch (mRandom.nextInt(3)) {
+        case 0:
+            return s.substring(0, i) + c + s.substring(i);
+        case 1:
+            return s.isEmpty() ? s : s.substring(0, i) + s.substring(i + 1);
+        default:
+            return s.isEmpty() ? c : s.substring(0, i) + c + s.substring(i + 1);
+        }
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
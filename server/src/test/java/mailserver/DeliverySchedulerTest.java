@@ -0,0 +1,92 @@
+package mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+
+public class DeliverySchedulerTest {
+    private static final long TICK = 10;
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    @Test
+    public void cascadesFromCoarseLevelsOnTime() {
+        // four slots per level: level 1 holds 4 to 15 ticks ahead, level 2
+        // 16 to 63, and so on, so these delays start out in levels 0 to 5
+        final DeliveryScheduler scheduler = new DeliveryScheduler(TICK, 4, DIRECT, true);
+        scheduler.start();
+        long[] delays = { 25, 70, 330, 1234, 5000, 12345, 99999 };
+        final List<Long> ranAt = new ArrayList<Long>();
+        List<DeliveryScheduler.Handle> handles = new ArrayList<DeliveryScheduler.Handle>();
+        for (long delay : delays) {
+            handles.add(scheduler.schedule(new Runnable() {
+                public void run() {
+                    ranAt.add(scheduler.now());
+                }
+            }, delay));
+        }
+
+        // a tick at a time, so no task can run late without being noticed
+        int ran = 0;
+        while (scheduler.now() <= 100000 + TICK) {
+            scheduler.advance(TICK);
+            while (ran < ranAt.size()) {
+                long deadline = handles.get(ran).getDeadline();
+                long at = ranAt.get(ran);
+                assertTrue("task due at " + deadline + " ran early at " + at, at >= deadline);
+                assertTrue("task due at " + deadline + " ran late at " + at, at <= deadline + TICK);
+                ran++;
+            }
+        }
+        assertEquals(delays.length, ranAt.size());
+        for (DeliveryScheduler.Handle handle : handles) {
+            assertTrue(handle.isExpired());
+        }
+        assertEquals(0, scheduler.pendingCount());
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() {
+        DeliveryScheduler scheduler = new DeliveryScheduler(TICK, 4, DIRECT, true);
+        scheduler.start();
+        final int[] ran = new int[3];
+        DeliveryScheduler.Handle soon = scheduler.schedule(counter(ran, 0), 50);
+        DeliveryScheduler.Handle later = scheduler.schedule(counter(ran, 1), 5000);
+        DeliveryScheduler.Handle kept = scheduler.schedule(counter(ran, 2), 5000);
+
+        // cancelled before it reached the wheel
+        assertTrue(soon.cancel());
+        scheduler.advance(TICK);
+        // cancelled while it waits in a coarse level
+        assertTrue(later.cancel());
+        assertFalse(later.cancel());
+        assertEquals(1, scheduler.pendingCount());
+
+        scheduler.advance(10000);
+        assertEquals(0, ran[0]);
+        assertEquals(0, ran[1]);
+        assertEquals(1, ran[2]);
+        assertTrue(soon.isCancelled());
+        assertTrue(later.isCancelled());
+        assertTrue(kept.isExpired());
+        // too late to cancel once it ran
+        assertFalse(kept.cancel());
+        assertEquals(0, scheduler.pendingCount());
+    }
+
+    private static Runnable counter(final int[] counts, final int index) {
+        return new Runnable() {
+            public void run() {
+                counts[index]++;
+            }
+        };
+    }
+}
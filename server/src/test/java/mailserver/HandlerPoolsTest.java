@@ -0,0 +1,49 @@
+package mailserver;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class HandlerPoolsTest {
+
+    @Test
+    public void statusSaturationStillAdmitsCompose() throws InterruptedException {
+        HandlerPools pools = new HandlerPools("test-http", 1, 1, 1, 2);
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable slowStatus = new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        try {
+            // one status request being handled and two waiting fill the pool
+            for (int i = 0; i < 3; i++) {
+                pools.execute(AdmissionControl.Route.STATUS, slowStatus);
+            }
+            try {
+                pools.execute(AdmissionControl.Route.STATUS, slowStatus);
+                fail("the status queue should be full");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+
+            final CountDownLatch composed = new CountDownLatch(1);
+            pools.execute(AdmissionControl.Route.COMPOSE, new Runnable() {
+                public void run() {
+                    composed.countDown();
+                }
+            });
+            assertTrue(composed.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+}
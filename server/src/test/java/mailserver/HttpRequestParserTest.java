@@ -0,0 +1,148 @@
+package mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.Test;
+
+public class HttpRequestParserTest {
+
+    @Test
+    public void parsesRequestSplitIntoReads() {
+        String body = "from=a%40example.com&subject=H%E9+there&message=1+%2B+1";
+        byte[] request = bytes("POST /composeEmail?x=1 HTTP/1.1\r\nHost: h\r\nContent-Length: " + body.length()
+            + "\r\n\r\n" + body);
+        HttpRequestParser parser = new HttpRequestParser();
+        int state = HttpRequestParser.INCOMPLETE;
+        for (int i = 0; i < request.length; i += 3) {
+            state = parser.parse(ByteBuffer.wrap(request, i, Math.min(3, request.length - i)));
+        }
+        assertEquals(HttpRequestParser.COMPLETE, state);
+        assertTrue(parser.isMethod("POST"));
+        assertTrue(parser.isPath("composeEmail"));
+        assertEquals("h", parser.header("host"));
+        assertEquals(body, parser.body());
+        parser.parseForm();
+        assertEquals("a@example.com", parser.formValue("from"));
+        assertEquals("Hé there", parser.formValue("subject"));
+        assertEquals("1 + 1", parser.formValue("message"));
+    }
+
+    @Test
+    public void keepsPipelinedRequest() {
+        HttpRequestParser parser = new HttpRequestParser();
+        ByteBuffer input = ByteBuffer.wrap(bytes("GET /status HTTP/1.1\r\nHost: h\r\n\r\nGET /metrics HTTP/1.1\r\n\r\n"));
+        assertEquals(HttpRequestParser.COMPLETE, parser.parse(input));
+        assertTrue(parser.isPath("status"));
+        parser.next();
+        assertEquals(HttpRequestParser.COMPLETE, parser.parse(input));
+        assertTrue(parser.isPath("metrics"));
+    }
+
+    @Test
+    public void decodesChunkedBody() {
+        HttpRequestParser parser = new HttpRequestParser();
+        String request = "POST /composeEmail HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+            + "5\r\nhello\r\n7\r\n, world\r\n0\r\n\r\n";
+        assertEquals(HttpRequestParser.COMPLETE, parser.parse(ByteBuffer.wrap(bytes(request))));
+        assertEquals("hello, world", parser.body());
+    }
+
+    @Test
+    public void growsWithTheBodyThatArrives() {
+        HttpRequestParser parser = new HttpRequestParser();
+        int length = 1000000;
+        byte[] head = bytes("POST /composeEmail HTTP/1.1\r\nContent-Length: " + length + "\r\n\r\n");
+        assertEquals(HttpRequestParser.INCOMPLETE, parser.parse(ByteBuffer.wrap(head)));
+        // the declared length alone allocates nothing
+        assertTrue(parser.buffer().capacity() < 64 * 1024);
+
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; i++) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        ByteBuffer input = ByteBuffer.wrap(body);
+        int state = HttpRequestParser.INCOMPLETE;
+        while (state == HttpRequestParser.INCOMPLETE) {
+            ByteBuffer buffer = parser.buffer();
+            // room in proportion to what was read, never more than the request needs
+            assertTrue(buffer.capacity() <= Math.max(8192, 2 * buffer.position()));
+            assertTrue(buffer.capacity() <= head.length + length);
+            int n = Math.min(buffer.remaining(), Math.min(input.remaining(), 4096));
+            ByteBuffer read = input.duplicate();
+            read.limit(read.position() + n);
+            buffer.put(read);
+            input.position(input.position() + n);
+            state = parser.parse();
+        }
+        assertEquals(HttpRequestParser.COMPLETE, state);
+        assertEquals(length, parser.getBodyLength());
+        assertEquals(ByteBuffer.wrap(body), parser.bodyBuffer());
+    }
+
+    @Test
+    public void streamsBulkBodyAsItArrives() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            body.append("{\"to\":\"user").append(i).append("@example.com\"}\n");
+        }
+        StringBuilder chunked = new StringBuilder();
+        for (int i = 0; i < body.length(); i += 1000) {
+            String chunk = body.substring(i, Math.min(body.length(), i + 1000));
+            chunked.append(Integer.toHexString(chunk.length())).append("\r\n").append(chunk).append("\r\n");
+        }
+        byte[] request = bytes("POST /api/bulk HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + chunked
+            + "0\r\n\r\nGET /status HTTP/1.1\r\n\r\n");
+        final ByteArrayInputStream connection = new ByteArrayInputStream(request);
+
+        HttpRequestParser parser = new HttpRequestParser();
+        // the request is complete as soon as its head is in
+        assertEquals(HttpRequestParser.COMPLETE, parser.read(new InputStream() {
+            public int read() {
+                return connection.read();
+            }
+
+            public int read(byte[] b, int off, int len) {
+                return connection.read(b, off, Math.min(len, 100));
+            }
+        }));
+        assertTrue(parser.hasStreamedBody());
+        assertFalse(parser.isBodyRead());
+
+        InputStream in = parser.bodyStream(connection);
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] buf = new byte[777];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            read.write(buf, 0, n);
+            // the body is handed out, not gathered
+            assertTrue(parser.buffer().capacity() <= 16384);
+        }
+        assertEquals(body.toString(), new String(read.toByteArray(), StandardCharsets.ISO_8859_1));
+        assertTrue(parser.isBodyRead());
+
+        parser.next();
+        assertEquals(HttpRequestParser.COMPLETE, parser.read(connection));
+        assertTrue(parser.isPath("status"));
+    }
+
+    @Test
+    public void refusesTooLargeBody() {
+        HttpRequestParser parser = new HttpRequestParser();
+        String request = "POST /composeEmail HTTP/1.1\r\nContent-Length: "
+            + (HttpRequestParser.MAX_BODY_BYTES + 1) + "\r\n\r\n";
+        assertEquals(HttpRequestParser.INVALID, parser.parse(ByteBuffer.wrap(bytes(request))));
+        assertEquals(413, parser.getErrorStatus());
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
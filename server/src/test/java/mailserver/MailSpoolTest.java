@@ -0,0 +1,318 @@
+package mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MailSpoolTest {
+    // small enough for a few emails per segment
+    private static final int SEGMENT_BYTES = 1000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MailSpool mSpool;
+
+    @After
+    public void tearDown() {
+        if (mSpool != null) {
+            mSpool.close();
+        }
+    }
+
+    @Test
+    public void recoversPendingEmails() throws IOException {
+        File dir = mFolder.getRoot();
+        mSpool = open(dir, new TreeMap<Long, Email>());
+        Email short1 = email("short", 10);
+        Email long1 = email(repeat("A long line of text. ", 100), 20);
+        Email finished = email("finished", 0);
+        long1.attempts = 2;
+        mSpool.add(short1, false);
+        mSpool.add(long1, true);
+        mSpool.add(finished, false);
+        mSpool.done(finished);
+
+        Map<Long, Email> recovered = new TreeMap<Long, Email>();
+        reopen(dir, recovered);
+        assertEquals(2, recovered.size());
+        assertSame(short1, recovered.get(short1.id));
+        assertSame(long1, recovered.get(long1.id));
+        assertTrue(recovered.get(long1.id).body.isDeflated());
+        assertEquals(EmailState.DEFERRED, recovered.get(long1.id).state);
+    }
+
+    @Test
+    public void ignoresTornRecord() throws IOException {
+        File dir = mFolder.getRoot();
+        mSpool = open(dir, new TreeMap<Long, Email>());
+        Email first = email("the first email", 0);
+        Email torn = email("the email being written at the crash", 0);
+        mSpool.add(first, false);
+        mSpool.add(torn, false);
+        mSpool.close();
+        mSpool = null;
+        corrupt(dir, "being written");
+
+        Map<Long, Email> recovered = new TreeMap<Long, Email>();
+        reopen(dir, recovered);
+        assertEquals(1, recovered.size());
+        assertSame(first, recovered.get(first.id));
+
+        // appending goes on after the last good record
+        Email next = email("after the crash", 0);
+        mSpool.add(next, false);
+        recovered.clear();
+        reopen(dir, recovered);
+        assertEquals(2, recovered.size());
+        assertTrue(recovered.containsKey(next.id));
+    }
+
+    @Test
+    public void doneEmailStaysDoneAfterCompaction() throws IOException {
+        File dir = mFolder.getRoot();
+        mSpool = open(dir, new TreeMap<Long, Email>());
+        String text = repeat("x", 200);
+        // segment 0: three emails, of which one is done later
+        Email done = email(text, 0);
+        Email kept1 = email(text, 0);
+        Email kept2 = email(text, 0);
+        mSpool.add(done, false);
+        mSpool.add(kept1, false);
+        mSpool.add(kept2, false);
+        // segment 1: an email and the records that both are done
+        Email other = email(text, 0);
+        mSpool.add(other, false);
+        mSpool.done(done);
+        mSpool.done(other);
+        // segment 2, the current one
+        Email last = email(repeat("y", 800), 0);
+        mSpool.add(last, false);
+        assertEquals(3, mSpool.segmentCount());
+
+        // segment 1 is all done, but it holds the record that cancels
+        // the first email in segment 0, which is still mostly pending
+        mSpool.compact();
+        Map<Long, Email> recovered = new TreeMap<Long, Email>();
+        reopen(dir, recovered);
+        assertEquals(3, recovered.size());
+        assertFalse(recovered.containsKey(done.id));
+        assertFalse(recovered.containsKey(other.id));
+
+        // once segment 0 is mostly done too, both go
+        mSpool.done(kept1);
+        mSpool.done(kept2);
+        mSpool.compact();
+        assertEquals(1, mSpool.segmentCount());
+        recovered.clear();
+        reopen(dir, recovered);
+        assertEquals(1, recovered.size());
+        assertSame(last, recovered.get(last.id));
+    }
+
+    @Test
+    public void compactionMovesPendingEmails() throws IOException {
+        File dir = mFolder.getRoot();
+        mSpool = open(dir, new TreeMap<Long, Email>());
+        String text = repeat("x", 200);
+        Email pending = email(text, 60);
+        Email done1 = email(text, 0);
+        Email done2 = email(text, 0);
+        mSpool.add(pending, true);
+        mSpool.add(done1, false);
+        mSpool.add(done2, false);
+        mSpool.add(email(repeat("y", 500), 0), false);
+        mSpool.done(done1);
+        mSpool.done(done2);
+
+        mSpool.compact();
+        assertEquals(1, mSpool.segmentCount());
+        Map<Long, Email> recovered = new TreeMap<Long, Email>();
+        reopen(dir, recovered);
+        assertEquals(2, recovered.size());
+        assertSame(pending, recovered.get(pending.id));
+    }
+
+    @Test
+    public void recoversNewSendTime() throws IOException {
+        File dir = mFolder.getRoot();
+        mSpool = open(dir, new TreeMap<Long, Email>());
+        Email deferred = email("deferred", 0);
+        Email finished = email("deferred, then finished", 0);
+        mSpool.add(deferred, false);
+        mSpool.add(finished, false);
+        defer(deferred, 1);
+        defer(deferred, 2);
+        defer(finished, 1);
+        mSpool.done(finished);
+
+        Map<Long, Email> recovered = new TreeMap<Long, Email>();
+        reopen(dir, recovered);
+        assertEquals(1, recovered.size());
+        assertSame(deferred, recovered.get(deferred.id));
+        assertEquals(EmailState.DEFERRED, recovered.get(deferred.id).state);
+    }
+
+    @Test
+    public void compactionKeepsNewSendTime() throws IOException {
+        File dir = mFolder.getRoot();
+        mSpool = open(dir, new TreeMap<Long, Email>());
+        String text = repeat("x", 200);
+        // segment 0: the email and two done ones, so it is compacted
+        Email deferred = email(text, 0);
+        Email done1 = email(text, 0);
+        Email done2 = email(text, 0);
+        mSpool.add(deferred, false);
+        mSpool.add(done1, false);
+        mSpool.add(done2, false);
+        // segment 1, the current one: the new send time
+        mSpool.add(email(repeat("y", 400), 0), false);
+        defer(deferred, 1);
+        mSpool.done(done1);
+        mSpool.done(done2);
+        assertEquals(2, mSpool.segmentCount());
+
+        // the email is copied after its new send time, which must follow it
+        mSpool.compact();
+        Map<Long, Email> recovered = new TreeMap<Long, Email>();
+        reopen(dir, recovered);
+        assertEquals(2, recovered.size());
+        assertSame(deferred, recovered.get(deferred.id));
+
+        // and deferring it again still wins over the copy
+        defer(deferred, 2);
+        mSpool.compact();
+        recovered.clear();
+        reopen(dir, recovered);
+        assertSame(deferred, recovered.get(deferred.id));
+    }
+
+    @Test
+    public void compactionWorksThroughLargeSegmentsInSlices() throws IOException {
+        File dir = mFolder.getRoot();
+        int segmentBytes = 400 * 1000;
+        mSpool = new MailSpool(dir, segmentBytes, true, 0);
+        mSpool.recover(new MailSpool.Visitor() {
+            public void visit(Email email, boolean needConfirm) {
+            }
+        });
+        // more records in the first segment than one slice moves
+        List<Email> pending = new ArrayList<Email>();
+        for (int i = 0; i < 2500; i++) {
+            Email email = email("email " + i, 0);
+            mSpool.add(email, false);
+            if (i % 5 == 0) {
+                pending.add(email);
+            } else {
+                mSpool.done(email);
+            }
+        }
+        defer(pending.get(pending.size() - 1), 1);
+        // text that does not deflate, to fill the segment
+        Random random = new Random(1);
+        for (int i = 0; i < 2; i++) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < segmentBytes / 2) {
+                text.append(Long.toString(random.nextLong(), 36));
+            }
+            mSpool.add(email(text.toString(), 0), false);
+        }
+        int segments = mSpool.segmentCount();
+        assertTrue(segments > 1);
+
+        mSpool.compact();
+        assertTrue(mSpool.segmentCount() < segments);
+        Map<Long, Email> recovered = new TreeMap<Long, Email>();
+        reopen(dir, recovered);
+        assertEquals(pending.size() + 2, recovered.size());
+        for (Email email : pending) {
+            assertSame(email, recovered.get(email.id));
+        }
+    }
+
+    private void defer(Email email, int attempts) {
+        email.attempts = attempts;
+        email.setSendTime(email.sendTimeMillis + 60000);
+        mSpool.reschedule(email);
+    }
+
+    private void reopen(File dir, Map<Long, Email> recovered) throws IOException {
+        if (mSpool != null) {
+            mSpool.close();
+        }
+        mSpool = open(dir, recovered);
+    }
+
+    private static MailSpool open(File dir, final Map<Long, Email> recovered) throws IOException {
+        MailSpool spool = new MailSpool(dir, SEGMENT_BYTES, true, 0);
+        spool.recover(new MailSpool.Visitor() {
+            public void visit(Email email, boolean needConfirm) {
+                recovered.put(email.id, email);
+            }
+        });
+        return spool;
+    }
+
+    private static Email email(String message, int delayTime) {
+        return new Email("from@example.com", "to@example.org", "Subject", "mx.example.org", delayTime, message);
+    }
+
+    /**
+     * Flip a byte of the record holding the text, as a crash in the middle
+     * of writing it would leave it
+     */
+    private static void corrupt(File dir, String text) throws IOException {
+        byte[] needle = text.getBytes(StandardCharsets.UTF_8);
+        for (File file : dir.listFiles()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                byte[] bytes = new byte[(int) raf.length()];
+                raf.readFully(bytes);
+                for (int i = 0; i + needle.length <= bytes.length; i++) {
+                    if (new String(bytes, i, needle.length, StandardCharsets.UTF_8).equals(text)) {
+                        raf.seek(i);
+                        raf.write(bytes[i] ^ 0xff);
+                        return;
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        throw new AssertionError("Record not found: " + text);
+    }
+
+    private static void assertSame(Email expected, Email actual) {
+        assertEquals(expected.source, actual.source);
+        assertEquals(expected.dest, actual.dest);
+        assertEquals(expected.subject, actual.subject);
+        assertEquals(expected.smtpServer, actual.smtpServer);
+        assertEquals(expected.delayTime, actual.delayTime);
+        assertEquals(expected.submittedTimeMillis, actual.submittedTimeMillis);
+        assertEquals(expected.sendTimeMillis, actual.sendTimeMillis);
+        assertEquals(expected.attempts, actual.attempts);
+        assertEquals(expected.body.text(), actual.body.text());
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
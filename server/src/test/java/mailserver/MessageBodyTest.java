@@ -0,0 +1,108 @@
+package mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class MessageBodyTest {
+
+    @Test
+    public void keepsShortTextAsIs() {
+        MessageBody body = MessageBody.of("Hello");
+        assertFalse(body.isDeflated());
+        assertEquals("Hello", body.text());
+    }
+
+    @Test
+    public void deflatedTextRoundTrips() {
+        String text = repeat("Grüße aus Köln, 漢字 and some ASCII. ", 200);
+        MessageBody body = MessageBody.of(text);
+        assertTrue(body.isDeflated());
+        assertEquals(text, body.text());
+        assertTrue(body.deflatedBytes().length < text.length());
+
+        byte[] deflated = body.deflatedBytes();
+        MessageBody restored = MessageBody.deflated(deflated, 0, deflated.length, body.length());
+        assertEquals(text, restored.text());
+        assertEquals(body, restored);
+        assertEquals(body.hashCode(), restored.hashCode());
+        assertNotEquals(body, MessageBody.of(text + "!"));
+    }
+
+    @Test
+    public void readerInflatesInBlocks() throws IOException {
+        String text = repeat("Grüße aus Köln, 漢字 and some ASCII. ", 2000);
+        for (MessageBody body : new MessageBody[] { MessageBody.of(text), MessageBody.of("short") }) {
+            Reader reader = body.reader();
+            StringBuilder sb = new StringBuilder();
+            char[] block = new char[1000];
+            try {
+                for (int n; (n = reader.read(block)) >= 0;) {
+                    sb.append(block, 0, n);
+                }
+            } finally {
+                reader.close();
+            }
+            assertEquals(body.text(), sb.toString());
+        }
+    }
+
+    @Test
+    public void declaredSizeIsWhatIsWritten() throws IOException {
+        String[] texts = { "short = text ", repeat("Grüße aus Köln, 漢字 and . dots\n", 500) };
+        for (String text : texts) {
+            Email email = new Email("from@example.com", "to@example.org", "Grüße", "mx.example.org", 0, text);
+            MimeMessage message = new MimeMessage(email, "<to@example.org>");
+            QuotedPrintable encoder = new QuotedPrintable();
+            long size = message.size(encoder);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            message.writeTo(out, encoder);
+            encoder.flush(out);
+            assertEquals(out.size(), size);
+            // and again from the cached body size
+            assertEquals(size, message.size(encoder));
+        }
+    }
+
+    @Test
+    public void manyThreadsShareTheCoders() throws InterruptedException {
+        final String text = repeat("0123456789", 500);
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 64; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        String expected = text + j;
+                        if (!MessageBody.of(expected).text().equals(expected)) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, failures.get());
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
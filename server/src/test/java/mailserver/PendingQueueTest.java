@@ -0,0 +1,84 @@
+package mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class PendingQueueTest {
+
+    @Test
+    public void keepsSendTimeOrder() {
+        PendingQueue queue = new PendingQueue();
+        assertNull(queue.first());
+        Email late = email(60);
+        Email early = email(10);
+        Email sameTime = email(10);
+        sameTime.setSendTime(early.sendTimeMillis);
+        assertTrue(queue.add(late));
+        assertTrue(queue.add(sameTime));
+        assertTrue(queue.add(early));
+        assertFalse(queue.add(early));
+
+        // same send time: the lower id first
+        assertEquals(ids(early, sameTime, late), ids(queue));
+        assertSame(early, queue.first());
+        assertEquals(3, queue.size());
+    }
+
+    @Test
+    public void startsFromCursor() {
+        PendingQueue queue = new PendingQueue();
+        Email first = email(10);
+        Email second = email(20);
+        Email third = email(30);
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+
+        assertEquals(ids(second, third), ids(queue.from(second.sendTimeMillis, second.id, true)));
+        assertEquals(ids(third), ids(queue.from(second.sendTimeMillis, second.id, false)));
+        assertEquals(ids(second, third), ids(queue.from(second.sendTimeMillis, Long.MIN_VALUE, true)));
+        assertEquals(ids(third), ids(queue.after(second)));
+        assertEquals(ids(first, second, third), ids(queue.after(null)));
+    }
+
+    @Test
+    public void movesEmailToItsNewSendTime() {
+        PendingQueue queue = new PendingQueue();
+        Email moved = email(10);
+        Email other = email(20);
+        queue.add(moved);
+        queue.add(other);
+
+        assertSame(moved, queue.remove(moved.id));
+        moved.setSendTime(other.sendTimeMillis + 1000);
+        queue.add(moved);
+        assertEquals(ids(other, moved), ids(queue));
+        assertSame(other, queue.remove(other.id));
+        assertNull(queue.remove(other.id));
+        assertEquals(ids(moved), ids(queue.snapshot()));
+    }
+
+    private static Email email(int delayTime) {
+        return new Email("from@example.com", "to@example.org", "Subject", "mx.example.org", delayTime, "text");
+    }
+
+    private static List<Long> ids(Email... emails) {
+        return ids(Arrays.asList(emails));
+    }
+
+    private static List<Long> ids(Iterable<Email> emails) {
+        List<Long> ids = new ArrayList<Long>();
+        for (Email email : emails) {
+            ids.add(email.id);
+        }
+        return ids;
+    }
+}
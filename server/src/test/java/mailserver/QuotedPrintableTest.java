@@ -0,0 +1,197 @@
+package mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class QuotedPrintableTest {
+    private static final Charset CHARSET = Charset.forName(QuotedPrintable.CHARSET_NAME);
+    private static final Pattern WORD = Pattern.compile("=\\?" + QuotedPrintable.CHARSET_NAME + "\\?Q\\?([^?]*)\\?=");
+    // characters ISO-8859-15 can hold, with the ones the encoding treats specially
+    private static final String ALPHABET = "abcXYZ019 \t.=_?!*+-/\r\n\r\néüßÅ€ŠšŽžŒœŸ";
+
+    @Test
+    public void bodyRoundTrips() throws IOException {
+        String[] texts = {
+            "",
+            "Hello",
+            "a = b",
+            ".starts with a dot\n.and again",
+            "trailing space \nand tab\t\nat the end ",
+            "Prix : 10 € - très cher",
+            "mixed\rline\r\nbreaks\n",
+            repeat("0123456789", 30),
+            repeat("é", 200),
+            repeat(" ", 100),
+        };
+        for (String text : texts) {
+            checkBody(text);
+        }
+    }
+
+    @Test
+    public void randomBodiesRoundTrip() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            checkBody(randomString(random, random.nextInt(300)));
+        }
+    }
+
+    @Test
+    public void staticEncodingMatchesStream() throws IOException {
+        String text = "Line one\nLine two with € and = signs\n." + repeat("x", 100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new QuotedPrintable().encodeBody(text, out);
+        assertEquals(out.toString(QuotedPrintable.CHARSET_NAME), QuotedPrintable.encodeBody(text));
+    }
+
+    @Test
+    public void readerEncodingMatchesString() throws IOException {
+        // surrogate pairs straddle the reader's blocks
+        String text = "Line one\n" + repeat("a\uD83D\uDE00 ", 3000) + "\n." + repeat("€ ", 1000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        QuotedPrintable encoder = new QuotedPrintable();
+        encoder.encodeBody(new StringReader(text), out);
+        assertEquals(QuotedPrintable.encodeBody(text), out.toString(QuotedPrintable.CHARSET_NAME));
+        // and the encoder can be reused afterwards
+        checkBody("after = a reader ");
+    }
+
+    @Test
+    public void plainHeaderIsKept() throws IOException {
+        assertEquals("A plain subject", header("A plain subject"));
+    }
+
+    @Test
+    public void headerWordsRoundTrip() throws IOException {
+        String[] texts = {
+            "",
+            "Plain but too long for one line: " + repeat("x", 60),
+            "Café",
+            "=?looks encoded?=",
+            "a_b?c=d",
+            "Line\r\nbreak",
+            repeat("A long subject that needs folding ", 10),
+            repeat("€", 100),
+        };
+        for (String text : texts) {
+            checkHeader(text);
+        }
+        Random random = new Random(7);
+        for (int i = 0; i < 2000; i++) {
+            checkHeader(randomString(random, random.nextInt(200)));
+        }
+    }
+
+    @Test
+    public void wordTextMatchesWords() throws IOException {
+        String text = "Grüße aus Köln!";
+        String encoded = header(text);
+        Matcher word = WORD.matcher(encoded);
+        assertTrue(word.find());
+        assertEquals(QuotedPrintable.encodeWordText(text), word.group(1));
+    }
+
+    private static void checkBody(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new QuotedPrintable().encodeBody(text, out);
+        String encoded = out.toString("US-ASCII");
+        for (String line : encoded.split("\r\n", -1)) {
+            assertTrue("line too long: " + line, line.length() <= 76);
+            assertFalse("line starts with a dot: " + line, line.startsWith("."));
+            assertFalse("trailing whitespace: " + line, line.endsWith(" ") || line.endsWith("\t"));
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                assertTrue("not printable: " + (int) c, c == '\t' || (c >= ' ' && c <= '~'));
+            }
+        }
+        assertEquals(text.replaceAll("\r\n|\r|\n", "\r\n"), decodeBody(encoded));
+    }
+
+    private static void checkHeader(String text) throws IOException {
+        String encoded = header(text);
+        if (QuotedPrintable.isPlain(text, 76 - "Subject: ".length())) {
+            assertEquals(text, encoded);
+            return;
+        }
+        String[] lines = encoded.split("\r\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            int length = lines[i].length() + (i == 0 ? "Subject: ".length() : 0);
+            assertTrue("line too long: " + lines[i], length <= 76);
+            if (i > 0) {
+                assertTrue("not folded: " + lines[i], lines[i].startsWith(" "));
+            }
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Matcher word = WORD.matcher(encoded);
+        int words = 0;
+        while (word.find()) {
+            assertTrue("word too long: " + word.group(), word.group().length() <= 75);
+            decode(word.group(1).replace('_', ' '), bytes);
+            words++;
+        }
+        assertTrue(words > 0);
+        assertEquals(new String(text.getBytes(CHARSET), CHARSET), new String(bytes.toByteArray(), CHARSET));
+    }
+
+    private static String header(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new QuotedPrintable().encodeHeader(text, "Subject: ".length(), out);
+        return out.toString("US-ASCII");
+    }
+
+    /**
+     * Decode a quoted-printable body, keeping its CRLF line breaks
+     */
+    private static String decodeBody(String encoded) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        String[] lines = encoded.split("\r\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            boolean soft = line.endsWith("=");
+            decode(soft ? line.substring(0, line.length() - 1) : line, bytes);
+            if (!soft && i < lines.length - 1) {
+                bytes.write('\r');
+                bytes.write('\n');
+            }
+        }
+        return new String(bytes.toByteArray(), CHARSET);
+    }
+
+    private static void decode(String s, ByteArrayOutputStream bytes) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '=') {
+                bytes.write(Integer.parseInt(s.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        }
+        return sb.toString();
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,141 @@
+package mailserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SmtpSessionTest {
+    private static final SmtpSession.Content BODY = new SmtpSession.Content() {
+        public void writeTo(OutputStream out, QuotedPrintable encoder) throws IOException {
+            out.write("Subject: test\r\n\r\nhello".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        public long size(QuotedPrintable encoder) {
+            return 23;
+        }
+    };
+
+    private ServerSocket mServer;
+    private Thread mThread;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        mThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Socket socket = mServer.accept();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // the test ended
+                }
+            }
+        });
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void nextTransactionWorksAfterEveryRecipientIsRefused() throws IOException {
+        SmtpSession session = SmtpSession.open("127.0.0.1", mServer.getLocalPort(), "client.example.com");
+        try {
+            List<String> rejected = session.send("from@example.com",
+                Arrays.asList("refused1@example.org", "refused2@example.org"), BODY);
+            assertNotNull(rejected.get(0));
+            assertNotNull(rejected.get(1));
+            assertEquals(0, session.getMessagesSent());
+
+            // a MAIL transaction left open would get "503 nested MAIL command"
+            rejected = session.send("from@example.com", Arrays.asList("to@example.org"), BODY);
+            assertNull(rejected.get(0));
+            assertEquals(1, session.getMessagesSent());
+        } finally {
+            session.quit();
+        }
+    }
+
+    /**
+     * Answer like a strict server: recipients starting with "refused" are
+     * refused, DATA without recipients fails, and MAIL inside an open
+     * transaction is an error
+     */
+    private static void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+            StandardCharsets.US_ASCII));
+        OutputStream out = socket.getOutputStream();
+        reply(out, "220 fake ESMTP");
+        boolean inTransaction = false;
+        int recipients = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            String command = line.toUpperCase();
+            if (command.startsWith("EHLO")) {
+                reply(out, "250-fake\r\n250-PIPELINING\r\n250 SIZE 1000000");
+            } else if (command.startsWith("MAIL")) {
+                if (inTransaction) {
+                    reply(out, "503 5.5.1 Nested MAIL command");
+                } else {
+                    inTransaction = true;
+                    recipients = 0;
+                    reply(out, "250 OK");
+                }
+            } else if (command.startsWith("RCPT")) {
+                if (!inTransaction) {
+                    reply(out, "503 5.5.1 Need MAIL first");
+                } else if (command.startsWith("RCPT TO:<REFUSED")) {
+                    reply(out, "550 5.1.1 No such user");
+                } else {
+                    recipients++;
+                    reply(out, "250 OK");
+                }
+            } else if (command.equals("DATA")) {
+                if (recipients == 0) {
+                    reply(out, "554 5.5.1 No valid recipients");
+                    continue;
+                }
+                reply(out, "354 Go ahead");
+                while ((line = in.readLine()) != null && !line.equals(".")) {
+                    // throw the message away
+                }
+                inTransaction = false;
+                reply(out, "250 OK");
+            } else if (command.equals("RSET")) {
+                inTransaction = false;
+                reply(out, "250 OK");
+            } else if (command.equals("QUIT")) {
+                reply(out, "221 Bye");
+                return;
+            } else {
+                reply(out, "500 Unknown command");
+            }
+        }
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+}
@@ -0,0 +1,43 @@
+package mailserver;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StaticAssetCacheTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void gzipVariantHasItsOwnETag() throws IOException {
+        File file = mFolder.newFile("index.htm");
+        StringBuilder html = new StringBuilder("<html><body>");
+        for (int i = 0; i < 100; i++) {
+            html.append("<p>The same paragraph again.</p>");
+        }
+        Files.write(file.toPath(), html.append("</body></html>").toString().getBytes(StandardCharsets.UTF_8));
+
+        StaticAssetCache.Asset asset = new StaticAssetCache().get(file.getPath());
+        assertNotNull(asset.getGzip());
+        String plain = asset.getETag(false);
+        String gzip = asset.getETag(true);
+        assertNotEquals(plain, gzip);
+        assertTrue(gzip.startsWith("\"") && gzip.endsWith("-gz\""));
+
+        assertTrue(asset.isNotModified(plain, null, false));
+        assertTrue(asset.isNotModified("W/" + gzip, null, true));
+        assertFalse(asset.isNotModified(gzip, null, false));
+        assertFalse(asset.isNotModified(plain, null, true));
+        assertTrue(asset.isNotModified("\"other\", " + gzip, null, true));
+        assertTrue(asset.isNotModified("*", null, false));
+    }
+}
@@ -0,0 +1,169 @@
+package mailserver;
+
+import java.net.IDN;
+
+/**
+ * Checks email addresses in a single pass over the string, without
+ * allocating.
+ *
+ * The local part is either a dot-atom (RFC 5322 atext separated by single
+ * dots) or a quoted string, where any printable ASCII character may appear
+ * and quotes and backslashes are escaped with a backslash (RFC 5321). It
+ * is at most 64 characters, and the address at most 254. The domain is at
+ * least two labels of letters, digits and inner hyphens, each at most 63
+ * characters, ending in a top-level domain of two or more letters or an
+ * "xn--" A-label. Labels may hold non-ASCII letters (IDN); toAscii turns
+ * them into their A-label form for DNS and SMTP. Address literals such as
+ * [192.0.2.1] are refused, since mail servers are found from the domain,
+ * and so is non-ASCII in the local part, which needs SMTPUTF8.
+ */
+final class AddressValidator {
+    static final int MAX_LENGTH = 254;
+    static final int MAX_LOCAL_LENGTH = 64;
+    static final int MAX_LABEL_LENGTH = 63;
+
+    // the atext characters of RFC 5322 besides letters and digits
+    private static final String ATEXT_SYMBOLS = "!#$%&'*+-/=?^_`{|}~";
+
+    private AddressValidator() {
+    }
+
+    /**
+     * Return whether the string is a valid address
+     */
+    static boolean isValid(String address) {
+        if (address == null) {
+            return false;
+        }
+        int length = address.length();
+        if (length == 0 || length > MAX_LENGTH) {
+            return false;
+        }
+        int at = localPartEnd(address, length);
+        return at > 0 && at <= MAX_LOCAL_LENGTH && isValidDomain(address, at + 1, length);
+    }
+
+    /**
+     * Return the index of the '@' ending a valid local part, or -1
+     */
+    private static int localPartEnd(String s, int length) {
+        int i = 0;
+        if (s.charAt(0) == '"') {
+            i = 1;
+            while (true) {
+                if (i >= length) {
+                    return -1;
+                }
+                char c = s.charAt(i++);
+                if (c == '"') {
+                    break;
+                }
+                if (c == '\\') {
+                    if (i >= length) {
+                        return -1;
+                    }
+                    c = s.charAt(i++);
+                }
+                if (c < 0x20 || c > 0x7e) {
+                    return -1;
+                }
+            }
+            return i < length && s.charAt(i) == '@' ? i : -1;
+        }
+        boolean afterDot = true;
+        for (; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '@') {
+                return afterDot ? -1 : i;
+            }
+            if (c == '.') {
+                if (afterDot) {
+                    return -1;
+                }
+                afterDot = true;
+            } else if (isAtext(c)) {
+                afterDot = false;
+            } else {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isAtext(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+            || (c < 0x80 && ATEXT_SYMBOLS.indexOf(c) >= 0);
+    }
+
+    /**
+     * Return whether s[start, end) is a valid domain
+     */
+    private static boolean isValidDomain(String s, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        int labels = 0;
+        int labelStart = start;
+        // whether the current label is all letters, as a top-level domain must be
+        boolean letters = true;
+        int i = start;
+        while (true) {
+            int c = i < end ? s.codePointAt(i) : '.';
+            if (c == '.') {
+                int labelLength = i - labelStart;
+                if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH
+                        || s.charAt(labelStart) == '-' || s.charAt(i - 1) == '-') {
+                    return false;
+                }
+                labels++;
+                if (i >= end) {
+                    return labels >= 2 && labelLength >= 2 && (letters || isALabel(s, labelStart));
+                }
+                labelStart = i + 1;
+                letters = true;
+                i++;
+                continue;
+            }
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) {
+                // a letter
+            } else if ((c >= '0' && c <= '9') || c == '-') {
+                letters = false;
+            } else if (c >= 0x80 && Character.isLetter(c)) {
+                // a letter of an internationalized label
+            } else if (c >= 0x80 && (Character.isDigit(c) || isMark(c))) {
+                letters = false;
+            } else {
+                return false;
+            }
+            i += Character.charCount(c);
+        }
+    }
+
+    private static boolean isMark(int c) {
+        int type = Character.getType(c);
+        return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    private static boolean isALabel(String s, int start) {
+        return s.regionMatches(true, start, "xn--", 0, 4);
+    }
+
+    /**
+     * Return the address, or a bare domain, with an internationalized
+     * domain in its A-label form; anything else is returned as it is
+     */
+    static String toAscii(String address) {
+        int at = address.lastIndexOf('@');
+        for (int i = at + 1; i < address.length(); i++) {
+            if (address.charAt(i) >= 0x80) {
+                try {
+                    return address.substring(0, at + 1) + IDN.toASCII(address.substring(at + 1));
+                } catch (IllegalArgumentException e) {
+                    // its lookup will fail like that of any unknown domain
+                    return address;
+                }
+            }
+        }
+        return address;
+    }
+}
@@ -0,0 +1,207 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which HTTP requests the server takes on when it is saturated.
+ *
+ * Work waiting for a handler sits in a bounded queue, one for submissions
+ * and one for everything else (HandlerPools). When its queue is full, or a
+ * request waited there longer than the deadline, the client gets an
+ * immediate 503 with Retry-After instead of waiting on. Submissions and
+ * status requests each have their own cap on handlers, so polling the
+ * status can never take the handlers or the queue that submissions need.
+ * Every refusal is counted by reason in mailserver_http_shed_total.
+ */
+class AdmissionControl {
+
+	/**
+	 * The kinds of request that are limited separately
+	 */
+	enum Route { COMPOSE, STATUS, OTHER }
+
+	static final int QUEUE_CAPACITY = Config.getInt("mailserver.http.queueCapacity", 100);
+	private static final long QUEUE_TIMEOUT_NANOS =
+		Config.getLong("mailserver.http.queueTimeoutMillis", 2000) * 1000000L;
+	private static final int RETRY_AFTER_SECONDS = Config.getInt("mailserver.http.retryAfterSeconds", 1);
+	private static final int WORKERS = Config.getInt("mailserver.http.workers", 10);
+
+	static final int COMPOSE_HANDLERS = Math.max(1, Config.getInt("mailserver.http.maxComposeHandlers", WORKERS));
+
+	private static final Semaphore sCompose = new Semaphore(COMPOSE_HANDLERS);
+	private static final Semaphore sStatus = new Semaphore(
+		Math.max(1, Config.getInt("mailserver.http.maxStatusHandlers", Math.max(1, WORKERS / 2))));
+
+	// requests accepted and not yet picked up by a handler
+	private static final AtomicInteger sWaiting = new AtomicInteger();
+
+	private static final LongAdder sQueueFull = shedCounter("queue_full");
+	private static final LongAdder sQueueTimeout = shedCounter("queue_timeout");
+	private static final LongAdder sComposeLimit = shedCounter("compose_limit");
+	private static final LongAdder sStatusLimit = shedCounter("status_limit");
+
+	// refused sockets are answered off the accept thread
+	private static final ThreadPoolExecutor sRefusals = new ThreadPoolExecutor(1, 1, 0L,
+		TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1024), new NamedThreadFactory("http-refuse", true));
+	private static final int REFUSAL_TIMEOUT = 200;
+	private static final byte[] OVERLOADED = overloadedResponse();
+
+	private static LongAdder shedCounter(String reason) {
+		final LongAdder count = new LongAdder();
+		Metrics.counter("mailserver_http_shed_total", "Requests refused with 503 because the server was saturated",
+			"reason=\"" + reason + "\"", new Metrics.Gauge() {
+			public double value() {
+				return count.sum();
+			}
+		});
+		return count;
+	}
+
+	/**
+	 * Note that a request is about to be queued for a handler
+	 */
+	static void enqueued() {
+		sWaiting.incrementAndGet();
+	}
+
+	/**
+	 * Note that the queue had no room for the request
+	 */
+	static void rejected() {
+		sWaiting.decrementAndGet();
+		sQueueFull.increment();
+	}
+
+	/**
+	 * Note that a handler picked up a request queued at the given time;
+	 * returns false if it waited too long and should be refused
+	 */
+	static boolean dequeued(long queuedAt) {
+		sWaiting.decrementAndGet();
+		if (System.nanoTime() - queuedAt > QUEUE_TIMEOUT_NANOS) {
+			sQueueTimeout.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Return whether requests are waiting for a handler, in which case
+	 * handlers should not hold on to idle connections
+	 */
+	static boolean isBacklogged() {
+		return sWaiting.get() > 0;
+	}
+
+	/**
+	 * Take a handler for the route; returns false if the route is at its
+	 * limit and the request should be refused
+	 */
+	static boolean tryEnter(Route route) {
+		if (route == Route.COMPOSE) {
+			if (sCompose.tryAcquire()) {
+				return true;
+			}
+			sComposeLimit.increment();
+			return false;
+		}
+		if (route == Route.STATUS) {
+			if (sStatus.tryAcquire()) {
+				return true;
+			}
+			sStatusLimit.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Give back the handler taken by tryEnter
+	 */
+	static void exit(Route route) {
+		if (route == Route.COMPOSE) {
+			sCompose.release();
+		} else if (route == Route.STATUS) {
+			sStatus.release();
+		}
+	}
+
+	/**
+	 * Turn a response into a refusal that closes the connection
+	 */
+	static void refuse(HttpResponse res) {
+		res.setStatus(503);
+		res.addHeader("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+		res.closeConnection();
+	}
+
+	/**
+	 * Return the raw refusal
+	 */
+	static byte[] overloaded() {
+		return OVERLOADED;
+	}
+
+	/**
+	 * Send the refusal on a connection nobody handles and close it. Whatever
+	 * the client already sent is read and dropped first, since closing with
+	 * unread data would reset the connection and lose the response.
+	 */
+	static void refuse(final Socket socket) {
+		try {
+			sRefusals.execute(new Runnable() {
+				public void run() {
+					try {
+						socket.setSoTimeout(REFUSAL_TIMEOUT);
+						OutputStream out = socket.getOutputStream();
+						out.write(OVERLOADED);
+						out.flush();
+						socket.shutdownOutput();
+						InputStream in = socket.getInputStream();
+						byte[] discard = new byte[4096];
+						long deadline = System.currentTimeMillis() + REFUSAL_TIMEOUT;
+						while (in.read(discard) >= 0 && System.currentTimeMillis() < deadline) {
+							// drain until the client closes
+						}
+					} catch (IOException e) {
+						// the client is gone or too slow to close
+					}
+					closeQuietly(socket);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			closeQuietly(socket);
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	private static byte[] overloadedResponse() {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+		try {
+			HttpResponse res = new HttpResponse(out, "HTTP/1.1", false);
+			refuse(res);
+			res.finish();
+		} catch (IOException e) {
+			// writing to memory does not fail
+		}
+		return out.toByteArray();
+	}
+}
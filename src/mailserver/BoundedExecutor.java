@@ -0,0 +1,113 @@
+package mailserver;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps how many tasks of an executor run at the same time. Used in front of
+ * a virtual thread executor, which would otherwise start every task at once.
+ *
+ * execute() never blocks: tasks over the cap wait in a queue and start as
+ * running ones finish; when that queue is full too, the task is rejected.
+ */
+public class BoundedExecutor extends AbstractExecutorService {
+    private final ExecutorService mDelegate;
+    private final Semaphore mPermits;
+    private final int mMaxConcurrent;
+    private final int mMaxQueued;
+    private final Queue<Runnable> mWaiting = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger mQueued = new AtomicInteger();
+
+    public BoundedExecutor(ExecutorService delegate, int maxConcurrent, int maxQueued) {
+        mDelegate = delegate;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mPermits = new Semaphore(mMaxConcurrent);
+        mMaxQueued = Math.max(0, maxQueued);
+    }
+
+    public void execute(Runnable task) {
+        if (mDelegate.isShutdown()) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+        // checked without a lock, so the bound is approximate
+        if (mQueued.get() >= mMaxQueued && mPermits.availablePermits() == 0) {
+            throw new RejectedExecutionException("Too many tasks waiting");
+        }
+        mQueued.incrementAndGet();
+        mWaiting.add(task);
+        drain();
+    }
+
+    /**
+     * Return the number of tasks running right now
+     */
+    public int activeCount() {
+        return mMaxConcurrent - mPermits.availablePermits();
+    }
+
+    /**
+     * Return the number of tasks waiting for a free slot
+     */
+    public int queuedCount() {
+        return mQueued.get();
+    }
+
+    private void drain() {
+        while (!mWaiting.isEmpty() && mPermits.tryAcquire()) {
+            Runnable task = mWaiting.poll();
+            if (task == null) {
+                mPermits.release();
+                return;
+            }
+            mQueued.decrementAndGet();
+            start(task);
+        }
+    }
+
+    private void start(final Runnable task) {
+        try {
+            mDelegate.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        mPermits.release();
+                        drain();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mPermits.release();
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        mDelegate.shutdown();
+    }
+
+    public List<Runnable> shutdownNow() {
+        mWaiting.clear();
+        mQueued.set(0);
+        return mDelegate.shutdownNow();
+    }
+
+    public boolean isShutdown() {
+        return mDelegate.isShutdown();
+    }
+
+    public boolean isTerminated() {
+        return mDelegate.isTerminated();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mDelegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,257 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the emails of a bulk request, one row at a time, from its body as
+ * it arrives; only the row being read is held, up to the size of a single
+ * compose form.
+ *
+ * The body is either newline-delimited JSON, one flat object per line, or
+ * CSV whose first record names the columns; both are UTF-8 and use the
+ * field names of the compose form. A row that cannot be read is returned
+ * with its error set, so the rows after it are still composed. Missing
+ * fields default to empty, and a missing delay to 0.
+ */
+class BulkReader {
+
+	/**
+	 * One email of the batch, and what became of it
+	 */
+	static class Row {
+		final int number;
+		String from;
+		String to;
+		String subject = "";
+		String smtpServer = "";
+		String delayTime = "0";
+		String message = "";
+		String error;
+		Email email;
+
+		Row(int number) {
+			this.number = number;
+		}
+
+		private void set(String name, String value) {
+			if (value == null) {
+				return;
+			}
+			if (name.equals("from")) {
+				from = value;
+			} else if (name.equals("to")) {
+				to = value;
+			} else if (name.equals("subject")) {
+				subject = value;
+			} else if (name.equals("smtpServer")) {
+				smtpServer = value.trim();
+			} else if (name.equals("delayTime")) {
+				delayTime = value.trim();
+			} else if (name.equals("message")) {
+				message = value;
+			}
+		}
+	}
+
+	// the longest row taken, as large as the form of a single email may be
+	private static final int MAX_ROW_BYTES = HttpRequestParser.MAX_BODY_BYTES;
+
+	private final InputStream mIn;
+	private byte[] mBuf = new byte[16384];
+	private int mPos;
+	private int mEnd;
+	private boolean mEof;
+	private final boolean mCsv;
+	private String[] mColumns;
+	private int mRows;
+	private final ByteArrayOutputStream mField = new ByteArrayOutputStream(256);
+
+	/**
+	 * Read NDJSON, or CSV if asked to, from the stream
+	 */
+	BulkReader(InputStream in, boolean csv) {
+		mIn = in;
+		mCsv = csv;
+	}
+
+	/**
+	 * Return whether the media type names CSV rather than NDJSON
+	 */
+	static boolean isCsv(String contentType) {
+		return contentType != null && contentType.toLowerCase().contains("csv");
+	}
+
+	/**
+	 * Return the next row, or null after the last one
+	 */
+	Row next() throws IOException {
+		return mCsv ? nextCsv() : nextJson();
+	}
+
+	private Row nextJson() throws IOException {
+		while (true) {
+			int end = mPos;
+			while (true) {
+				while (end < mEnd && mBuf[end] != '\n') {
+					end++;
+				}
+				if (end < mEnd) {
+					break;
+				}
+				int scanned = end - mPos;
+				if (!fill()) {
+					break;
+				}
+				end = mPos + scanned;
+			}
+			if (mPos == mEnd) {
+				return null;
+			}
+			int start = mPos;
+			mPos = Math.min(end + 1, mEnd);
+			String line = new String(mBuf, start, end - start, StandardCharsets.UTF_8).trim();
+			if (line.length() == 0) {
+				continue;
+			}
+			Row row = new Row(++mRows);
+			Map<String, String> fields = Json.parseFlatObject(line);
+			if (fields == null) {
+				row.error = "Invalid JSON";
+				return row;
+			}
+			for (Map.Entry<String, String> field : fields.entrySet()) {
+				row.set(field.getKey(), field.getValue());
+			}
+			return row;
+		}
+	}
+
+	private Row nextCsv() throws IOException {
+		List<String> record = readRecord();
+		if (mColumns == null) {
+			if (record == null) {
+				return null;
+			}
+			mColumns = new String[record.size()];
+			for (int i = 0; i < mColumns.length; i++) {
+				mColumns[i] = record.get(i).trim();
+			}
+			record = readRecord();
+		}
+		if (record == null) {
+			return null;
+		}
+		Row row = new Row(++mRows);
+		if (record.size() != mColumns.length) {
+			row.error = "Expected " + mColumns.length + " fields but found " + record.size();
+			return row;
+		}
+		for (int i = 0; i < mColumns.length; i++) {
+			row.set(mColumns[i], record.get(i));
+		}
+		return row;
+	}
+
+	/**
+	 * Read the fields of the next non-empty CSV record, or null at the end.
+	 * Quoted fields may hold commas, line breaks and doubled quotes.
+	 */
+	private List<String> readRecord() throws IOException {
+		while (peek() == '\n' || peek() == '\r') {
+			mPos++;
+		}
+		if (peek() < 0) {
+			return null;
+		}
+		List<String> fields = new ArrayList<String>();
+		int size = 0;
+		while (true) {
+			mField.reset();
+			boolean quoted = peek() == '"';
+			if (quoted) {
+				mPos++;
+				int b;
+				while ((b = peek()) >= 0) {
+					mPos++;
+					if (b == '"') {
+						if (peek() == '"') {
+							mPos++;
+						} else {
+							break;
+						}
+					}
+					mField.write(b);
+				}
+			}
+			// up to the separator; after a closing quote this is kept as well
+			int quotedLength = mField.size();
+			int b;
+			while ((b = peek()) >= 0 && b != ',' && b != '\n') {
+				mField.write(b);
+				mPos++;
+			}
+			byte[] field = mField.toByteArray();
+			int length = field.length;
+			if (length > quotedLength && field[length - 1] == '\r') {
+				length--;
+			}
+			size += length;
+			if (size > MAX_ROW_BYTES) {
+				throw new IOException("Row " + (mRows + 1) + " is longer than " + MAX_ROW_BYTES + " bytes");
+			}
+			fields.add(new String(field, 0, length, StandardCharsets.UTF_8));
+			if (b == ',') {
+				mPos++;
+				continue;
+			}
+			// end of the line or of the body
+			mPos++;
+			return fields;
+		}
+	}
+
+	/**
+	 * Return the next byte without taking it, or -1 at the end of the body
+	 */
+	private int peek() throws IOException {
+		if (mPos >= mEnd && !fill()) {
+			return -1;
+		}
+		return mBuf[mPos] & 0xff;
+	}
+
+	/**
+	 * Read more of the body behind what is not taken yet; returns false at
+	 * its end
+	 */
+	private boolean fill() throws IOException {
+		if (mEof) {
+			return false;
+		}
+		if (mPos > 0) {
+			System.arraycopy(mBuf, mPos, mBuf, 0, mEnd - mPos);
+			mEnd -= mPos;
+			mPos = 0;
+		}
+		if (mEnd == mBuf.length) {
+			if (mBuf.length >= MAX_ROW_BYTES) {
+				throw new IOException("Row " + (mRows + 1) + " is longer than " + MAX_ROW_BYTES + " bytes");
+			}
+			mBuf = Arrays.copyOf(mBuf, Math.min(mBuf.length * 2, MAX_ROW_BYTES));
+		}
+		int n = mIn.read(mBuf, mEnd, mBuf.length - mEnd);
+		if (n < 0) {
+			mEof = true;
+			return false;
+		}
+		mEnd += n;
+		return true;
+	}
+}
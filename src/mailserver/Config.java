@@ -0,0 +1,61 @@
+package mailserver;
+
+/**
+ * Server settings, read from system properties (java -Dmailserver.xxx=...)
+ */
+public class Config {
+
+    /**
+     * Return the string value of a setting, or the default if not set
+     */
+    public static String getString(String name, String defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Return the integer value of a setting, or the default if not set or invalid
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            Log.print("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Return the long value of a setting, or the default if not set or invalid
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.print("Invalid value for " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Return the boolean value of a setting, or the default if not set
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1") || value.equalsIgnoreCase("yes");
+    }
+}
@@ -0,0 +1,22 @@
+package mailserver;
+
+import java.io.OutputStream;
+
+/**
+ * An output stream that keeps nothing, only the number of bytes written
+ */
+class CountingOutputStream extends OutputStream {
+    private long mCount;
+
+    public void write(int b) {
+        mCount++;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        mCount += len;
+    }
+
+    long getCount() {
+        return mCount;
+    }
+}
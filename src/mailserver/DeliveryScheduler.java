@@ -0,0 +1,377 @@
+package mailserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Schedules delayed deliveries on a hierarchical timing wheel.
+ *
+ * One ticker thread advances the wheel and hands every expired task to a
+ * bounded pool of delivery workers. Scheduling and cancelling are O(1): new
+ * entries and cancellations are queued without locking and applied to the
+ * wheel by the ticker on its next tick. Entries due far in the future sit in
+ * the coarser levels and are cascaded down as their time approaches, so a
+ * task delayed for days is touched only a handful of times.
+ *
+ * In virtual clock mode there is no ticker thread and time only moves when
+ * advance() is called, so a benchmark can push a million deliveries through
+ * the wheel without waiting for real time to pass.
+ */
+public class DeliveryScheduler {
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+    private static final int MAX_TICK_BITS = 40;
+
+    private final long mTickMillis;
+    private final Bucket[][] mWheels;
+    private final int mBits;
+    private final int mMask;
+    private final long mMaxDelta;
+    private final Executor mWorkers;
+    private final boolean mVirtualClock;
+
+    private final Queue<Handle> mNewHandles = new ConcurrentLinkedQueue<Handle>();
+    private final Queue<Handle> mCancelledHandles = new ConcurrentLinkedQueue<Handle>();
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    private final long mStartNanos;
+    private volatile long mVirtualTime;
+    private long mTick; // only touched by the thread advancing the wheel
+    private volatile boolean mRunning;
+    private Thread mTicker;
+
+    /**
+     * Create a scheduler with the given tick length and slots per wheel level
+     * (rounded up to a power of two), dispatching expired tasks to the given
+     * workers
+     */
+    public DeliveryScheduler(long tickMillis, int wheelSize, Executor workers, boolean virtualClock) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        int bits = 1;
+        while ((1 << bits) < wheelSize) {
+            bits++;
+        }
+        int levels = (MAX_TICK_BITS + bits - 1) / bits;
+        mTickMillis = tickMillis;
+        mBits = bits;
+        mMask = (1 << bits) - 1;
+        mMaxDelta = (1L << (bits * levels)) - 1;
+        mWheels = new Bucket[levels][1 << bits];
+        for (int level = 0; level < levels; level++) {
+            for (int i = 0; i <= mMask; i++) {
+                mWheels[level][i] = new Bucket();
+            }
+        }
+        mWorkers = workers;
+        mVirtualClock = virtualClock;
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Create a scheduler configured from the mailserver.scheduler.* settings
+     */
+    public static DeliveryScheduler fromConfig() {
+        return new DeliveryScheduler(
+            Config.getLong("mailserver.scheduler.tickMillis", 100),
+            Config.getInt("mailserver.scheduler.wheelSize", 512),
+            WorkerThreads.newPool("delivery",
+                Config.getInt("mailserver.delivery.workers", 8),
+                Config.getInt("mailserver.delivery.maxConcurrent", 1000)),
+            Config.getBoolean("mailserver.scheduler.virtualClock", false));
+    }
+
+    /**
+     * Start the ticker thread (no-op in virtual clock mode)
+     */
+    public synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        if (mVirtualClock) {
+            return;
+        }
+        mTicker = new Thread(new Runnable() {
+            public void run() {
+                runTicker();
+            }
+        }, "delivery-scheduler");
+        mTicker.setDaemon(true);
+        mTicker.start();
+    }
+
+    /**
+     * Stop the ticker and the worker pool, dropping everything still pending
+     */
+    public synchronized void shutdown() {
+        mRunning = false;
+        if (mTicker != null) {
+            mTicker.interrupt();
+            mTicker = null;
+        }
+        if (mWorkers instanceof ExecutorService) {
+            ((ExecutorService) mWorkers).shutdown();
+        }
+    }
+
+    /**
+     * Schedule a task to run on a delivery worker after the given delay
+     */
+    public Handle schedule(Runnable task, long delayMillis) {
+        if (!mRunning) {
+            throw new IllegalStateException("Scheduler is not running");
+        }
+        Handle handle = new Handle(this, task, now() + Math.max(0, delayMillis));
+        mPending.incrementAndGet();
+        mNewHandles.add(handle);
+        return handle;
+    }
+
+    /**
+     * Return the number of tasks scheduled but not yet expired or cancelled
+     */
+    public int pendingCount() {
+        return mPending.get();
+    }
+
+    /**
+     * Return the scheduler time in milliseconds since it was created
+     */
+    public long now() {
+        if (mVirtualClock) {
+            return mVirtualTime;
+        }
+        return (System.nanoTime() - mStartNanos) / 1000000L;
+    }
+
+    /**
+     * Move the virtual clock forward, running every tick that falls due
+     * on the calling thread
+     */
+    public synchronized void advance(long millis) {
+        if (!mVirtualClock) {
+            throw new IllegalStateException("advance() is only allowed with a virtual clock");
+        }
+        long target = mVirtualTime + millis;
+        long deadline;
+        while ((deadline = (mTick + 1) * mTickMillis) <= target) {
+            mVirtualTime = deadline;
+            processTick();
+        }
+        mVirtualTime = target;
+    }
+
+    private void runTicker() {
+        while (mRunning) {
+            long deadline = (mTick + 1) * mTickMillis;
+            long sleepMillis = deadline - now();
+            if (sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    // woken up by shutdown()
+                }
+                continue;
+            }
+            try {
+                processTick();
+            } catch (Throwable t) {
+                Log.error("Delivery task failed", t);
+            }
+        }
+    }
+
+    private void processTick() {
+        removeCancelled();
+        transferNew();
+        int index = (int) (mTick & mMask);
+        if (index == 0 && mTick != 0) {
+            cascade(1);
+        }
+        mWheels[0][index].expireAll();
+        mTick++;
+    }
+
+    /**
+     * Move the entries of the current slot of a coarser level down into the
+     * finer levels, cascading the next level first when this one wraps
+     */
+    private void cascade(int level) {
+        if (level >= mWheels.length) {
+            return;
+        }
+        int index = (int) ((mTick >>> (mBits * level)) & mMask);
+        if (index == 0) {
+            cascade(level + 1);
+        }
+        Bucket bucket = mWheels[level][index];
+        Handle handle;
+        while ((handle = bucket.mHead) != null) {
+            bucket.remove(handle);
+            if (!handle.isCancelled()) {
+                insert(handle);
+            }
+        }
+    }
+
+    /**
+     * Put a handle into the slot matching its deadline
+     */
+    private void insert(Handle handle) {
+        long expireTick = Math.max(handle.mDeadline / mTickMillis, mTick);
+        long delta = Math.min(expireTick - mTick, mMaxDelta);
+        expireTick = mTick + delta;
+        int level = 0;
+        while (level < mWheels.length - 1 && delta >= (1L << (mBits * (level + 1)))) {
+            level++;
+        }
+        int index = (int) ((expireTick >>> (mBits * level)) & mMask);
+        mWheels[level][index].add(handle);
+    }
+
+    private void transferNew() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Handle handle = mNewHandles.poll();
+            if (handle == null) {
+                return;
+            }
+            if (!handle.isCancelled()) {
+                insert(handle);
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        Handle handle;
+        while ((handle = mCancelledHandles.poll()) != null) {
+            if (handle.mBucket != null) {
+                handle.mBucket.remove(handle);
+            }
+        }
+    }
+
+    private void dispatch(Handle handle) {
+        try {
+            mWorkers.execute(handle.mTask);
+        } catch (RejectedExecutionException e) {
+            Log.print("Delivery rejected by worker pool: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A scheduled task, which can be cancelled until it expires
+     */
+    public static final class Handle {
+        private static final int ST_WAITING = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Handle> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Handle.class, "mState");
+
+        private final DeliveryScheduler mScheduler;
+        private final Runnable mTask;
+        private final long mDeadline;
+        private volatile int mState = ST_WAITING;
+
+        // wheel bookkeeping, only touched by the thread advancing the wheel
+        private Bucket mBucket;
+        private Handle mPrev;
+        private Handle mNext;
+
+        Handle(DeliveryScheduler scheduler, Runnable task, long deadline) {
+            mScheduler = scheduler;
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * Cancel the task; returns false if it already expired or was cancelled
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_WAITING, ST_CANCELLED)) {
+                return false;
+            }
+            mScheduler.mPending.decrementAndGet();
+            mScheduler.mCancelledHandles.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return mState == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return mState == ST_EXPIRED;
+        }
+
+        /**
+         * Return the scheduler time at which the task falls due
+         */
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, ST_WAITING, ST_EXPIRED)) {
+                return;
+            }
+            mScheduler.mPending.decrementAndGet();
+            mScheduler.dispatch(this);
+        }
+    }
+
+    /**
+     * One slot of the wheel: a doubly linked list of handles
+     */
+    private static final class Bucket {
+        private Handle mHead;
+        private Handle mTail;
+
+        void add(Handle handle) {
+            handle.mBucket = this;
+            if (mHead == null) {
+                mHead = mTail = handle;
+            } else {
+                mTail.mNext = handle;
+                handle.mPrev = mTail;
+                mTail = handle;
+            }
+        }
+
+        void remove(Handle handle) {
+            Handle next = handle.mNext;
+            if (handle.mPrev != null) {
+                handle.mPrev.mNext = next;
+            }
+            if (next != null) {
+                next.mPrev = handle.mPrev;
+            }
+            if (handle == mHead) {
+                mHead = next;
+            }
+            if (handle == mTail) {
+                mTail = handle.mPrev;
+            }
+            handle.mPrev = null;
+            handle.mNext = null;
+            handle.mBucket = null;
+        }
+
+        /**
+         * Expire every handle in the slot
+         */
+        void expireAll() {
+            Handle handle;
+            while ((handle = mHead) != null) {
+                remove(handle);
+                handle.expire();
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package mailserver;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import org.xbill.DNS.*;
+// java.lang.Record on newer JDKs would make the wildcard ambiguous
+import org.xbill.DNS.Record;
+
+/**
+ * A cache of MX and A lookups in front of dnsjava.
+ *
+ * Answers are kept for their record TTL (clamped to a configured range),
+ * and "no such domain" / "no such record" answers for a fixed negative TTL.
+ * Concurrent lookups of the same name share one query. An entry that is
+ * still being used when most of its TTL has passed is refreshed in the
+ * background, so hot domains never wait on DNS again.
+ */
+public class DnsCache {
+    private static final double REFRESH_AT = 0.8;
+    // eviction makes room for this share of the entries at once, so a full
+    // cache does not scan all of them on every miss
+    private static final double EVICT_TO = 0.9;
+
+    private final long mMinTtlMillis;
+    private final long mMaxTtlMillis;
+    private final long mNegativeTtlMillis;
+    private final int mMaxEntries;
+
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> mInFlight =
+        new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+    private final ExecutorService mRefresher =
+        Executors.newFixedThreadPool(2, new NamedThreadFactory("dns-refresh", true));
+
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mNegativeHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+    private final LongAdder mCoalesced = new LongAdder();
+    private final LongAdder mRefreshes = new LongAdder();
+    private final LongAdder mErrors = new LongAdder();
+
+    public DnsCache() {
+        this(Config.getLong("mailserver.dns.minTtlSeconds", 5) * 1000,
+            Config.getLong("mailserver.dns.maxTtlSeconds", 3600) * 1000,
+            Config.getLong("mailserver.dns.negativeTtlSeconds", 60) * 1000,
+            Config.getInt("mailserver.dns.maxEntries", 100000));
+    }
+
+    public DnsCache(long minTtlMillis, long maxTtlMillis, long negativeTtlMillis, int maxEntries) {
+        mMinTtlMillis = minTtlMillis;
+        mMaxTtlMillis = maxTtlMillis;
+        mNegativeTtlMillis = negativeTtlMillis;
+        mMaxEntries = maxEntries;
+    }
+
+    /**
+     * Return the preferred mail server of the domain, or "" if it has none
+     */
+    public String lookupMx(String domain) {
+        String[] servers = resolve(domain, Type.MX).mValues;
+        return servers.length > 0 ? servers[0] : "";
+    }
+
+    /**
+     * Return whether the name has an address record
+     */
+    public boolean hasAddress(String name) {
+        return resolve(name, Type.A).mValues.length > 0;
+    }
+
+    /**
+     * Return when the cached answer for the name expires, or 0 if there is
+     * none, e.g. because its lookup failed
+     */
+    long expiresAt(String name, int type) {
+        Entry entry = mEntries.get(type + ":" + name.toLowerCase());
+        return entry != null ? entry.mExpiresAt : 0;
+    }
+
+    /**
+     * Return the cached answer, querying DNS on a miss or expiry
+     */
+    Entry resolve(String name, int type) {
+        String key = type + ":" + name.toLowerCase();
+        long now = System.currentTimeMillis();
+        Entry entry = mEntries.get(key);
+        if (entry != null && now < entry.mExpiresAt) {
+            if (entry.mValues.length == 0) {
+                mNegativeHits.increment();
+            } else {
+                mHits.increment();
+            }
+            if (now >= entry.mRefreshAt && !entry.mRefreshing) {
+                refreshInBackground(key, name, type, entry);
+            }
+            return entry;
+        }
+        mMisses.increment();
+        return load(key, name, type);
+    }
+
+    /**
+     * Query DNS, sharing the query with every other caller asking for the
+     * same name meanwhile
+     */
+    private Entry load(String key, String name, int type) {
+        CompletableFuture<Entry> mine = new CompletableFuture<Entry>();
+        CompletableFuture<Entry> running = mInFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            mCoalesced.increment();
+            return running.join();
+        }
+        try {
+            Entry entry = query(name, type);
+            if (entry.mExpiresAt > System.currentTimeMillis()) {
+                store(key, entry);
+            }
+            mine.complete(entry);
+            return entry;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            mInFlight.remove(key, mine);
+        }
+    }
+
+    private void refreshInBackground(final String key, final String name, final int type, Entry entry) {
+        entry.mRefreshing = true;
+        try {
+            mRefresher.execute(new Runnable() {
+                public void run() {
+                    mRefreshes.increment();
+                    load(key, name, type);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            entry.mRefreshing = false;
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        if (mEntries.size() >= mMaxEntries) {
+            evict();
+        }
+        mEntries.put(key, entry);
+    }
+
+    /**
+     * Drop expired entries, then arbitrary ones until the cache is down to
+     * EVICT_TO of its size
+     */
+    private void evict() {
+        int target = (int) (mMaxEntries * EVICT_TO);
+        long now = System.currentTimeMillis();
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().mExpiresAt <= now) {
+                it.remove();
+            }
+        }
+        it = mEntries.values().iterator();
+        while (mEntries.size() > target && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Run one uncached query
+     */
+    private Entry query(String name, int type) {
+        long now = System.currentTimeMillis();
+        try {
+            Lookup lookup = new Lookup(name, type, DClass.IN);
+            // our own cache decides what to keep, so dnsjava's must not
+            lookup.setCache(null);
+            Record[] records = lookup.run();
+            int result = lookup.getResult();
+
+            if (result == Lookup.SUCCESSFUL && records != null && records.length > 0) {
+                long ttl = Long.MAX_VALUE;
+                for (Record record : records) {
+                    ttl = Math.min(ttl, record.getTTL() * 1000);
+                }
+                ttl = Math.max(mMinTtlMillis, Math.min(mMaxTtlMillis, ttl));
+                return new Entry(values(records, type), now, ttl);
+            }
+            if (result == Lookup.HOST_NOT_FOUND || result == Lookup.TYPE_NOT_FOUND
+                    || result == Lookup.SUCCESSFUL) {
+                return new Entry(new String[0], now, mNegativeTtlMillis);
+            }
+            // TRY_AGAIN or UNRECOVERABLE: a network problem, do not remember it
+            Log.print("DNS lookup of " + name + " failed: " + lookup.getErrorString());
+            mErrors.increment();
+            return new Entry(new String[0], now, 0);
+        } catch (TextParseException e) {
+            mErrors.increment();
+            return new Entry(new String[0], now, mNegativeTtlMillis);
+        }
+    }
+
+    /**
+     * Return the answer values; mail servers are sorted by priority
+     */
+    private static String[] values(Record[] records, int type) {
+        if (type == Type.MX) {
+            Record[] matching = new Record[records.length];
+            int n = 0;
+            for (Record record : records) {
+                if (record instanceof MXRecord) {
+                    matching[n++] = record;
+                }
+            }
+            MXRecord[] mx = Arrays.copyOf(matching, n, MXRecord[].class);
+            Arrays.sort(mx, new Comparator<MXRecord>() {
+                public int compare(MXRecord a, MXRecord b) {
+                    return a.getPriority() - b.getPriority();
+                }
+            });
+            String[] servers = new String[n];
+            for (int i = 0; i < n; i++) {
+                servers[i] = mx[i].getTarget().toString();
+            }
+            return servers;
+        }
+        String[] values = new String[records.length];
+        for (int i = 0; i < records.length; i++) {
+            values[i] = records[i].rdataToString();
+        }
+        return values;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    public long getNegativeHits() {
+        return mNegativeHits.sum();
+    }
+
+    public long getMisses() {
+        return mMisses.sum();
+    }
+
+    public long getCoalesced() {
+        return mCoalesced.sum();
+    }
+
+    public long getRefreshes() {
+        return mRefreshes.sum();
+    }
+
+    public long getErrors() {
+        return mErrors.sum();
+    }
+
+    /**
+     * Return the statistics as a JSON object
+     */
+    public String statsJson() {
+        return "{\"entries\":" + size()
+            + ",\"hits\":" + getHits()
+            + ",\"negativeHits\":" + getNegativeHits()
+            + ",\"misses\":" + getMisses()
+            + ",\"coalesced\":" + getCoalesced()
+            + ",\"refreshes\":" + getRefreshes()
+            + ",\"errors\":" + getErrors() + "}";
+    }
+
+    /**
+     * One cached answer; no values means a negative answer
+     */
+    static final class Entry {
+        final String[] mValues;
+        final long mExpiresAt;
+        final long mRefreshAt;
+        volatile boolean mRefreshing;
+
+        Entry(String[] values, long now, long ttlMillis) {
+            mValues = values;
+            mExpiresAt = now + ttlMillis;
+            mRefreshAt = now + (long) (ttlMillis * REFRESH_AT);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package mailserver;
+
+/**
+ * Tracks whether a mail server can be reached.
+ *
+ * After a number of consecutive connection failures the breaker opens and
+ * no delivery to the server is attempted for a while; the emails falling
+ * due meanwhile are parked instead of tying up workers. When the time is
+ * up, one batch is let through as a probe: if it connects the breaker
+ * closes, otherwise it opens again for twice as long, up to a maximum.
+ */
+public class DomainCircuitBreaker {
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String mName;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final long mMaxOpenMillis;
+
+    private State mState = State.CLOSED;
+    private int mFailures;
+    private long mCurrentOpenMillis;
+    private long mRetryAt;
+
+    public DomainCircuitBreaker(String name) {
+        this(name,
+            Config.getInt("mailserver.breaker.failureThreshold", 5),
+            Config.getLong("mailserver.breaker.openMillis", 30000),
+            Config.getLong("mailserver.breaker.maxOpenMillis", 600000));
+    }
+
+    public DomainCircuitBreaker(String name, int failureThreshold, long openMillis, long maxOpenMillis) {
+        mName = name;
+        mFailureThreshold = Math.max(1, failureThreshold);
+        mOpenMillis = openMillis;
+        mMaxOpenMillis = Math.max(openMillis, maxOpenMillis);
+        mCurrentOpenMillis = openMillis;
+    }
+
+    /**
+     * Return whether a delivery may be attempted now
+     */
+    public synchronized boolean allowRequest() {
+        if (mState == State.OPEN && System.currentTimeMillis() >= mRetryAt) {
+            mState = State.HALF_OPEN;
+            Log.print("Probing " + mName + " again");
+        }
+        return mState != State.OPEN;
+    }
+
+    public synchronized void onSuccess() {
+        if (mState != State.CLOSED) {
+            Log.print(mName + " is reachable again");
+        }
+        mState = State.CLOSED;
+        mFailures = 0;
+        mCurrentOpenMillis = mOpenMillis;
+    }
+
+    public synchronized void onFailure() {
+        mFailures++;
+        if (mState == State.HALF_OPEN) {
+            // the probe failed: back off further
+            mCurrentOpenMillis = Math.min(mMaxOpenMillis, mCurrentOpenMillis * 2);
+            open();
+        } else if (mState == State.CLOSED && mFailures >= mFailureThreshold) {
+            open();
+        }
+    }
+
+    private void open() {
+        mState = State.OPEN;
+        mRetryAt = System.currentTimeMillis() + mCurrentOpenMillis;
+        Log.print("Parking deliveries to " + mName + " for " + mCurrentOpenMillis / 1000
+            + " seconds after " + mFailures + " failures");
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Return when the next probe is allowed, in epoch millis
+     */
+    public synchronized long getRetryAt() {
+        return mRetryAt;
+    }
+}
@@ -0,0 +1,86 @@
+package mailserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The outcome of checking recipient domains: the mail server each one
+ * uses, or why it cannot receive email.
+ *
+ * Most emails go to a few domains, so a domain seen recently is not
+ * looked up again. A verdict is kept only as long as the DNS answers it
+ * came from, and never after a failed lookup. The least recently used
+ * domains make room for new ones.
+ */
+final class DomainVerdicts {
+
+    /**
+     * What the check of one domain found
+     */
+    static final class Verdict {
+        final String smtpServer;
+        final String error;
+        final long expiresAt;
+
+        Verdict(String smtpServer, String error, long expiresAt) {
+            this.smtpServer = smtpServer;
+            this.error = error;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Verdict> mVerdicts;
+    private final LongAdder mHits = new LongAdder();
+    private final LongAdder mMisses = new LongAdder();
+
+    DomainVerdicts() {
+        this(Config.getInt("mailserver.validation.domainCacheSize", 10000));
+    }
+
+    DomainVerdicts(final int capacity) {
+        mVerdicts = new LinkedHashMap<String, Verdict>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Verdict> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the verdict on the lower-case domain, or null if there is none
+     * still valid
+     */
+    synchronized Verdict get(String domain) {
+        Verdict verdict = mVerdicts.get(domain);
+        if (verdict != null) {
+            if (System.currentTimeMillis() < verdict.expiresAt) {
+                mHits.increment();
+                return verdict;
+            }
+            mVerdicts.remove(domain);
+        }
+        mMisses.increment();
+        return null;
+    }
+
+    /**
+     * Remember the verdict on the lower-case domain until it expires
+     */
+    synchronized void put(String domain, Verdict verdict) {
+        if (verdict.expiresAt > System.currentTimeMillis()) {
+            mVerdicts.put(domain, verdict);
+        }
+    }
+
+    synchronized int size() {
+        return mVerdicts.size();
+    }
+
+    long getHits() {
+        return mHits.sum();
+    }
+
+    long getMisses() {
+        return mMisses.sum();
+    }
+}
@@ -1,18 +1,31 @@
 package mailserver;
 
-import java.util.*;
-import java.text.SimpleDateFormat;
-import java.text.DateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * An email waiting to be sent. Times are kept as epoch millis and only
+ * formatted when shown; see MessageBody for how the text is kept.
+ */
 public class Email {
+    private static final AtomicLong sNextId = new AtomicLong(1);
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    final long id;
     int delayTime; // delay time in second
     String source;
     String dest;
     String subject;
     String smtpServer;
-    String message;
-    String submittedTime;
-    String sendTime;
+    MessageBody body;
+    long submittedTimeMillis;
+    long sendTimeMillis;
+    volatile EmailState state = EmailState.QUEUED;
+    volatile String error; // why the email was rejected or failed
+    int attempts; // failed delivery attempts so far
 
     public Email(String source, 
                     String dest, 
@@ -20,31 +33,77 @@ public class Email {
                     String smtpServer, 
                     int delayTime,
                     String message) {
+    	this.id = sNextId.getAndIncrement();
     	this.source = source;
     	this.dest = dest;
     	this.subject = subject;
     	this.smtpServer = smtpServer;
     	this.delayTime = delayTime;
-    	this.message = message.trim();
+    	this.body = MessageBody.of(message.trim());
+    	this.submittedTimeMillis = System.currentTimeMillis();
+    	this.sendTimeMillis = this.submittedTimeMillis + delayTime*1000L;
+    }
+
+    /**
+     * Restore an email read back from the spool
+     */
+    Email(long id,
+            String source,
+            String dest,
+            String subject,
+            String smtpServer,
+            int delayTime,
+            MessageBody body,
+            long submittedTimeMillis,
+            long sendTimeMillis) {
+        this.id = id;
+        this.source = source;
+        this.dest = dest;
+        this.subject = subject;
+        this.smtpServer = smtpServer;
+        this.delayTime = delayTime;
+        this.body = body;
+        this.submittedTimeMillis = submittedTimeMillis;
+        this.sendTimeMillis = sendTimeMillis;
+        // new emails must not reuse the ids of restored ones
+        long next;
+        while ((next = sNextId.get()) <= id && !sNextId.compareAndSet(next, id + 1)) {
+            // retry
+        }
+    }
+
+    /**
+     * Move the send time, e.g. to try again later
+     */
+    void setSendTime(long sendTimeMillis) {
+        this.sendTimeMillis = sendTimeMillis;
+    }
+
+    /**
+     * Return the text, inflated if it was kept deflated
+     */
+    String getMessage() {
+        return body.text();
+    }
+
+    String getSubmittedTime() {
+        return formatTime(submittedTimeMillis);
+    }
+
+    String getSendTime() {
+        return formatTime(sendTimeMillis);
+    }
 
-    	// get current time
-    	Calendar cal = Calendar.getInstance();
-		//cal.add(Calendar.DATE, 1);
-		Date date = cal.getTime(); 
-		// get submitted time
-    	DateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss");
-    	this.submittedTime = dateFormat.format(date);
-    	// get send time
-    	date.setTime(cal.getTimeInMillis() + delayTime*1000);
-    	this.sendTime = dateFormat.format(date);
+    static String formatTime(long millis) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(millis));
     }
 
     public String toString() {
     	return "From: " + source + "\r\n"
     			+ "To: " + dest + "\r\n"
     			+ "Subject: " + subject + "\r\n"
-    			+ "Submitted time: " + submittedTime + "\r\n"
-    			+ "Sent time: " + sendTime + "\r\n"
-    			+ "\r\nContent: \r\n" + message + "\r\n";
+    			+ "Submitted time: " + getSubmittedTime() + "\r\n"
+    			+ "Sent time: " + getSendTime() + "\r\n"
+    			+ "\r\nContent: \r\n" + getMessage() + "\r\n";
     }
 }
\ No newline at end of file
@@ -3,22 +3,199 @@ package mailserver;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 import org.xbill.DNS.*;
  
 /**
  * The class for composing email
  */
 public class EmailAgent extends Thread{
+
+    /**
+     * Told about every change of the pending emails: "validating" (accepted
+     * while its mail server is checked), "enqueued", "sending", "deferred",
+     * "delivered", "failed" and "removed". Called on the thread
+     * making the change, so it must not block.
+     */
+    public interface StatusListener {
+        void onStatus(String event, Email email);
+    }
+
     private static final String HELO_DOMAIN = "localhost.com";
+    private static final boolean ASYNC_COMPOSE = Config.getBoolean("mailserver.compose.async", false);
+    private static final int RECENT_CAPACITY = Config.getInt("mailserver.status.recentEmails", 10000);
+    // a merged message cannot name each recipient in its To header
+    private static final boolean MERGE_RECIPIENTS = Config.getBoolean("mailserver.smtp.mergeRecipients", false);
+    private static final int MAX_RECIPIENTS = Config.getInt("mailserver.smtp.maxRecipients", 100);
+    private static final int MAX_SESSIONS_PER_HOST = Math.max(1, Config.getInt("mailserver.smtp.maxSessionsPerHost", 8));
+    private static final boolean DIGEST_CONFIRMATIONS =
+        Config.getString("mailserver.confirm.mode", "immediate").equalsIgnoreCase("digest");
+    private static final long DIGEST_WINDOW_MILLIS = Config.getLong("mailserver.confirm.digestWindowSeconds", 60) * 1000;
+    private static final int DIGEST_MAX_OUTCOMES = Math.max(1, Config.getInt("mailserver.confirm.digestMaxOutcomes", 1000));
 
-    private List<Email> mEmailList;
+    private static final LatencyHistogram MX_LOOKUP_TIME = Metrics.histogram("mailserver_dns_lookup_seconds",
+        "Time to look up a mail server or address, cache hits included", "type=\"mx\"");
+    private static final LatencyHistogram A_LOOKUP_TIME = Metrics.histogram("mailserver_dns_lookup_seconds",
+        "Time to look up a mail server or address, cache hits included", "type=\"a\"");
+    private static final LatencyHistogram SEND_LAG = Metrics.histogram("mailserver_send_lag_seconds",
+        "How late deliveries start compared to the send time of the email", "");
+
+    private PendingQueue mQueue;
+    private DeliveryScheduler mScheduler;
+    private DnsCache mDnsCache;
+    private DomainVerdicts mVerdicts = new DomainVerdicts();
+    private ExecutorService mValidators;
+    // emails that recently left the queue, so their outcome can still be looked up
+    private Map<Long, Email> mRecent;
+    private SmtpConnectionPool mPool;
+    private MailSpool mSpool;
+    private RetryPolicy mRetryPolicy = new RetryPolicy();
+    private ConcurrentHashMap<String, HostQueue> mHostQueues = new ConcurrentHashMap<String, HostQueue>();
+    private final List<StatusListener> mListeners = new CopyOnWriteArrayList<StatusListener>();
+    // outcomes collected for a digest confirmation, by lower-case sender
+    private final ConcurrentHashMap<String, Digest> mDigests = new ConcurrentHashMap<String, Digest>();
 
     public EmailAgent() {
-        mEmailList = new ArrayList<Email>();
+        this(DeliveryScheduler.fromConfig());
+    }
+
+    public EmailAgent(DeliveryScheduler scheduler) {
+        mQueue = new PendingQueue();
+        mScheduler = scheduler;
+        mScheduler.start();
+        mDnsCache = new DnsCache();
+        mPool = new SmtpConnectionPool(HELO_DOMAIN);
+        mValidators = WorkerThreads.newPool("compose",
+            Config.getInt("mailserver.compose.workers", 4),
+            Config.getInt("mailserver.compose.maxConcurrent", 1000));
+        mRecent = Collections.synchronizedMap(new LinkedHashMap<Long, Email>() {
+            protected boolean removeEldestEntry(Map.Entry<Long, Email> eldest) {
+                return size() > RECENT_CAPACITY;
+            }
+        });
+        mSpool = MailSpool.fromConfig();
+        recoverSpool();
+        registerMetrics();
+    }
+
+    /**
+     * Publish the sizes of the queues and caches as metrics
+     */
+    private void registerMetrics() {
+        Metrics.gauge("mailserver_queue_emails", "Emails waiting to be sent", "", new Metrics.Gauge() {
+            public double value() {
+                return mQueue.size();
+            }
+        });
+        Metrics.gauge("mailserver_scheduler_tasks", "Deliveries scheduled, retries and confirmations included",
+            "", new Metrics.Gauge() {
+                public double value() {
+                    return mScheduler.pendingCount();
+                }
+            });
+        Metrics.gauge("mailserver_smtp_idle_sessions", "Open SMTP sessions waiting for reuse", "",
+            new Metrics.Gauge() {
+                public double value() {
+                    return mPool.idleCount();
+                }
+            });
+        if (mSpool != null) {
+            Metrics.gauge("mailserver_spool_emails", "Emails in the spool", "", new Metrics.Gauge() {
+                public double value() {
+                    return mSpool.size();
+                }
+            });
+        }
+        Metrics.gauge("mailserver_dns_cache_entries", "Cached DNS answers", "", new Metrics.Gauge() {
+            public double value() {
+                return mDnsCache.size();
+            }
+        });
+        Metrics.counter("mailserver_dns_cache_hits_total", "DNS lookups answered from the cache", "",
+            new Metrics.Gauge() {
+                public double value() {
+                    return mDnsCache.getHits() + mDnsCache.getNegativeHits();
+                }
+            });
+        Metrics.counter("mailserver_dns_cache_misses_total", "DNS lookups that went to the network", "",
+            new Metrics.Gauge() {
+                public double value() {
+                    return mDnsCache.getMisses();
+                }
+            });
+        Metrics.gauge("mailserver_confirm_digests", "Senders whose outcomes are being collected for a digest", "",
+            new Metrics.Gauge() {
+                public double value() {
+                    return mDigests.size();
+                }
+            });
+        Metrics.gauge("mailserver_domain_cache_entries", "Recipient domains with a cached verdict", "",
+            new Metrics.Gauge() {
+                public double value() {
+                    return mVerdicts.size();
+                }
+            });
+        Metrics.counter("mailserver_domain_cache_hits_total", "Recipient domains checked without DNS lookups", "",
+            new Metrics.Gauge() {
+                public double value() {
+                    return mVerdicts.getHits();
+                }
+            });
+        Metrics.counter("mailserver_domain_cache_misses_total", "Recipient domains that had to be looked up", "",
+            new Metrics.Gauge() {
+                public double value() {
+                    return mVerdicts.getMisses();
+                }
+            });
+    }
+
+    /**
+     * Put the emails left in the spool by the previous run back in the
+     * queue and schedule them again
+     */
+    private void recoverSpool() {
+        if (mSpool == null) {
+            return;
+        }
+        // sent before the restart, but not confirmed yet
+        final List<Email> outcomes = new ArrayList<Email>();
+        try {
+            mSpool.recover(new MailSpool.Visitor() {
+                public void visit(Email email, boolean needConfirm) {
+                    if (email.state == EmailState.DELIVERED || email.state == EmailState.FAILED) {
+                        outcomes.add(email);
+                        return;
+                    }
+                    if (needConfirm && email.smtpServer.equals("")) {
+                        // accepted before its mail server was looked up
+                        email.state = EmailState.VALIDATING;
+                        addToQueue(email);
+                        validateLater(email);
+                        return;
+                    }
+                    if (needConfirm) {
+                        // confirmations were never in the queue
+                        addToQueue(email);
+                    }
+                    schedule(email, needConfirm);
+                }
+            });
+        } catch (IOException e) {
+            Log.error("Unable to recover the spool, emails will not survive a restart", e);
+            mSpool = null;
+        }
+        // confirmations wait for the spool, which syncs only once it is recovered
+        for (Email email : outcomes) {
+            addOutcome(email);
+        }
     }
 
     /**
@@ -30,12 +207,21 @@ public class EmailAgent extends Thread{
                                 String smtpServer, 
                                 String delayTime,
                                 String message) {
-        // find the smtp of the recipient if not given
-        if (smtpServer.equals("")) {
-            smtpServer = getSmtpServer(dest);
+        if (ASYNC_COMPOSE) {
+            return composeEmailAsync(source, dest, subject, smtpServer, delayTime, message);
         }
         // validate data
-        String error = validateData(source, dest, subject, smtpServer, delayTime, message);
+        String error = validateInput(source, dest, delayTime);
+        if (error == null) {
+            // find the smtp of the recipient if not given
+            if (smtpServer.equals("")) {
+                DomainVerdicts.Verdict verdict = checkRecipientDomain(dest);
+                smtpServer = verdict.smtpServer;
+                error = verdict.error;
+            } else {
+                error = validateServer(smtpServer);
+            }
+        }
 
         // if there is error
         if (error != null) {
@@ -53,6 +239,192 @@ public class EmailAgent extends Thread{
         return "The email will be sent in " + delayTime + " seconds";
     }
 
+    /**
+     * Accept an email after the cheap checks only. Its mail server is looked
+     * up and checked afterwards; if that fails, the email is rejected and
+     * its state can be seen in the status API under the returned id.
+     */
+    private String composeEmailAsync(String source, 
+                                    String dest, 
+                                    String subject, 
+                                    String smtpServer, 
+                                    String delayTime,
+                                    String message) {
+        String error = validateInput(source, dest, delayTime);
+        if (error != null) {
+            Log.print("Error: " + error);
+            return error;
+        }
+
+        // a recipient domain checked recently needs no lookups
+        DomainVerdicts.Verdict known = smtpServer.equals("") ? mVerdicts.get(recipientDomain(dest)) : null;
+        if (known != null && known.error != null) {
+            Log.print("Error: " + known.error);
+            return known.error;
+        }
+
+        final Email email = new Email(source, dest, subject, smtpServer, Integer.parseInt(delayTime), message);
+        if (known != null) {
+            email.smtpServer = known.smtpServer;
+            addToQueue(email);
+            setSendingEmailTimer(email, true);
+            return "The email has been accepted with tracking id " + email.id 
+                + " and will be sent in " + delayTime + " seconds";
+        }
+        email.state = EmailState.VALIDATING;
+        addToQueue(email);
+        // the email is acknowledged now, so it must survive a restart now
+        spool(email, true);
+        validateLater(email);
+
+        return "The email has been accepted with tracking id " + email.id 
+            + " and will be sent in " + delayTime + " seconds";
+    }
+
+    /**
+     * Look up and check the mail server of an email that was accepted and
+     * spooled before, then schedule it, or reject it if the check fails
+     */
+    private void validateLater(final Email email) {
+        final String smtpServer = email.smtpServer;
+        CompletableFuture
+            .supplyAsync(new Supplier<String>() {
+                public String get() {
+                    if (!smtpServer.equals("")) {
+                        return validateServer(smtpServer);
+                    }
+                    DomainVerdicts.Verdict verdict = checkRecipientDomain(email.dest);
+                    email.smtpServer = verdict.smtpServer;
+                    return verdict.error;
+                }
+            }, mValidators)
+            .whenComplete(new BiConsumer<String, Throwable>() {
+                public void accept(String validationError, Throwable failure) {
+                    if (failure != null) {
+                        Log.error("Unable to validate email " + email.id, failure);
+                        validationError = "Unable to validate the email";
+                    }
+                    if (validationError != null) {
+                        reject(email, validationError);
+                        return;
+                    }
+                    email.state = EmailState.QUEUED;
+                    publishIfQueued("enqueued", email);
+                    schedule(email, true);
+                }
+            });
+    }
+
+    /**
+     * Compose the emails of a batch of bulk rows, setting the email or the
+     * error of each row. The rows are checked in parallel, checking each
+     * recipient domain and each mail server only once, and the accepted
+     * emails are queued and spooled together with a single wait for the
+     * disk.
+     */
+    public void composeBatch(List<BulkReader.Row> rows) {
+        Map<String, CompletableFuture<DomainVerdicts.Verdict>> domainChecks =
+            new HashMap<String, CompletableFuture<DomainVerdicts.Verdict>>();
+        Map<String, CompletableFuture<DomainVerdicts.Verdict>> serverChecks =
+            new HashMap<String, CompletableFuture<DomainVerdicts.Verdict>>();
+        List<CompletableFuture<DomainVerdicts.Verdict>> verdicts =
+            new ArrayList<CompletableFuture<DomainVerdicts.Verdict>>(rows.size());
+
+        for (BulkReader.Row row : rows) {
+            if (row.error == null) {
+                row.error = validateInput(row.from, row.to, row.delayTime);
+            }
+            if (row.error != null) {
+                verdicts.add(null);
+                continue;
+            }
+            CompletableFuture<DomainVerdicts.Verdict> verdict;
+            if (row.smtpServer.equals("")) {
+                final String dest = row.to;
+                String domain = recipientDomain(dest);
+                verdict = domainChecks.get(domain);
+                if (verdict == null) {
+                    DomainVerdicts.Verdict known = mVerdicts.get(domain);
+                    verdict = known != null ? CompletableFuture.completedFuture(known)
+                        : CompletableFuture.supplyAsync(new Supplier<DomainVerdicts.Verdict>() {
+                            public DomainVerdicts.Verdict get() {
+                                return checkRecipientDomain(dest);
+                            }
+                        }, mValidators);
+                    domainChecks.put(domain, verdict);
+                }
+            } else {
+                final String server = row.smtpServer;
+                verdict = serverChecks.get(server.toLowerCase());
+                if (verdict == null) {
+                    verdict = CompletableFuture.supplyAsync(new Supplier<DomainVerdicts.Verdict>() {
+                        public DomainVerdicts.Verdict get() {
+                            return new DomainVerdicts.Verdict(server, validateServer(server), 0);
+                        }
+                    }, mValidators);
+                    serverChecks.put(server.toLowerCase(), verdict);
+                }
+            }
+            verdicts.add(verdict);
+        }
+
+        List<Email> accepted = new ArrayList<Email>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            BulkReader.Row row = rows.get(i);
+            if (row.error != null) {
+                continue;
+            }
+            DomainVerdicts.Verdict verdict;
+            try {
+                verdict = verdicts.get(i).join();
+            } catch (RuntimeException e) {
+                Log.error("Unable to validate bulk row " + row.number, e);
+                row.error = "Unable to validate the email";
+                continue;
+            }
+            row.error = verdict.error;
+            if (row.error == null) {
+                row.email = new Email(row.from, row.to, row.subject, verdict.smtpServer,
+                    Integer.parseInt(row.delayTime), row.message);
+                accepted.add(row.email);
+            }
+        }
+
+        for (Email email : accepted) {
+            addToQueue(email);
+        }
+        if (mSpool != null && !accepted.isEmpty()) {
+            try {
+                mSpool.addAll(accepted, true);
+            } catch (IOException e) {
+                Log.warn("Unable to spool " + accepted.size() + " emails, they will not survive a restart: " + e);
+            }
+        }
+        for (Email email : accepted) {
+            schedule(email, true);
+        }
+        Log.print("Composed a batch of " + rows.size() + " emails: " + accepted.size() + " accepted, "
+            + (rows.size() - accepted.size()) + " rejected, " + domainChecks.size() + " recipient domains");
+    }
+
+    /**
+     * Take an accepted email out of the queue because it failed validation
+     */
+    private void reject(Email email, String error) {
+        Log.print("Rejected email " + email.id + ": " + error);
+        email.error = error;
+        email.state = EmailState.REJECTED;
+        removeFromQueue(email);
+    }
+
+    /**
+     * Return the email with the given id, pending or recently finished
+     */
+    public Email findEmail(long id) {
+        Email email = mQueue.get(id);
+        return email != null ? email : mRecent.get(id);
+    }
+
     /*!
      * Send confirmation email
      */
@@ -72,21 +444,174 @@ public class EmailAgent extends Thread{
             "server@kth.se",
             email.source,
             subject,
-            getSmtpServer(email.source),
+            checkRecipientDomain(email.source).smtpServer,
             0,
             message);
         setSendingEmailTimer(confirmEmail, false);
     }
 
+    /**
+     * Send one confirmation for the outcomes of several emails of a sender
+     */
+    private void composeDigestEmail(String source, List<Email> outcomes) {
+        int delivered = 0;
+        StringBuilder report = new StringBuilder(outcomes.size() * 128);
+        for (Email email : outcomes) {
+            boolean success = email.state == EmailState.DELIVERED;
+            if (success) {
+                delivered++;
+            }
+            report.append(success ? "Delivered" : "Not delivered")
+                .append(": ").append(email.dest)
+                .append(" \"").append(email.subject).append("\"")
+                .append(", sent ").append(email.getSendTime());
+            if (!success && email.error != null) {
+                report.append(" - ").append(email.error);
+            }
+            report.append("\r\n");
+        }
+        String subject = "Delivery report: " + delivered + " of " + outcomes.size() + " emails delivered";
+        String message = "Your emails have been processed !!!\r\n\r\n" + report;
+
+        Email confirmEmail = new Email(
+            "server@kth.se",
+            source,
+            subject,
+            checkRecipientDomain(source).smtpServer,
+            0,
+            message);
+        setSendingEmailTimer(confirmEmail, false);
+    }
+
+    /**
+     * Confirm the outcome of an email: at once, or in the digest of its
+     * sender, which is sent when it is full or its window has passed.
+     * Composing a confirmation may look up the sender's mail server, so
+     * this runs on the compose pool, never while a session is borrowed.
+     */
+    private void addOutcome(Email email) {
+        if (!DIGEST_CONFIRMATIONS) {
+            composeConfirmationEmail(email, email.state == EmailState.DELIVERED);
+            if (mSpool != null) {
+                mSpool.done(email);
+            }
+            return;
+        }
+        String sender = email.source.toLowerCase(Locale.ROOT);
+        while (true) {
+            Digest digest = mDigests.get(sender);
+            if (digest == null) {
+                digest = new Digest(sender, email.source);
+                Digest running = mDigests.putIfAbsent(sender, digest);
+                if (running != null) {
+                    digest = running;
+                } else {
+                    digest.mTimer = mScheduler.schedule(digest, DIGEST_WINDOW_MILLIS);
+                }
+            }
+            int size = digest.add(email);
+            if (size < 0) {
+                // closed meanwhile, so the next one takes it
+                continue;
+            }
+            if (size >= DIGEST_MAX_OUTCOMES) {
+                digest.send();
+            }
+            return;
+        }
+    }
+
     /*!
      * Set the timer to send email
      */
     private void setSendingEmailTimer(Email email, boolean needConfirm) {
-        Log.print("Creating a timer for: " + email.subject);
+        Log.debug("Scheduling delivery of: " + email.subject);
+        spool(email, needConfirm);
+        schedule(email, needConfirm);
+    }
+
+    /**
+     * Write the email to the spool, if there is one
+     */
+    private void spool(Email email, boolean needConfirm) {
+        if (mSpool != null) {
+            try {
+                mSpool.add(email, needConfirm);
+            } catch (IOException e) {
+                Log.warn("Unable to spool email " + email.id + ", it will not survive a restart: " + e);
+            }
+        }
+    }
+
+    /*!
+     * Schedule the delivery of an email at its send time
+     */
+    private void schedule(Email email, boolean needConfirm) {
         ComposeEmailAction action = new ComposeEmailAction(email, needConfirm);
 
-        Timer timer = new Timer();
-        timer.schedule(action, 1000*email.delayTime);
+        long delay = Math.max(0, email.sendTimeMillis - System.currentTimeMillis());
+        mScheduler.schedule(action, delay);
+    }
+
+    /*!
+     * Move an email that is due to a later send time and schedule it again.
+     * The spool only records the new send time, without waiting for the
+     * disk, since this runs in the middle of delivering to its server.
+     */
+    private void reschedule(Email email, long sendTimeMillis, boolean needConfirm) {
+        // the queue is ordered by send time, so the email must be put back in its new place
+        boolean queued = mQueue.remove(email.id) != null;
+        email.setSendTime(sendTimeMillis);
+        if (queued) {
+            mQueue.add(email);
+        }
+        if (mSpool != null) {
+            mSpool.reschedule(email);
+        }
+        schedule(email, needConfirm);
+    }
+
+    /*!
+     * Return the spool, or null if emails are not spooled
+     */
+    public MailSpool getSpool() {
+        return mSpool;
+    }
+
+    /*!
+     * Return the scheduler driving the deliveries
+     */
+    public DeliveryScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Return the lower-case domain of a valid address
+     */
+    private static String recipientDomain(String email) {
+        return email.substring(email.lastIndexOf('@') + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Return the mail server of the recipient's domain and the error if it
+     * cannot be used, from the domain's last verdict if it is still valid
+     */
+    private DomainVerdicts.Verdict checkRecipientDomain(String dest) {
+        String domain = recipientDomain(dest);
+        DomainVerdicts.Verdict verdict = mVerdicts.get(domain);
+        if (verdict != null) {
+            return verdict;
+        }
+        String server = getSmtpServer(dest);
+        String error = validateServer(server);
+        // valid while the answers it came from are cached
+        long expiresAt = mDnsCache.expiresAt(AddressValidator.toAscii(domain), Type.MX);
+        if (!server.equals("")) {
+            expiresAt = Math.min(expiresAt, mDnsCache.expiresAt(server, Type.A));
+        }
+        verdict = new DomainVerdicts.Verdict(server, error, expiresAt);
+        mVerdicts.put(domain, verdict);
+        return verdict;
     }
 
     /*!
@@ -94,23 +619,15 @@ public class EmailAgent extends Thread{
      */
     private String getSmtpServer(String email) {
         try {
-            String domain = email.substring(email.indexOf("@")+1);
-            Log.print("Looking up SMTP server for domain: " + domain);
-            Record[] records = new Lookup(domain, Type.MX).run();
-
-            int minPriority = Integer.MAX_VALUE;            
-            String mailServer = "";
-            for (int i = 0; i < records.length; i++) {
-                MXRecord mx = (MXRecord) records[i];
-                if (mx.getPriority() < minPriority) {
-                    mailServer = mx.getTarget().toString();
-                    minPriority = mx.getPriority();
-                }
-            }
-            Log.print("SMTP server of: " + domain + " is: " + mailServer);
+            String domain = AddressValidator.toAscii(email.substring(email.lastIndexOf('@') + 1));
+            Log.debug("Looking up SMTP server for domain: " + domain);
+            long start = System.nanoTime();
+            String mailServer = mDnsCache.lookupMx(domain);
+            MX_LOOKUP_TIME.recordSince(start);
+            Log.debug("SMTP server of: " + domain + " is: " + mailServer);
             return mailServer;
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Unable to look up the SMTP server of " + email, e);
         }
         return "";
     }
@@ -120,45 +637,95 @@ public class EmailAgent extends Thread{
      */
     public boolean isDomainExist(String domainName) {
         try {
-            Lookup lookup = new Lookup(domainName, Type.A, DClass.IN);  
-            lookup.run();  
-            return (lookup.getResult() == Lookup.SUCCESSFUL);
+            long start = System.nanoTime();
+            boolean exists = mDnsCache.hasAddress(domainName);
+            A_LOOKUP_TIME.recordSince(start);
+            return exists;
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Unable to look up " + domainName, e);
         }
         return false;
     }
 
+    /*!
+     * Return the cache of DNS answers
+     */
+    public DnsCache getDnsCache() {
+        return mDnsCache;
+    }
+
+    public void addStatusListener(StatusListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeStatusListener(StatusListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void publish(String event, Email email) {
+        for (StatusListener listener : mListeners) {
+            listener.onStatus(event, email);
+        }
+    }
+
+    /**
+     * Publish a change of an email in the queue; confirmations are sent
+     * without being queued and are left out
+     */
+    private void publishIfQueued(String event, Email email) {
+        if (!mListeners.isEmpty() && mQueue.get(email.id) != null) {
+            publish(event, email);
+        }
+    }
+
     /**
      * Add an email to the queue
      */
-    private synchronized void addToQueue(Email email) {
-        mEmailList.add(email);
+    private void addToQueue(Email email) {
+        mQueue.add(email);
+        // one still being checked is announced again once it is queued
+        publish(email.state == EmailState.VALIDATING ? "validating" : "enqueued", email);
+    }
+
+    /**
+     * Remove an email from the queue and the spool
+     */
+    private void removeFromQueue(Email email) {
+        removeFromQueue(email, true);
     }
 
     /**
-     * Remove an email from the queue
+     * Remove an email from the queue, and from the spool unless its outcome
+     * stays there until it is confirmed
      */
-    private synchronized void removeFromQueue(Email email) {
-        mEmailList.remove(email);
+    private void removeFromQueue(Email email, boolean unspool) {
+        if (mQueue.remove(email.id) != null) {
+            mRecent.put(email.id, email);
+            publish("removed", email);
+        }
+        if (mSpool != null && unspool) {
+            mSpool.done(email);
+        }
     }
 
     /*!
-     * Return the email list
+     * Return a copy of the pending emails in send-time order
      */
     public List<Email> getEmailList() {
-        return mEmailList;
+        return mQueue.snapshot();
+    }
+
+    /*!
+     * Return the queue of pending emails
+     */
+    public PendingQueue getPendingQueue() {
+        return mQueue;
     }
 
     /**
-     * Validate data and return error if any
+     * Validate the fields that need no lookups and return error if any
      */
-    private String validateData(String source, 
-                                String dest, 
-                                String subject, 
-                                String smtpServer, 
-                                String delayTime,
-                                String message) {
+    private String validateInput(String source, String dest, String delayTime) {
         if (!isValidEmail(source)) {
             return "Source email address is invalid";
         }
@@ -172,6 +739,13 @@ public class EmailAgent extends Thread{
         if (time < 0) {
             return "Delay time is invalid";   
         }
+        return null;
+    }
+
+    /**
+     * Check the mail server and return error if any
+     */
+    private String validateServer(String smtpServer) {
         if (smtpServer == null || smtpServer.equals("")) {
             return "Unable to find the SMTP server corresponding to the recipient address";
         }
@@ -185,15 +759,8 @@ public class EmailAgent extends Thread{
     /**
      * Check if the given email is valid or not
      */
-    private boolean isValidEmail(String email) {
-        if (email == null) {
-            return false;
-        }
-        String emailPattern = "^[_A-Za-z0-9-\\+]+(\\.[_A-Za-z0-9-]+)*@"
-                        + "[A-Za-z0-9-]+(\\.[A-Za-z0-9]+)*(\\.[A-Za-z]{2,})$";
-        Pattern p = Pattern.compile(emailPattern);
-        Matcher m = p.matcher(email);
-        return m.matches();
+    static boolean isValidEmail(String email) {
+        return AddressValidator.isValid(email);
     }
 
     /**
@@ -208,65 +775,40 @@ public class EmailAgent extends Thread{
         return true;
     }
 
+    /**
+     * Return the subject as the text of RFC 2047 encoded-words
+     */
     public static String encodeSubject(String s) {
-        byte[] b = null;
-        try{
-            b = s.getBytes("ISO-8859-15");
-        } catch (UnsupportedEncodingException ex) {
-                Log.print("Encoding Error");
-
-        }
-        String code = "";
-        for (int i = 0; i < b.length; i++) {
-            byte c = b[i];
-            if(c == 13){
-                code = code.concat("\n");
-                continue;
-            }         
-            else if (c == 10){
-                //do nothing
-                continue;
-            }
-            code = code.concat("=" + Integer.toHexString(c & 255).toUpperCase());
-            }
-        // Log.print(code);
-        return code;
+        return QuotedPrintable.encodeWordText(s);
     }
 
+    /**
+     * Return the message as a quoted-printable body
+     */
     public static String encodeMessage(String s) {
-        byte[] b = null;
-        try{
-            b = s.getBytes("ISO-8859-15");
-        } catch (UnsupportedEncodingException ex) {
-                Log.print("Encoding Error");
-        }
-        String code = "";
-        int wc = 0;
-        for (int i = 0; i < b.length; i++) {
-            byte c = b[i];
-            if(c == 13){
-                code = code.concat("\n");
-                continue;
-            }         
-            else if (c == 10){
-                //do nothing
-                continue;
-            }
-            code = code.concat("=" + Integer.toHexString(c & 255).toUpperCase());
-            wc += 3;
-            if (wc >= 75) {
-                code = code.concat("=\n");
-                wc = 0;
+        return QuotedPrintable.encodeBody(s);
+    }
+
+    /**
+     * Return the queue of due deliveries to the given mail server
+     */
+    private HostQueue hostQueue(String smtpServer) {
+        String host = smtpServer.toLowerCase();
+        HostQueue queue = mHostQueues.get(host);
+        if (queue == null) {
+            HostQueue created = new HostQueue(smtpServer);
+            queue = mHostQueues.putIfAbsent(host, created);
+            if (queue == null) {
+                queue = created;
             }
         }
-        // Log.print(code);
-        return code;
+        return queue;
     }
 
     /**
-     * A action listener used for sending email
+     * A delivery task, run on a worker once the email falls due
      */
-    class ComposeEmailAction extends TimerTask {
+    class ComposeEmailAction implements Runnable {
         Email mEmail;
         boolean mNeedConfirm;
 
@@ -276,103 +818,382 @@ public class EmailAgent extends Thread{
         }
 
         public void run() {
-            Log.print("Start sending email: " + mEmail.subject);
+            Log.debug("Start sending email: " + mEmail.subject);
+            SEND_LAG.recordMicros((System.currentTimeMillis() - mEmail.sendTimeMillis) * 1000);
+            hostQueue(mEmail.smtpServer).add(this);
+        }
 
-            boolean success = true;
+        /**
+         * Try the email again later if the failure is temporary and it has
+         * attempts left; give up on it otherwise
+         */
+        void fail(String error, boolean temporary) {
+            mEmail.attempts++;
+            if (!temporary || !mRetryPolicy.canRetry(mEmail.attempts)) {
+                finish(false, error);
+                return;
+            }
+            long delay = mRetryPolicy.nextDelay(mEmail.attempts);
+            Log.print("Deferring email " + mEmail.id + " for " + delay / 1000 + " seconds after "
+                + mEmail.attempts + " failed attempts: " + error);
+            mEmail.error = error;
+            mEmail.state = EmailState.DEFERRED;
+            reschedule(mEmail, System.currentTimeMillis() + delay, mNeedConfirm);
+            publishIfQueued("deferred", mEmail);
+        }
 
-            try {
-                // Establish a TCP connection with the mail server.
-                Socket emailSocket = new Socket(mEmail.smtpServer, 25);
-
-                // Create a BufferedReader to read a line at a time. 
-                InputStream is = emailSocket.getInputStream(); 
-                InputStreamReader isr = new InputStreamReader(is); 
-                BufferedReader br = new BufferedReader(isr); 
-                // Read greeting from the server. 
-                String response = br.readLine(); 
-                if (!response.startsWith("220")) { 
-                    throw new Exception(response); 
-                } 
-
-                // Get a reference to the socket's output stream. 
-                OutputStream os = emailSocket.getOutputStream(); 
-
-                // Send HELO command and get server response. 
-                String fullHeloCommand =  "HELO " + HELO_DOMAIN + "\r\n";
-                os.write(fullHeloCommand.getBytes("US-ASCII")); 
-                response = br.readLine(); 
-                if (!response.startsWith("250")) { 
-                    throw new Exception(response); 
-                } 
-
-                // Send MAIL FROM command.
-                String mailFromCommand = "MAIL FROM:  <" + mEmail.source + ">\r\n";
-                os.write(mailFromCommand.getBytes("US-ASCII"));
-                response = br.readLine();
-                if (!response.startsWith("250")) {
-                    throw new Exception(response); 
+        /**
+         * Record the outcome of the delivery
+         */
+        void finish(boolean success, String error) {
+            if (!success) {
+                mEmail.error = error;
+            }
+            mEmail.state = success ? EmailState.DELIVERED : EmailState.FAILED;
+            publishIfQueued(success ? "delivered" : "failed", mEmail);
+
+            // log status
+            if (success) {
+                Log.print("The email has been sent successfully.");
+            } else {
+                Log.print("Unable to send the email.");
+            }
+
+            if (!mNeedConfirm) {
+                removeFromQueue(mEmail);
+                return;
+            }
+            // the spool keeps the email, or its outcome, until the
+            // confirmation is spooled in turn
+            if (DIGEST_CONFIRMATIONS && mSpool != null) {
+                mSpool.outcome(mEmail);
+            }
+            removeFromQueue(mEmail, false);
+            final Email email = mEmail;
+            // off the drainer, which still holds its SMTP session
+            mValidators.execute(new Runnable() {
+                public void run() {
+                    addOutcome(email);
                 }
+            });
+        }
+    }
+
+    /**
+     * What emails must share to go in the same transaction. Bodies are
+     * hashed once, so they are only compared when the hashes match.
+     */
+    private static final class MessageKey {
+        private final Email mEmail;
+        private final boolean mNeedConfirm;
+        private final int mHash;
+
+        MessageKey(Email email, boolean needConfirm) {
+            mEmail = email;
+            mNeedConfirm = needConfirm;
+            mHash = (31 * (31 * email.source.hashCode() + email.subject.hashCode()) + email.body.hashCode()) * 2
+                + (needConfirm ? 1 : 0);
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof MessageKey)) {
+                return false;
+            }
+            MessageKey key = (MessageKey) other;
+            return mHash == key.mHash
+                && mNeedConfirm == key.mNeedConfirm
+                && mEmail.source.equals(key.mEmail.source)
+                && mEmail.subject.equals(key.mEmail.subject)
+                && mEmail.body.equals(key.mEmail.body);
+        }
+
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    /**
+     * The outcomes of one sender's emails waiting for a digest confirmation.
+     * Its window starts with the first outcome; a window that closes with a
+     * single outcome sends the usual confirmation of that email.
+     */
+    class Digest implements Runnable {
+        private final String mKey;
+        private final String mSource;
+        // guarded by this; null once sent
+        private List<Email> mOutcomes = new ArrayList<Email>();
+        volatile DeliveryScheduler.Handle mTimer;
+
+        Digest(String key, String source) {
+            mKey = key;
+            mSource = source;
+        }
+
+        /**
+         * Add an outcome; returns the number collected, or -1 if the digest
+         * was already sent
+         */
+        synchronized int add(Email email) {
+            if (mOutcomes == null) {
+                return -1;
+            }
+            mOutcomes.add(email);
+            return mOutcomes.size();
+        }
+
+        /**
+         * The window has passed; the digest goes out from the compose pool,
+         * not the scheduler thread
+         */
+        public void run() {
+            mValidators.execute(new Runnable() {
+                public void run() {
+                    send();
+                }
+            });
+        }
+
+        /**
+         * Send the digest, unless that was done already, and only then let
+         * the spool forget the outcomes in it
+         */
+        void send() {
+            List<Email> outcomes;
+            synchronized (this) {
+                outcomes = mOutcomes;
+                mOutcomes = null;
+            }
+            if (outcomes == null) {
+                return;
+            }
+            mDigests.remove(mKey, this);
+            DeliveryScheduler.Handle timer = mTimer;
+            if (timer != null) {
+                timer.cancel();
+            }
+            if (outcomes.size() == 1) {
+                Email email = outcomes.get(0);
+                composeConfirmationEmail(email, email.state == EmailState.DELIVERED);
+            } else {
+                composeDigestEmail(mSource, outcomes);
+            }
+            if (mSpool != null) {
+                for (Email email : outcomes) {
+                    mSpool.done(email);
+                }
+            }
+        }
+    }
 
-                // Send RCPT TO command.
-                
-                String fullAddress = "RCPT TO:  <" + mEmail.dest + ">\n";
-                os.write(fullAddress.getBytes("US-ASCII"));
-                response = br.readLine();
-                if(!response.startsWith("250")) {
-                    throw new Exception(response); 
+    /**
+     * The due deliveries to one mail server. Up to MAX_SESSIONS_PER_HOST
+     * workers drain it at once, each sending batches of due emails over its
+     * own pooled session; when that many are at it, the others just leave
+     * their email in the queue. While the
+     * server's circuit breaker is open the queue is parked: emails falling
+     * due wait in it, and one wake-up drains it when a probe is allowed.
+     */
+    class HostQueue {
+        private final String mHost;
+        private final ConcurrentLinkedQueue<ComposeEmailAction> mDue =
+            new ConcurrentLinkedQueue<ComposeEmailAction>();
+        private final AtomicInteger mDrainers = new AtomicInteger();
+        private final AtomicBoolean mWakeScheduled = new AtomicBoolean();
+        private final DomainCircuitBreaker mBreaker;
+
+        HostQueue(String host) {
+            mHost = host;
+            mBreaker = new DomainCircuitBreaker(host);
+        }
+
+        void add(ComposeEmailAction action) {
+            mDue.add(action);
+            drainIfRoom();
+        }
+
+        private void drainIfRoom() {
+            // the check after leaving makes sure nothing is left behind
+            while (!mDue.isEmpty() && enter()) {
+                boolean parked;
+                try {
+                    parked = !drain();
+                } finally {
+                    mDrainers.decrementAndGet();
+                }
+                if (parked) {
+                    return;
                 }
+            }
+        }
 
-                // Send DATA command.  
-                String dataString = "DATA\r\n";
-                //Log.print(dataString);
-                os.write(dataString.getBytes("US-ASCII"));
-                response = br.readLine();
-                if(!response.startsWith("354")) {
-                    throw new Exception(response); 
+        /**
+         * Become one of the drainers, unless there are enough already
+         */
+        private boolean enter() {
+            int drainers;
+            while ((drainers = mDrainers.get()) < MAX_SESSIONS_PER_HOST) {
+                if (mDrainers.compareAndSet(drainers, drainers + 1)) {
+                    return true;
                 }
-                //Log.print(response);
-
-                // Send message data. 
-                 String messageData = "From: " + "<" + mEmail.source + ">" + "\n"
-                                    + "To: " + "<" + mEmail.dest + ">" + "\n"
-                                    + "Subject: =?ISO-8859-15?Q?"
-                                    + new EmailAgent().encodeSubject(mEmail.subject) + "?=\n"
-                                    + "Date: " + mEmail.sendTime + "\n"
-                                    //+ "Message-ID: " + cal.getTimeInMillis() + "@ik2213.lab\n"
-                                    + "MIME-Version: 1.0\n"
-                                    + "Content-Type:text/plain; charset=ISO-8859-15\n"
-                                    + "Content-Transfer-Encoding: quoted-printable\n"
-                                    + new EmailAgent().encodeMessage(mEmail.message)
-                                    + "\r\n.\r\n";
-
-                os.write(messageData.getBytes("US-ASCII"));
-                response = br.readLine();
-                if(!response.startsWith("250")) {
-                    throw new Exception(response); 
+            }
+            return false;
+        }
+
+        /**
+         * Deliver everything that is due; returns false if the queue had to
+         * be parked
+         */
+        private boolean drain() {
+            List<ComposeEmailAction> batch = new ArrayList<ComposeEmailAction>();
+            ComposeEmailAction action;
+            SmtpSession session = null;
+            try {
+                while (true) {
+                    if (!mBreaker.allowRequest()) {
+                        park();
+                        return false;
+                    }
+                    batch.clear();
+                    // a share of the backlog, so the other drainers get theirs
+                    while (batch.size() < MAX_RECIPIENTS && (action = mDue.poll()) != null) {
+                        batch.add(action);
+                    }
+                    if (batch.isEmpty()) {
+                        return true;
+                    }
+                    SmtpSession current = session;
+                    // a batch that goes wrong has released its session already
+                    session = null;
+                    session = deliver(batch, current);
+                }
+            } finally {
+                if (session != null) {
+                    mPool.release(session, true);
                 }
-                 
-                // Send QUIT command.
-                String quitCommand = "QUIT";
-                os.write(quitCommand.getBytes("US-ASCII"));
-            } catch (Exception e) {
-                e.printStackTrace();
-                success = false;
             }
+        }
 
-            // remove the email from queue
-            removeFromQueue(mEmail);
+        /**
+         * Drain the queue again once the breaker lets a probe through
+         */
+        private void park() {
+            if (!mWakeScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            long delay = Math.max(0, mBreaker.getRetryAt() - System.currentTimeMillis());
+            mScheduler.schedule(new Runnable() {
+                public void run() {
+                    mWakeScheduled.set(false);
+                    drainIfRoom();
+                }
+            }, delay);
+        }
 
-            // log status
-            if (success) {
-                Log.print("The email has been sent successfully.");
-            } else {
-                Log.print("Unable to send the email.");
+        /**
+         * Send a batch over the given session, or a new one if it is null,
+         * one transaction per distinct message. Returns the session if it
+         * can go on with the next batch.
+         */
+        private SmtpSession deliver(List<ComposeEmailAction> batch, SmtpSession session) {
+            for (ComposeEmailAction action : batch) {
+                action.mEmail.state = EmailState.SENDING;
+                publishIfQueued("sending", action.mEmail);
+            }
+            List<List<ComposeEmailAction>> transactions = group(batch);
+            if (transactions.size() < batch.size()) {
+                Log.print("Sending " + batch.size() + " emails to " + mHost + " in "
+                    + transactions.size() + " transactions");
+            }
+            for (int i = 0; i < transactions.size(); i++) {
+                List<ComposeEmailAction> transaction = transactions.get(i);
+                try {
+                    if (session == null) {
+                        session = mPool.borrow(mHost);
+                        mBreaker.onSuccess();
+                    }
+                } catch (IOException e) {
+                    // the server cannot be reached: the rest of the batch has to wait too
+                    Log.warn("Unable to connect to " + mHost + ": " + e);
+                    boolean temporary = RetryPolicy.isTransient(e);
+                    if (temporary) {
+                        mBreaker.onFailure();
+                    }
+                    for (int j = i; j < transactions.size(); j++) {
+                        for (ComposeEmailAction failed : transactions.get(j)) {
+                            failed.fail(e.getMessage(), temporary);
+                        }
+                    }
+                    return null;
+                }
+                try {
+                    send(session, transaction);
+                    if (session.getMessagesSent() >= mPool.getMaxMessagesPerSession()) {
+                        mPool.release(session, true);
+                        session = null;
+                    }
+                } catch (IOException e) {
+                    Log.warn("Unable to send to " + mHost + ": " + e);
+                    if (!(e instanceof SmtpException)) {
+                        // the connection broke down rather than the server refusing
+                        mBreaker.onFailure();
+                    }
+                    for (ComposeEmailAction failed : transaction) {
+                        failed.fail(e.getMessage(), RetryPolicy.isTransient(e));
+                    }
+                    if (!(e instanceof SmtpException) || !((SmtpException) e).isSessionUsable()) {
+                        // after an unexpected reply the session state is unknown
+                        mPool.release(session, false);
+                        session = null;
+                    }
+                }
             }
+            return session;
+        }
 
-            // send confirmation email if needed
-            if (mNeedConfirm) {
-                composeConfirmationEmail(mEmail, success);    
+        private void send(SmtpSession session, List<ComposeEmailAction> transaction) throws IOException {
+            Email first = transaction.get(0).mEmail;
+            List<String> recipients = new ArrayList<String>(transaction.size());
+            for (ComposeEmailAction action : transaction) {
+                recipients.add(AddressValidator.toAscii(action.mEmail.dest));
+            }
+            String toHeader = transaction.size() == 1
+                ? "<" + recipients.get(0) + ">" : "undisclosed-recipients:;";
+            List<String> rejected = session.send(AddressValidator.toAscii(first.source), recipients,
+                new MimeMessage(first, toHeader));
+            for (int i = 0; i < transaction.size(); i++) {
+                String reply = rejected.get(i);
+                if (reply == null) {
+                    transaction.get(i).finish(true, null);
+                } else {
+                    transaction.get(i).fail(reply, RetryPolicy.isTransient(reply));
+                }
+            }
+        }
+
+        /**
+         * Put identical messages together, keeping the order they fell due
+         */
+        private List<List<ComposeEmailAction>> group(List<ComposeEmailAction> batch) {
+            List<List<ComposeEmailAction>> transactions = new ArrayList<List<ComposeEmailAction>>();
+            // the transaction still taking recipients for each distinct message
+            Map<MessageKey, List<ComposeEmailAction>> open = new HashMap<MessageKey, List<ComposeEmailAction>>();
+            for (ComposeEmailAction action : batch) {
+                MessageKey key = null;
+                List<ComposeEmailAction> target = null;
+                if (MERGE_RECIPIENTS) {
+                    key = new MessageKey(action.mEmail, action.mNeedConfirm);
+                    target = open.get(key);
+                }
+                if (target == null || target.size() >= MAX_RECIPIENTS) {
+                    target = new ArrayList<ComposeEmailAction>();
+                    transactions.add(target);
+                    if (key != null) {
+                        open.put(key, target);
+                    }
+                }
+                target.add(action);
             }
+            return transactions;
         }
     }
 
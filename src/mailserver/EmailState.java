@@ -0,0 +1,28 @@
+package mailserver;
+
+/**
+ * The life cycle of an email in the server
+ */
+public enum EmailState {
+    /** Accepted, waiting for its mail server to be looked up and checked */
+    VALIDATING,
+    /** Waiting for its send time */
+    QUEUED,
+    /** Being delivered */
+    SENDING,
+    /** A delivery attempt failed temporarily; waiting to be tried again */
+    DEFERRED,
+    /** Delivered to the mail server */
+    DELIVERED,
+    /** Delivery failed */
+    FAILED,
+    /** Rejected after acceptance, e.g. because its domain has no mail server */
+    REJECTED;
+
+    /**
+     * Return whether the email has left the pending queue for good
+     */
+    public boolean isFinal() {
+        return this == DELIVERED || this == FAILED || this == REJECTED;
+    }
+}
@@ -0,0 +1,35 @@
+package mailserver;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * The worker pools HTTP requests are handled on: one for submissions and
+ * one for everything else, each with its own threads and its own bounded
+ * queue. A request is queued on the pool of its route, so a flood of
+ * status polls can only fill the shared queue, and submissions still find
+ * room and a free handler.
+ */
+class HandlerPools {
+	private final ExecutorService mCompose;
+	private final ExecutorService mOther;
+
+	/**
+	 * Create the pools; maxConcurrent and queueCapacity apply to each
+	 */
+	HandlerPools(String name, int composeThreads, int otherThreads, int maxConcurrent, int queueCapacity) {
+		mCompose = WorkerThreads.newPool(name + "-compose", composeThreads, maxConcurrent, queueCapacity);
+		mOther = WorkerThreads.newPool(name, otherThreads, maxConcurrent, queueCapacity);
+	}
+
+	/**
+	 * Queue the task on the pool of the route; throws
+	 * RejectedExecutionException if that pool's queue is full
+	 */
+	void execute(AdmissionControl.Route route, Runnable task) {
+		if (route == AdmissionControl.Route.COMPOSE) {
+			mCompose.execute(task);
+		} else {
+			mOther.execute(task);
+		}
+	}
+}
@@ -0,0 +1,767 @@
+package mailserver;
+
+import java.net.*; 
+import java.io.*; 
+import java.util.*; 
+import java.nio.ByteBuffer;
+
+class HttpRequest implements Runnable{ 
+	private static final String HTML_FOLDER = "mailserver/html/";
+	private static final String HTML_INDEX = HTML_FOLDER + "index.htm";
+	private static final String HTML_404 = HTML_FOLDER + "404.htm";
+	private static final String HTML_STATUS_BEGIN = HTML_FOLDER + "status_begin.htm";
+	private static final String HTML_STATUS_END = HTML_FOLDER + "status_end.htm";
+
+	private static final String STATUS_PAGE_ACTION = "status";
+	private static final String STATUS_API_ACTION = "api/status";
+	private static final String STATUS_STREAM_ACTION = "status/stream";
+	private static final String DNS_API_ACTION = "api/dns";
+	private static final String LOG_API_ACTION = "api/log";
+	private static final String METRICS_ACTION = "metrics";
+	private static final String COMPOSE_EMAIL_ACTION = "composeEmail";
+	static final String BULK_ACTION = "api/bulk";
+	private static final String SOURCE_FIELD = "from";
+	private static final String DEST_FIELD = "to";
+	private static final String SUBJECT_FIELD = "subject";
+	private static final String DELAY_FIELD = "delayTime";
+	private static final String SMTP_SERVER_FIELD = "smtpServer";
+	private static final String MESSAGE_FIELD = "message";
+
+	static final int KEEP_ALIVE_TIMEOUT = 
+		Config.getInt("mailserver.http.keepAliveTimeoutMillis", 5000);
+	static final int MAX_REQUESTS_PER_CONNECTION = 
+		Config.getInt("mailserver.http.maxRequestsPerConnection", 100);
+	// how often a blocked read looks at whether others wait for a handler
+	private static final int IDLE_CHECK_MILLIS = Math.min(250, KEEP_ALIVE_TIMEOUT);
+	// rows of a bulk request composed, and answered, together
+	private static final int BULK_BATCH_SIZE =
+		Math.max(1, Config.getInt("mailserver.bulk.batchSize", 1000));
+
+	// the HTML files, kept in memory
+	private static final StaticAssetCache sAssets = new StaticAssetCache();
+
+	private static final LatencyHistogram INDEX_TIME = requestHistogram("index");
+	private static final LatencyHistogram STATUS_PAGE_TIME = requestHistogram(STATUS_PAGE_ACTION);
+	private static final LatencyHistogram STATUS_API_TIME = requestHistogram(STATUS_API_ACTION);
+	private static final LatencyHistogram STATUS_STREAM_TIME = requestHistogram(STATUS_STREAM_ACTION);
+	private static final LatencyHistogram DNS_API_TIME = requestHistogram(DNS_API_ACTION);
+	private static final LatencyHistogram LOG_API_TIME = requestHistogram(LOG_API_ACTION);
+	private static final LatencyHistogram METRICS_TIME = requestHistogram(METRICS_ACTION);
+	private static final LatencyHistogram COMPOSE_EMAIL_TIME = requestHistogram(COMPOSE_EMAIL_ACTION);
+	private static final LatencyHistogram BULK_TIME = requestHistogram(BULK_ACTION);
+	private static final LatencyHistogram NOT_FOUND_TIME = requestHistogram("notFound");
+
+	private Socket mClientConn; 
+	private EmailAgent mEmailAgent;
+	private long mQueuedAt = System.nanoTime();
+	private boolean mKeepAlive;
+	private HttpRequestParser mRequest;
+	// holds what was read of the first request before the connection was queued
+	private HttpRequestParser mParser;
+	private int mMaxRequests = MAX_REQUESTS_PER_CONNECTION;
+	// where a streamed request body is read from
+	private InputStream mBodyIn;
+	private Map<String, String> mQuery;
+	// set when the connection is to be handed over to the status stream
+	private StatusStream.Subscriber mSubscriber;
+
+	public HttpRequest(Socket clientConn, EmailAgent emailAgent) { 
+		this(clientConn, emailAgent, null);
+	} 
+
+	HttpRequest(Socket clientConn, EmailAgent emailAgent, HttpRequestParser parser) {
+		this.mClientConn = clientConn;
+		this.mEmailAgent = emailAgent;
+		this.mParser = parser;
+	}
+
+	/**
+	 * Close the connection after the first request instead of keeping it
+	 * open for more
+	 */
+	void closeAfterFirst() {
+		mMaxRequests = 1;
+	}
+
+	public void run() { 
+		if (!AdmissionControl.dequeued(mQueuedAt)) {
+			AdmissionControl.refuse(mClientConn);
+			return;
+		}
+		try {
+			mClientConn.setSoTimeout(IDLE_CHECK_MILLIS);
+			InputStream in = mClientConn.getInputStream();
+			mBodyIn = patientInput(in);
+			OutputStream out = new BufferedOutputStream(mClientConn.getOutputStream()); 
+			HttpRequestParser parser = mParser != null ? mParser : new HttpRequestParser();
+			mParser = null;
+
+			// serve requests in order until either side closes the connection
+			int served = 0;
+			boolean keepAlive = true;
+			while (keepAlive) {
+				int state = readRequest(parser, in, served > 0);
+				if (state == HttpRequestParser.INCOMPLETE) {
+					// the client closed the connection
+					break;
+				}
+				if (state == HttpRequestParser.INVALID) {
+					out.write(errorResponse(parser.getErrorStatus()));
+					out.flush();
+					break;
+				}
+				served++;
+				// an idle connection must not keep a handler from the ones waiting
+				keepAlive = process(parser, out, served < mMaxRequests 
+											&& !AdmissionControl.isBacklogged());
+				out.flush();
+				if (mSubscriber != null) {
+					// the status stream writes from now on; this thread is done
+					if (mClientConn.getChannel() != null) {
+						mSubscriber.attach(mClientConn.getChannel());
+						return;
+					}
+					mSubscriber.cancel();
+				}
+				parser.next();
+			}
+
+			out.close(); 
+		} catch (SocketTimeoutException e) {
+			// idle connection timed out
+		} catch (Exception e) {
+			Log.error("Error while serving a connection", e);
+		}
+
+		// close connection
+		try {
+			mClientConn.close(); 	
+		} catch (IOException e) {
+			Log.error("Unable to close a connection", e);
+		}
+		
+	} 
+
+	/**
+	 * Read the next request. An idle keep-alive connection is dropped after
+	 * the timeout, or as soon as other connections wait for a handler.
+	 */
+	private int readRequest(HttpRequestParser parser, InputStream in, boolean keptAlive) throws IOException {
+		long deadline = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT;
+		while (true) {
+			try {
+				return parser.read(in);
+			} catch (SocketTimeoutException e) {
+				if (System.currentTimeMillis() >= deadline
+						|| (keptAlive && parser.isEmpty() && AdmissionControl.isBacklogged())) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Return the connection's input for a streamed request body, which
+	 * waits out the short timeouts of the idle checks until the keep-alive
+	 * timeout passes without data
+	 */
+	private static InputStream patientInput(InputStream in) {
+		return new FilterInputStream(in) {
+			public int read(byte[] b, int off, int len) throws IOException {
+				long deadline = System.currentTimeMillis() + KEEP_ALIVE_TIMEOUT;
+				while (true) {
+					try {
+						return in.read(b, off, len);
+					} catch (SocketTimeoutException e) {
+						if (System.currentTimeMillis() >= deadline) {
+							throw e;
+						}
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * Handle the complete request held by the parser and write the response
+	 * to the output. Returns whether the connection can be kept open for
+	 * another request.
+	 */
+	public boolean process(HttpRequestParser request, OutputStream out, boolean allowKeepAlive) throws Exception {
+		mRequest = request;
+		if (Log.isEnabled(Log.Level.DEBUG)) {
+			Log.debug("Request: " + request.requestLine());
+		}
+		mQuery = new HashMap<String, String>();
+		request.parseQuery(mQuery);
+		boolean get = request.isMethod("GET");
+
+		mKeepAlive = allowKeepAlive && isKeepAlive(request);
+		HttpResponse res = new HttpResponse(out, request.version(), mKeepAlive);
+		AdmissionControl.Route route = routeOf(request);
+		if (!AdmissionControl.tryEnter(route)) {
+			AdmissionControl.refuse(res);
+			res.finish();
+			mKeepAlive = false;
+			return false;
+		}
+		try {
+			if (!route(request, res, get) || !request.isBodyRead()) {
+				// the rest of an unread body is not the next request
+				mKeepAlive = false;
+			}
+			return mKeepAlive;
+		} finally {
+			AdmissionControl.exit(route);
+		}
+	}
+
+	/**
+	 * Return which limit of the admission control applies to the request,
+	 * and which handler pool it waits for; the request line is enough
+	 */
+	static AdmissionControl.Route routeOf(HttpRequestParser request) {
+		if (request.isMethod("POST")
+				&& (request.isPath(COMPOSE_EMAIL_ACTION) || request.isPath(BULK_ACTION))) {
+			return AdmissionControl.Route.COMPOSE;
+		}
+		if (request.isMethod("GET")
+				&& (request.isPath(STATUS_PAGE_ACTION) || request.isPath(STATUS_API_ACTION))) {
+			return AdmissionControl.Route.STATUS;
+		}
+		return AdmissionControl.Route.OTHER;
+	}
+
+	/**
+	 * Run the handler of the request's action
+	 */
+	private boolean route(HttpRequestParser request, HttpResponse res, boolean get) throws Exception {
+		long start = System.nanoTime();
+		LatencyHistogram timer;
+
+		// return index.html
+		if (get && request.isPath("")) { 
+			timer = INDEX_TIME;
+			returnHTMLFile(HTML_INDEX, 200, res);
+
+		// return status page
+		} else if (get && request.isPath(STATUS_PAGE_ACTION)) {
+			timer = STATUS_PAGE_TIME;
+			returnStatusPage(res);
+		// snapshot of the status, then its changes as server-sent events
+		} else if (get && request.isPath(STATUS_STREAM_ACTION)) {
+			timer = STATUS_STREAM_TIME;
+			returnStatusStream(res);
+		// return status as JSON
+		} else if (get && request.isPath(STATUS_API_ACTION)) {
+			timer = STATUS_API_TIME;
+			returnStatusApi(res);
+		// return DNS cache statistics as JSON
+		} else if (get && request.isPath(DNS_API_ACTION)) {
+			timer = DNS_API_TIME;
+			res.setFileType(4);
+			res.body().write(mEmailAgent.getDnsCache().statsJson().getBytes());
+		// log level and statistics
+		} else if (get && request.isPath(LOG_API_ACTION)) {
+			timer = LOG_API_TIME;
+			returnLogStatus(res);
+		// change the log level
+		} else if (request.isMethod("POST") && request.isPath(LOG_API_ACTION)) {
+			timer = LOG_API_TIME;
+			changeLogLevel(request, res);
+		// metrics in the Prometheus text format
+		} else if (get && request.isPath(METRICS_ACTION)) {
+			timer = METRICS_TIME;
+			StringBuilder sb = new StringBuilder(16384);
+			Metrics.writePrometheus(sb);
+			res.setFileType(6);
+			res.body().write(sb.toString().getBytes("UTF-8"));
+		// compose email
+		} else if (request.isMethod("POST") && request.isPath(COMPOSE_EMAIL_ACTION)) {
+			timer = COMPOSE_EMAIL_TIME;
+			composeEmail(request, res);
+		// compose many emails, answering row by row
+		} else if (request.isMethod("POST") && request.isPath(BULK_ACTION)) {
+			timer = BULK_TIME;
+			composeBulk(request, res);
+
+		// action undefined
+		} else {
+			timer = NOT_FOUND_TIME;
+			returnHTMLFile(HTML_404, 404, res);
+		}
+
+		res.finish();
+		timer.recordSince(start);
+		mKeepAlive = res.isKeepAlive();
+		return mKeepAlive;
+	}
+
+	/**
+	 * Handle a complete raw request and return the raw response
+	 */
+	public byte[] process(byte[] request, boolean allowKeepAlive) throws Exception {
+		HttpRequestParser parser = new HttpRequestParser();
+		int state = parser.parse(ByteBuffer.wrap(request));
+		if (state != HttpRequestParser.COMPLETE) {
+			mKeepAlive = false;
+			return errorResponse(state == HttpRequestParser.INVALID ? parser.getErrorStatus() : 400);
+		}
+		return process(parser, allowKeepAlive);
+	}
+
+	/**
+	 * Handle the complete request held by the parser and return the raw
+	 * response
+	 */
+	public byte[] process(HttpRequestParser request, boolean allowKeepAlive) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		process(request, out, allowKeepAlive);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Return the response refusing an invalid request, which also closes
+	 * the connection
+	 */
+	static byte[] errorResponse(int status) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+		try {
+			HttpResponse res = new HttpResponse(out, "HTTP/1.1", false);
+			res.setStatus(status);
+			res.finish();
+		} catch (IOException e) {
+			// writing to memory does not fail
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Return whether the request is answered from a few counters, so an
+	 * event loop can handle it; everything else may scan the queue, read
+	 * files or wait
+	 */
+	static boolean isCheap(HttpRequestParser request) {
+		return request.isMethod("GET") && (request.isPath(DNS_API_ACTION) || request.isPath(LOG_API_ACTION));
+	}
+
+	/**
+	 * Return the subscriber the connection is to be handed to after the
+	 * response, if the request was for the status stream
+	 */
+	StatusStream.Subscriber getStreamSubscriber() {
+		return mSubscriber;
+	}
+
+	/**
+	 * Return whether the last processed request left the connection open
+	 */
+	public boolean isKeepAlive() {
+		return mKeepAlive;
+	}
+
+	private static LatencyHistogram requestHistogram(String action) {
+		return Metrics.histogram("mailserver_http_request_seconds",
+			"Time to handle a HTTP request, by action", "action=\"" + action + "\"");
+	}
+
+	/**
+	 * HTTP/1.1 connections are persistent unless the client asks to close,
+	 * HTTP/1.0 ones only if the client asks for keep-alive
+	 */
+	private boolean isKeepAlive(HttpRequestParser request) {
+		if (request.isHttp11()) {
+			return !request.headerEqualsIgnoreCase("connection", "close");
+		}
+		return request.headerEqualsIgnoreCase("connection", "keep-alive");
+	}
+
+	/**
+	 * Compose an email with data from user
+	 */
+	private void composeEmail(HttpRequestParser request, 
+									HttpResponse res) throws Exception{
+		Log.debug("Receiving a sending email request...");
+		String message = null;
+		int statusCode = 200;
+
+		try {
+			if (Log.isEnabled(Log.Level.DEBUG)) {
+				Log.debug(request.body());
+			}
+			if (request.parseForm() == 0) {
+				message = "Invalid data";
+			} else {
+				message = mEmailAgent.composeEmail(
+					request.formValue(SOURCE_FIELD),
+					request.formValue(DEST_FIELD),
+					request.formValue(SUBJECT_FIELD),
+					request.formValue(SMTP_SERVER_FIELD),
+					request.formValue(DELAY_FIELD),
+					request.formValue(MESSAGE_FIELD)
+				);
+			}
+		} catch (Exception e) {
+			Log.error("Unable to compose an email", e);
+			message = "Invalid data";
+		}
+
+		res.setStatus(statusCode);
+		String resData = "<html> <body> <h2>" + message + "</h2> <p>"
+							+ "<h3> To see the list of pending emails </h3>"
+							+ "<a href='status'>Click Here"
+							+ "</a> </p></body> </html>";
+		res.body().write(resData.getBytes());
+	}
+
+	/**
+	 * Compose the emails of a bulk request in batches as its body arrives,
+	 * streaming the result of each row as a line of JSON once its batch is
+	 * done, then a summary. A failure part way ends the response with an
+	 * error line and without the last chunk.
+	 */
+	private void composeBulk(HttpRequestParser request, HttpResponse res) throws IOException {
+		OutputStream out = null;
+		StringBuilder sb = new StringBuilder(8192);
+		int accepted = 0;
+		int rejected = 0;
+		try {
+			String format = mQuery.get("format");
+			boolean csv = format != null ? format.equalsIgnoreCase("csv")
+				: BulkReader.isCsv(request.header("content-type"));
+			InputStream in = mBodyIn != null ? mBodyIn : new ByteArrayInputStream(new byte[0]);
+			BulkReader reader = new BulkReader(request.bodyStream(in), csv);
+			res.setFileType(7);
+			out = res.stream();
+			List<BulkReader.Row> batch = new ArrayList<BulkReader.Row>();
+
+			BulkReader.Row row = reader.next();
+			while (row != null) {
+				batch.add(row);
+				row = reader.next();
+				if (batch.size() < BULK_BATCH_SIZE && row != null) {
+					continue;
+				}
+				mEmailAgent.composeBatch(batch);
+				sb.setLength(0);
+				for (BulkReader.Row done : batch) {
+					sb.append('{');
+					Json.appendName(sb, "row").append(done.number).append(',');
+					if (done.email != null) {
+						accepted++;
+						Json.appendName(sb, "id").append(done.email.id).append(',');
+						Json.appendName(sb, "sendTime");
+						Json.appendString(sb, done.email.getSendTime());
+					} else {
+						rejected++;
+						Json.appendName(sb, "error");
+						Json.appendString(sb, done.error);
+					}
+					sb.append("}\n");
+				}
+				out.write(sb.toString().getBytes("UTF-8"));
+				out.flush();
+				batch.clear();
+			}
+			out.write(("{\"accepted\":" + accepted + ",\"rejected\":" + rejected + "}\n").getBytes());
+		} catch (Exception e) {
+			Log.error("Unable to compose a bulk request", e);
+			if (out == null) {
+				res.setStatus(500);
+				res.closeConnection();
+				return;
+			}
+			// a summary and a complete body would pass for success
+			sb.setLength(0);
+			sb.append('{');
+			Json.appendName(sb, "error");
+			Json.appendString(sb, "Stopped after row " + (accepted + rejected)
+				+ ", the rows after it were not composed: " + e.getMessage());
+			sb.append("}\n");
+			try {
+				out.write(sb.toString().getBytes("UTF-8"));
+			} catch (IOException gone) {
+				// the client is not reading any more
+			}
+			res.abort();
+		}
+	}
+
+	/**
+	 * Return one page of the status page to client
+	 */
+	private void returnStatusPage(HttpResponse res) {
+		try {
+			StatusQuery query = StatusQuery.parse(mQuery);
+			final int start = (int) Math.max(0, parseNumber(mQuery.get("start")));
+			// the page grows with the page size, so stream it
+			final OutputStream out = res.stream();
+			final StringBuilder row = new StringBuilder(256);
+			final int[] count = new int[1];
+
+			parseHTMLFile(HTML_STATUS_BEGIN, out);
+			String next = query.page(mEmailAgent.getPendingQueue(), new StatusQuery.Visitor() {
+				public void visit(Email email) throws IOException {
+					count[0]++;
+					row.setLength(0);
+					row.append("<tr><td>").append(start + count[0]).append("</td>");
+					appendCell(row, email.source);
+					appendCell(row, email.dest);
+					appendCell(row, email.subject);
+					appendCell(row, email.getSubmittedTime());
+					appendCell(row, email.getSendTime());
+					row.append("</tr>");
+					out.write(row.toString().getBytes("UTF-8"));
+				}
+			});
+			if (count[0] == 0 && start == 0) {
+				out.write("<tr> <td colspan='6'>No pending emails!</td></tr>".getBytes());		
+			}
+			if (next != null) {
+				out.write(("<tr> <td colspan='6'><a href='status?" + query.nextPageQuery(next, "&amp;")
+							+ "&amp;start=" + (start + count[0]) + "'>Next page</a></td></tr>").getBytes());
+			}
+			parseHTMLFile(HTML_STATUS_END, out);
+		} catch (Exception e) {
+			Log.error("Unable to return the status page", e);
+		}
+	}
+
+	/**
+	 * Start an event stream with a snapshot of one page of the pending
+	 * emails; StatusStream sends the changes after it
+	 */
+	private void returnStatusStream(HttpResponse res) throws IOException {
+		StatusStream.Subscriber subscriber = StatusStream.get(mEmailAgent).open();
+		if (subscriber == null) {
+			AdmissionControl.refuse(res);
+			return;
+		}
+		try {
+			StatusQuery query = StatusQuery.parse(mQuery);
+			PendingQueue queue = mEmailAgent.getPendingQueue();
+			final StringBuilder sb = new StringBuilder(8192);
+			sb.append("retry: 3000\n\nevent: snapshot\ndata: {");
+			Json.appendName(sb, "pending").append(queue.size()).append(',');
+			Json.appendName(sb, "emails").append('[');
+			final boolean[] first = { true };
+			query.page(queue, new StatusQuery.Visitor() {
+				public void visit(Email email) {
+					if (!first[0]) {
+						sb.append(',');
+					}
+					first[0] = false;
+					appendEmailJson(sb, email);
+				}
+			});
+			sb.append("]}\n\n");
+			res.setFileType(8);
+			res.addHeader("Cache-Control", "no-cache");
+			res.streamUntilClose().write(sb.toString().getBytes("UTF-8"));
+			mSubscriber = subscriber;
+		} catch (IOException e) {
+			subscriber.cancel();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return one page of the pending emails, or only their count, as JSON
+	 */
+	private void returnStatusApi(HttpResponse res) {
+		try {
+			if (mQuery.containsKey("id")) {
+				returnEmailStatus(mQuery.get("id"), res);
+				return;
+			}
+			StatusQuery query = StatusQuery.parse(mQuery);
+			PendingQueue queue = mEmailAgent.getPendingQueue();
+			res.setFileType(4);
+			if (query.isCountOnly()) {
+				res.body().write(("{\"count\":" + query.count(queue) + "}").getBytes());
+				return;
+			}
+
+			final OutputStream out = res.stream();
+			final StringBuilder sb = new StringBuilder(256);
+			final boolean[] first = { true };
+			out.write("{\"emails\":[".getBytes());
+			String next = query.page(queue, new StatusQuery.Visitor() {
+				public void visit(Email email) throws IOException {
+					sb.setLength(0);
+					if (!first[0]) {
+						sb.append(',');
+					}
+					first[0] = false;
+					appendEmailJson(sb, email);
+					out.write(sb.toString().getBytes("UTF-8"));
+				}
+			});
+			sb.setLength(0);
+			sb.append("],");
+			Json.appendName(sb, "next");
+			Json.appendString(sb, next).append('}');
+			out.write(sb.toString().getBytes("UTF-8"));
+		} catch (Exception e) {
+			Log.error("Unable to return the status", e);
+		}
+	}
+
+	/**
+	 * Return the log level and statistics as JSON. Changing the level takes
+	 * a POST, so a link or a crawler cannot do it.
+	 */
+	private void returnLogStatus(HttpResponse res) throws IOException {
+		if (mQuery.get("level") != null) {
+			res.setStatus(405);
+			res.addHeader("Allow", "POST");
+			return;
+		}
+		writeLogStatus(res);
+	}
+
+	/**
+	 * Change the log level to the "level" field of the form (or of the
+	 * query), then return the level and statistics as JSON
+	 */
+	private void changeLogLevel(HttpRequestParser request, HttpResponse res) throws IOException {
+		String level = request.parseForm() > 0 ? request.formValue("level") : null;
+		if (level == null) {
+			level = mQuery.get("level");
+		}
+		Log.Level newLevel = level != null ? Log.parseLevel(level, null) : null;
+		if (newLevel == null) {
+			res.setStatus(400);
+		} else if (newLevel != Log.getLevel()) {
+			Log.setLevel(newLevel);
+			Log.warn("Log level changed to " + newLevel);
+		}
+		writeLogStatus(res);
+	}
+
+	private void writeLogStatus(HttpResponse res) throws IOException {
+		res.setFileType(4);
+		res.body().write(("{\"level\":\"" + Log.getLevel() + "\",\"written\":" + Log.getWritten()
+			+ ",\"dropped\":" + Log.getDropped() + "}").getBytes());
+	}
+
+	/**
+	 * Return a single email, pending or recently finished, as JSON
+	 */
+	private void returnEmailStatus(String id, HttpResponse res) throws IOException {
+		res.setFileType(4);
+		Email email = null;
+		try {
+			email = mEmailAgent.findEmail(Long.parseLong(id.trim()));
+		} catch (NumberFormatException e) {
+			// unknown id
+		}
+		if (email == null) {
+			res.setStatus(404);
+			res.body().write("{\"error\":\"Unknown email id\"}".getBytes());
+			return;
+		}
+		StringBuilder sb = new StringBuilder(256);
+		appendEmailJson(sb, email);
+		res.body().write(sb.toString().getBytes("UTF-8"));
+	}
+
+	static void appendEmailJson(StringBuilder sb, Email email) {
+		sb.append('{');
+		Json.appendName(sb, "id").append(email.id).append(',');
+		Json.appendName(sb, "state");
+		Json.appendString(sb, email.state.name()).append(',');
+		Json.appendName(sb, "from");
+		Json.appendString(sb, email.source).append(',');
+		Json.appendName(sb, "to");
+		Json.appendString(sb, email.dest).append(',');
+		Json.appendName(sb, "subject");
+		Json.appendString(sb, email.subject).append(',');
+		Json.appendName(sb, "submittedTime");
+		Json.appendString(sb, email.getSubmittedTime()).append(',');
+		Json.appendName(sb, "sendTime");
+		Json.appendString(sb, email.getSendTime()).append(',');
+		Json.appendName(sb, "sendTimeMillis").append(email.sendTimeMillis);
+		if (email.attempts > 0) {
+			sb.append(',');
+			Json.appendName(sb, "attempts").append(email.attempts);
+		}
+		if (email.error != null) {
+			sb.append(',');
+			Json.appendName(sb, "error");
+			Json.appendString(sb, email.error);
+		}
+		sb.append('}');
+	}
+
+	private static void appendCell(StringBuilder sb, String text) {
+		sb.append("<td>");
+		if (text != null) {
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				switch (c) {
+					case '<': sb.append("&lt;"); break;
+					case '>': sb.append("&gt;"); break;
+					case '&': sb.append("&amp;"); break;
+					case '"': sb.append("&quot;"); break;
+					case '\'': sb.append("&#39;"); break;
+					default: sb.append(c);
+				}
+			}
+		}
+		sb.append("</td>");
+	}
+
+	private static long parseNumber(String s) {
+		try {
+			return s == null ? 0 : Long.parseLong(s.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Return a HTML file to client, compressed if the client accepts gzip
+	 * and as 304 Not Modified if the client has the current version
+	 */
+	private void returnHTMLFile(String fileName, int statusCode, 
+								HttpResponse res) {
+		try{
+			res.setStatus(statusCode);
+			StaticAssetCache.Asset asset = sAssets.get(fileName);
+			if (asset == null) {
+				return;
+			}
+			byte[] gzip = asset.getGzip();
+			boolean useGzip = gzip != null && StaticAssetCache.acceptsGzip(mRequest.header("accept-encoding"));
+			res.addHeader("ETag", asset.getETag(useGzip));
+			res.addHeader("Last-Modified", asset.getLastModified());
+			res.addHeader("Vary", "Accept-Encoding");
+			if (statusCode == 200 && asset.isNotModified(mRequest.header("if-none-match"), 
+														mRequest.header("if-modified-since"), useGzip)) {
+				res.setStatus(304);
+				return;
+			}
+
+			// write the html file
+			if (useGzip) {
+				res.addHeader("Content-Encoding", "gzip");
+				res.body().write(gzip);
+			} else {
+				res.body().write(asset.getContent());
+			}
+		} catch (Exception e) {
+			Log.error("Unable to return " + fileName, e);
+		}
+	}
+
+	/*!
+	 * Write a cached HTML file
+	 */
+	private void parseHTMLFile(String fileName, OutputStream out) throws IOException {
+		StaticAssetCache.Asset asset = sAssets.get(fileName);
+		if (asset != null) {
+			out.write(asset.getContent());
+		}
+	}
+} 
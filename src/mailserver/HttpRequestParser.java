@@ -0,0 +1,808 @@
+package mailserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * An incremental HTTP/1.x request parser working on bytes.
+ *
+ * The connection reads into buffer() and calls parse(), which carries on
+ * where it stopped, so every byte is looked at once however the request
+ * was split into reads. The request line, headers and body stay where they
+ * were read: the parser only records where each part starts and ends, and
+ * makes a String of a part when asked for it. Form and query fields are
+ * decoded in place the same way.
+ *
+ * Chunked bodies are decoded as they arrive, each chunk moved down to
+ * follow the one before, so the body ends up in one piece either way.
+ *
+ * One parser serves all the requests of a connection and reuses its buffer
+ * and arrays; bytes read past the end of a request (pipelining) are kept
+ * for the next one. Requests with too large headers or body are refused
+ * with 431 or 413 before the body is read. Bulk requests have a limit of
+ * their own.
+ *
+ * The body of a bulk request is not gathered: such a request counts as
+ * complete once its head is in, and the handler reads the body through
+ * bodyStream() as it arrives, so only what it has not taken yet is held.
+ */
+class HttpRequestParser {
+	static final int INCOMPLETE = 0;
+	static final int COMPLETE = 1;
+	static final int INVALID = 2;
+
+	static final int MAX_HEADER_BYTES = Config.getInt("mailserver.http.maxHeaderBytes", 16384);
+	static final int MAX_BODY_BYTES = Config.getInt("mailserver.http.maxBodyBytes", 1024 * 1024);
+	static final int MAX_BULK_BODY_BYTES = Config.getInt("mailserver.bulk.maxBodyBytes", 64 * 1024 * 1024);
+	private static final int MAX_CHUNK_LINE = 1024;
+	private static final int MAX_HEADERS = 100;
+	private static final int INITIAL_SIZE = 8192;
+	private static final Charset FORM_CHARSET = Charset.forName("ISO-8859-15");
+
+	private byte[] mBuf = new byte[INITIAL_SIZE];
+	// position is the end of the data read so far
+	private ByteBuffer mInput = ByteBuffer.wrap(mBuf);
+
+	private int mScan;
+	private int mLineStart;
+	private boolean mHasRequestLine;
+	private boolean mInBody;
+	private int mBodyStart;
+	private int mBodyLength;
+	private int mEnd = -1;
+	private int mErrorStatus;
+	private boolean mChunked;
+	// the body is handed out as it arrives rather than gathered
+	private boolean mStreamed;
+	// bytes of a streamed body with a length not read yet
+	private long mBodyLeft;
+	// bytes of a streamed chunked body handed out so far
+	private long mBodyTaken;
+	// bytes left in the current chunk, or what line comes next
+	private int mChunkLeft;
+	private static final int CHUNK_SIZE_LINE = -1;
+	private static final int CHUNK_END_LINE = -2;
+	private static final int TRAILER_LINE = -3;
+
+	private int mMethodStart, mMethodEnd;
+	private int mPathStart, mPathEnd;
+	private int mQueryStart = -1, mQueryEnd;
+	private int mVersionStart, mVersionEnd;
+
+	// name start, name end, value start, value end of each header
+	private final int[] mHeaders = new int[MAX_HEADERS * 4];
+	private int mHeaderCount;
+
+	// the same for each decoded form field
+	private int[] mFields = new int[64];
+	private int mFieldCount = -1;
+
+	/**
+	 * Return the buffer to read into, with room for at least one byte
+	 */
+	ByteBuffer buffer() {
+		if (!mInput.hasRemaining()) {
+			// grow with what actually arrives, not with what the headers
+			// promise, up to the end of a body of known length
+			int size = mBuf.length * 2;
+			int end = mBodyStart + mBodyLength;
+			if (mInBody && !mChunked && end > mBuf.length) {
+				size = Math.min(size, end);
+			}
+			resize(size);
+		}
+		return mInput;
+	}
+
+	/**
+	 * Parse what has been read since the last call
+	 */
+	int parse() {
+		if (mEnd >= 0) {
+			return COMPLETE;
+		}
+		if (mErrorStatus != 0) {
+			return INVALID;
+		}
+		int end = mInput.position();
+		if (!mInBody) {
+			byte[] buf = mBuf;
+			while (mScan < end) {
+				if (buf[mScan++] != '\n') {
+					continue;
+				}
+				int lineEnd = mScan - 1;
+				if (lineEnd > mLineStart && buf[lineEnd - 1] == '\r') {
+					lineEnd--;
+				}
+				if (mScan > MAX_HEADER_BYTES) {
+					return fail(431);
+				}
+				if (!line(mLineStart, lineEnd)) {
+					return INVALID;
+				}
+				mLineStart = mScan;
+				if (mInBody) {
+					break;
+				}
+			}
+			if (!mInBody) {
+				return mScan > MAX_HEADER_BYTES ? fail(431) : INCOMPLETE;
+			}
+		}
+		if (mStreamed) {
+			// the handler reads the body itself
+			return COMPLETE;
+		}
+		if (mChunked) {
+			return parseChunks(end);
+		}
+		if (end - mBodyStart < mBodyLength) {
+			return INCOMPLETE;
+		}
+		mEnd = mBodyStart + mBodyLength;
+		return COMPLETE;
+	}
+
+	/**
+	 * Decode the chunks read so far, appending their data to the body
+	 */
+	private int parseChunks(int end) {
+		byte[] buf = mBuf;
+		while (true) {
+			if (mChunkLeft > 0) {
+				int n = Math.min(mChunkLeft, end - mScan);
+				if (n == 0) {
+					return INCOMPLETE;
+				}
+				System.arraycopy(buf, mScan, buf, mBodyStart + mBodyLength, n);
+				mBodyLength += n;
+				mScan += n;
+				mChunkLeft -= n;
+				if (mChunkLeft == 0) {
+					mChunkLeft = CHUNK_END_LINE;
+				}
+				continue;
+			}
+			int newline = indexOf('\n', mScan, end);
+			if (newline < 0) {
+				return end - mScan > MAX_CHUNK_LINE ? fail(400) : INCOMPLETE;
+			}
+			int lineStart = mScan;
+			int lineEnd = newline > lineStart && buf[newline - 1] == '\r' ? newline - 1 : newline;
+			mScan = newline + 1;
+			if (mChunkLeft == CHUNK_END_LINE) {
+				if (lineEnd != lineStart) {
+					return fail(400);
+				}
+				mChunkLeft = CHUNK_SIZE_LINE;
+			} else if (mChunkLeft == TRAILER_LINE) {
+				// trailer fields are ignored; an empty line ends the request
+				if (lineEnd == lineStart) {
+					mEnd = mScan;
+					return COMPLETE;
+				}
+			} else {
+				int semicolon = indexOf(';', lineStart, lineEnd);
+				long size = parseHex(lineStart, trimEnd(lineStart, semicolon < 0 ? lineEnd : semicolon));
+				if (size < 0) {
+					return fail(400);
+				}
+				if (mBodyTaken + mBodyLength + size > maxBodyBytes()) {
+					return fail(413);
+				}
+				mChunkLeft = size == 0 ? TRAILER_LINE : (int) size;
+			}
+		}
+	}
+
+	/**
+	 * Copy bytes from the given buffer and parse them; bytes after a
+	 * complete request are left in it
+	 */
+	int parse(ByteBuffer src) {
+		int state = parse();
+		while (state == INCOMPLETE && src.hasRemaining()) {
+			ByteBuffer dst = buffer();
+			int n = Math.min(dst.remaining(), src.remaining());
+			ByteBuffer chunk = src.duplicate();
+			chunk.limit(chunk.position() + n);
+			dst.put(chunk);
+			src.position(src.position() + n);
+			state = parse();
+		}
+		return state;
+	}
+
+	/**
+	 * Read from the stream until a request is complete or invalid; returns
+	 * INCOMPLETE if the stream ends first
+	 */
+	int read(InputStream in) throws IOException {
+		int state = parse();
+		while (state == INCOMPLETE) {
+			ByteBuffer buf = buffer();
+			int n = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+			if (n < 0) {
+				return INCOMPLETE;
+			}
+			buf.position(buf.position() + n);
+			state = parse();
+		}
+		return state;
+	}
+
+	/**
+	 * Return whether no bytes of the next request have arrived yet
+	 */
+	boolean isEmpty() {
+		return mInput.position() == 0;
+	}
+
+	/**
+	 * Drop the request just handled and get ready for the next one
+	 */
+	void next() {
+		int end = mInput.position();
+		int from = mEnd >= 0 ? mEnd : end;
+		int left = end - from;
+		byte[] buf = mBuf;
+		if (buf.length > INITIAL_SIZE * 8 && left <= INITIAL_SIZE) {
+			// do not keep a large buffer for an idle connection
+			buf = new byte[INITIAL_SIZE];
+		}
+		System.arraycopy(mBuf, from, buf, 0, left);
+		if (buf != mBuf) {
+			mBuf = buf;
+			mInput = ByteBuffer.wrap(buf);
+		}
+		mInput.clear();
+		mInput.position(left);
+
+		mScan = 0;
+		mLineStart = 0;
+		mHasRequestLine = false;
+		mInBody = false;
+		mBodyStart = 0;
+		mBodyLength = 0;
+		mEnd = -1;
+		mErrorStatus = 0;
+		mChunked = false;
+		mStreamed = false;
+		mBodyLeft = 0;
+		mBodyTaken = 0;
+		mChunkLeft = 0;
+		mQueryStart = -1;
+		mHeaderCount = 0;
+		mFieldCount = -1;
+	}
+
+	/**
+	 * Return whether the request line has been read, so method and path
+	 * are known before the rest of the request
+	 */
+	boolean hasRequestLine() {
+		return mHasRequestLine;
+	}
+
+	/**
+	 * Return the status to refuse an invalid request with
+	 */
+	int getErrorStatus() {
+		return mErrorStatus;
+	}
+
+	private void resize(int size) {
+		byte[] buf = Arrays.copyOf(mBuf, size);
+		int position = mInput.position();
+		mBuf = buf;
+		mInput = ByteBuffer.wrap(buf);
+		mInput.position(position);
+	}
+
+	private int fail(int status) {
+		mErrorStatus = status;
+		return INVALID;
+	}
+
+	/**
+	 * Handle one line of the head; returns false if the request is invalid
+	 */
+	private boolean line(int start, int end) {
+		if (!mHasRequestLine) {
+			// empty lines between pipelined requests are tolerated
+			return start == end || requestLine(start, end);
+		}
+		if (start == end) {
+			return endOfHead();
+		}
+		byte first = mBuf[start];
+		if (first == ' ' || first == '\t') {
+			// obsolete line folding, not used by any header we read
+			return true;
+		}
+		int colon = indexOf(':', start, end);
+		if (colon <= start) {
+			// not a header
+			return true;
+		}
+		if (mHeaderCount == MAX_HEADERS) {
+			fail(431);
+			return false;
+		}
+		int i = mHeaderCount++ * 4;
+		mHeaders[i] = start;
+		mHeaders[i + 1] = trimEnd(start, colon);
+		mHeaders[i + 2] = trimStart(colon + 1, end);
+		mHeaders[i + 3] = trimEnd(mHeaders[i + 2], end);
+		return true;
+	}
+
+	/**
+	 * Split "METHOD target [version]"
+	 */
+	private boolean requestLine(int start, int end) {
+		start = trimStart(start, end);
+		end = trimEnd(start, end);
+		mMethodStart = start;
+		mMethodEnd = indexOf(' ', start, end);
+		if (mMethodEnd <= start) {
+			fail(400);
+			return false;
+		}
+		int target = trimStart(mMethodEnd, end);
+		int targetEnd = indexOf(' ', target, end);
+		if (targetEnd < 0) {
+			targetEnd = end;
+		}
+		if (target == targetEnd) {
+			fail(400);
+			return false;
+		}
+		mPathStart = mBuf[target] == '/' ? target + 1 : target;
+		int question = indexOf('?', mPathStart, targetEnd);
+		if (question >= 0) {
+			mPathEnd = question;
+			mQueryStart = question + 1;
+			mQueryEnd = targetEnd;
+		} else {
+			mPathEnd = targetEnd;
+		}
+		mVersionStart = trimStart(targetEnd, end);
+		mVersionEnd = end;
+		mHasRequestLine = true;
+		return true;
+	}
+
+	/**
+	 * Work out the body length once the head is complete
+	 */
+	private boolean endOfHead() {
+		if (findHeader("transfer-encoding") >= 0) {
+			if (!headerEqualsIgnoreCase("transfer-encoding", "chunked")) {
+				fail(501);
+				return false;
+			}
+			mChunked = true;
+			mChunkLeft = CHUNK_SIZE_LINE;
+			mBodyLength = 0;
+			mBodyStart = mScan;
+			mInBody = true;
+			mStreamed = isBulk();
+			return true;
+		}
+		long length = 0;
+		boolean seen = false;
+		for (int h = 0; h < mHeaderCount; h++) {
+			int i = h * 4;
+			if (!regionEqualsIgnoreCase(mHeaders[i], mHeaders[i + 1], "content-length")) {
+				continue;
+			}
+			long value = parseLength(mHeaders[i + 2], mHeaders[i + 3]);
+			if (value < 0 || (seen && value != length)) {
+				fail(400);
+				return false;
+			}
+			length = value;
+			seen = true;
+		}
+		if (length > maxBodyBytes()) {
+			fail(413);
+			return false;
+		}
+		mBodyStart = mScan;
+		mInBody = true;
+		if (isBulk()) {
+			mStreamed = true;
+			mBodyLeft = length;
+			if (length == 0) {
+				mEnd = mBodyStart;
+			}
+			return true;
+		}
+		mBodyLength = (int) length;
+		return true;
+	}
+
+	private boolean isBulk() {
+		return isMethod("POST") && isPath(HttpRequest.BULK_ACTION);
+	}
+
+	private int maxBodyBytes() {
+		return isBulk() ? MAX_BULK_BODY_BYTES : MAX_BODY_BYTES;
+	}
+
+	/**
+	 * Parse hex digits, returning -1 if there are none, others or too many
+	 */
+	private long parseHex(int start, int end) {
+		if (start == end || end - start > 8) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = hex(mBuf[i]);
+			if (digit < 0) {
+				return -1;
+			}
+			value = value << 4 | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Parse decimal digits, returning -1 if there are none or others
+	 */
+	private long parseLength(int start, int end) {
+		if (start == end) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = mBuf[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+			if (value > Integer.MAX_VALUE) {
+				// too large anyway; keep it from overflowing
+				return (long) Integer.MAX_VALUE + 1;
+			}
+		}
+		return value;
+	}
+
+	boolean isMethod(String method) {
+		return regionEquals(mMethodStart, mMethodEnd, method);
+	}
+
+	/**
+	 * Return whether the path, without its leading '/', is the given one
+	 */
+	boolean isPath(String path) {
+		return regionEquals(mPathStart, mPathEnd, path);
+	}
+
+	boolean isHttp11() {
+		return regionEquals(mVersionStart, mVersionEnd, "HTTP/1.1");
+	}
+
+	/**
+	 * Return the version, HTTP/1.0 if the request line has none
+	 */
+	String version() {
+		if (isHttp11()) {
+			return "HTTP/1.1";
+		}
+		return mVersionStart == mVersionEnd ? "HTTP/1.0" : ascii(mVersionStart, mVersionEnd);
+	}
+
+	String requestLine() {
+		return ascii(mMethodStart, mVersionEnd);
+	}
+
+	/**
+	 * Return the value of the header with the given lower case name, or null
+	 */
+	String header(String name) {
+		int i = findHeader(name);
+		return i < 0 ? null : ascii(mHeaders[i + 2], mHeaders[i + 3]);
+	}
+
+	/**
+	 * Return whether the header has the given value, ignoring case
+	 */
+	boolean headerEqualsIgnoreCase(String name, String value) {
+		int i = findHeader(name);
+		return i >= 0 && regionEqualsIgnoreCase(mHeaders[i + 2], mHeaders[i + 3], value);
+	}
+
+	private int findHeader(String name) {
+		for (int h = 0; h < mHeaderCount; h++) {
+			int i = h * 4;
+			if (regionEqualsIgnoreCase(mHeaders[i], mHeaders[i + 1], name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	int getBodyLength() {
+		return mBodyLength;
+	}
+
+	/**
+	 * Return whether the handler reads the body with bodyStream() instead
+	 * of finding it in the parser
+	 */
+	boolean hasStreamedBody() {
+		return mStreamed;
+	}
+
+	/**
+	 * Return whether the whole body has been read, so the next request on
+	 * the connection can follow
+	 */
+	boolean isBodyRead() {
+		return !mStreamed || (mEnd >= 0 && mBodyLength == 0);
+	}
+
+	/**
+	 * Return the streamed body, reading the rest of it from the connection
+	 * as the handler gets to it
+	 */
+	InputStream bodyStream(final InputStream in) {
+		return new InputStream() {
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				int n;
+				while ((n = takeBody(b, off, len)) == 0) {
+					ByteBuffer buf = buffer();
+					int read = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+					if (read < 0) {
+						throw new EOFException("The connection closed in the request body");
+					}
+					buf.position(buf.position() + read);
+				}
+				return n;
+			}
+		};
+	}
+
+	/**
+	 * Move body bytes that have arrived into b and drop them from the
+	 * buffer; returns 0 if more must be read first and -1 at the end
+	 */
+	private int takeBody(byte[] b, int off, int len) throws IOException {
+		int end = mInput.position();
+		int available;
+		if (mChunked) {
+			if (mEnd < 0 && parseChunks(end) == INVALID) {
+				throw new IOException("Invalid chunked body (" + mErrorStatus + ")");
+			}
+			available = mBodyLength;
+		} else {
+			available = (int) Math.min(end - mBodyStart, mBodyLeft);
+		}
+		if (available == 0) {
+			return mEnd >= 0 ? -1 : 0;
+		}
+		int n = Math.min(len, available);
+		System.arraycopy(mBuf, mBodyStart, b, off, n);
+		// what follows moves down, so the buffer never holds more than a read
+		System.arraycopy(mBuf, mBodyStart + n, mBuf, mBodyStart, end - mBodyStart - n);
+		mInput.position(end - n);
+		if (mChunked) {
+			mBodyLength -= n;
+			mBodyTaken += n;
+			mScan -= n;
+			if (mEnd >= 0) {
+				mEnd -= n;
+			}
+		} else {
+			mBodyLeft -= n;
+			if (mBodyLeft == 0) {
+				mEnd = mBodyStart;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Return a view of the body, before any form decoding
+	 */
+	ByteBuffer bodyBuffer() {
+		return ByteBuffer.wrap(mBuf, mBodyStart, mBodyLength).slice();
+	}
+
+	/**
+	 * Return the body as text, for logging; call before parseForm
+	 */
+	String body() {
+		return new String(mBuf, mBodyStart, mBodyLength, FORM_CHARSET);
+	}
+
+	/**
+	 * Decode the query string into the map, as UTF-8
+	 */
+	void parseQuery(Map<String, String> params) {
+		if (mQueryStart < 0) {
+			return;
+		}
+		int count = decodeFields(mQueryStart, mQueryEnd, true);
+		for (int f = 0; f < count; f++) {
+			int i = f * 4;
+			params.put(new String(mBuf, mFields[i], mFields[i + 1] - mFields[i], StandardCharsets.UTF_8),
+				new String(mBuf, mFields[i + 2], mFields[i + 3] - mFields[i + 2], StandardCharsets.UTF_8));
+		}
+		// the views now hold the query, not the form
+		mFieldCount = -1;
+	}
+
+	/**
+	 * Decode the application/x-www-form-urlencoded body in place and
+	 * return the number of fields
+	 */
+	int parseForm() {
+		if (mFieldCount < 0) {
+			mFieldCount = decodeFields(mBodyStart, mBodyStart + mBodyLength, false);
+		}
+		return mFieldCount;
+	}
+
+	/**
+	 * Return the value of the form field, with surrounding white space
+	 * removed, or null if the form has no such field
+	 */
+	String formValue(String name) {
+		parseForm();
+		for (int f = 0; f < mFieldCount; f++) {
+			int i = f * 4;
+			if (regionEquals(mFields[i], mFields[i + 1], name)) {
+				int start = trimStart(mFields[i + 2], mFields[i + 3]);
+				int end = trimEnd(start, mFields[i + 3]);
+				return new String(mBuf, start, end - start, FORM_CHARSET);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Split "name=value&..." and decode each part in place; fields without
+	 * a '=' are kept only if emptyValues is set
+	 */
+	private int decodeFields(int start, int end, boolean emptyValues) {
+		int count = 0;
+		int field = start;
+		while (field < end) {
+			int amp = indexOf('&', field, end);
+			int fieldEnd = amp < 0 ? end : amp;
+			int eq = indexOf('=', field, fieldEnd);
+			if (eq > field || (eq < 0 && emptyValues && fieldEnd > field)) {
+				if ((count + 1) * 4 > mFields.length) {
+					mFields = Arrays.copyOf(mFields, mFields.length * 2);
+				}
+				int i = count++ * 4;
+				mFields[i] = field;
+				if (eq < 0) {
+					mFields[i + 1] = decode(field, fieldEnd);
+					mFields[i + 2] = fieldEnd;
+					mFields[i + 3] = fieldEnd;
+				} else {
+					mFields[i + 1] = decode(field, eq);
+					mFields[i + 2] = eq + 1;
+					mFields[i + 3] = decode(eq + 1, fieldEnd);
+				}
+			}
+			field = fieldEnd + 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Percent-decode the region in place and return its new end; a '%'
+	 * not followed by two hex digits is kept as it is
+	 */
+	private int decode(int start, int end) {
+		byte[] buf = mBuf;
+		int out = start;
+		for (int i = start; i < end; i++) {
+			byte b = buf[i];
+			if (b == '+') {
+				b = ' ';
+			} else if (b == '%' && i + 2 < end) {
+				int high = hex(buf[i + 1]);
+				int low = hex(buf[i + 2]);
+				if (high >= 0 && low >= 0) {
+					b = (byte) (high << 4 | low);
+					i += 2;
+				}
+			}
+			buf[out++] = b;
+		}
+		return out;
+	}
+
+	private static int hex(byte b) {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		}
+		if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
+		}
+		if (b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
+		}
+		return -1;
+	}
+
+	private int indexOf(char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (mBuf[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int trimStart(int start, int end) {
+		while (start < end && (mBuf[start] & 0xff) <= ' ') {
+			start++;
+		}
+		return start;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && (mBuf[end - 1] & 0xff) <= ' ') {
+			end--;
+		}
+		return end;
+	}
+
+	private boolean regionEquals(int start, int end, String s) {
+		if (end - start != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			if (mBuf[start + i] != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean regionEqualsIgnoreCase(int start, int end, String s) {
+		if (end - start != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < s.length(); i++) {
+			int b = mBuf[start + i];
+			int c = s.charAt(i);
+			if (b != c) {
+				// only letters may differ, and only in case
+				int lower = b | 0x20;
+				if (lower != (c | 0x20) || lower < 'a' || lower > 'z') {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private String ascii(int start, int end) {
+		return new String(mBuf, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+}
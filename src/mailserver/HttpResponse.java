@@ -0,0 +1,295 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A HTTP/1.1 response under construction.
+ *
+ * By default the body is buffered so the header can carry a Content-Length
+ * and the connection can be kept alive. Large bodies can call stream()
+ * instead, which sends the header right away and uses chunked transfer
+ * encoding (or closes the connection for HTTP/1.0 clients).
+ */
+class HttpResponse {
+	private final OutputStream mOut;
+	private boolean mChunkedAllowed;
+	private boolean mKeepAlive;
+	private int mStatusCode = 200;
+	private int mFileType = 5;
+	private String mExtraHeaders = "";
+	private ByteArrayOutputStream mBuffer;
+	private ChunkedOutputStream mChunked;
+	private boolean mStreaming;
+	private boolean mFinished;
+
+	public HttpResponse(OutputStream out, String version, boolean keepAlive) {
+		mOut = out;
+		mChunkedAllowed = "HTTP/1.1".equals(version);
+		mKeepAlive = keepAlive;
+	}
+
+	public void setStatus(int statusCode) {
+		mStatusCode = statusCode;
+	}
+
+	public void setFileType(int fileType) {
+		mFileType = fileType;
+	}
+
+	/**
+	 * Add a header line to the response
+	 */
+	public void addHeader(String name, String value) {
+		mExtraHeaders = mExtraHeaders + name + ": " + value + "\r\n";
+	}
+
+	public boolean isKeepAlive() {
+		return mKeepAlive;
+	}
+
+	/**
+	 * Close the connection after this response
+	 */
+	public void closeConnection() {
+		mKeepAlive = false;
+	}
+
+	/**
+	 * Return the stream for a buffered body
+	 */
+	public OutputStream body() {
+		if (mStreaming) {
+			return mChunked != null ? mChunked : mOut;
+		}
+		if (mBuffer == null) {
+			mBuffer = new ByteArrayOutputStream(1024);
+		}
+		return mBuffer;
+	}
+
+	/**
+	 * Send the header now and return a stream for a body of unknown length
+	 */
+	public OutputStream stream() throws IOException {
+		if (mStreaming) {
+			return body();
+		}
+		mStreaming = true;
+		if (!mChunkedAllowed) {
+			// HTTP/1.0 clients can only see the end of the body by the close
+			mKeepAlive = false;
+		}
+		mOut.write(createHeader(mStatusCode, mFileType, mChunkedAllowed ? -2 : -1).getBytes());
+		if (mBuffer != null) {
+			// anything already buffered goes out first
+			body().write(mBuffer.toByteArray());
+			mBuffer = null;
+		}
+		if (mChunkedAllowed) {
+			mChunked = new ChunkedOutputStream(mOut);
+		}
+		return body();
+	}
+
+	/**
+	 * Send the header now for a body that lasts until the connection is
+	 * closed, such as an event stream
+	 */
+	public OutputStream streamUntilClose() throws IOException {
+		mChunkedAllowed = false;
+		return stream();
+	}
+
+	/**
+	 * Complete the response on the underlying stream
+	 */
+	public void finish() throws IOException {
+		if (mFinished) {
+			return;
+		}
+		mFinished = true;
+		if (mStreaming) {
+			if (mChunked != null) {
+				mChunked.finish();
+			}
+			return;
+		}
+		// a 304 never has a body, so it needs no length
+		int length = mStatusCode == 304 ? -1 : (mBuffer == null ? 0 : mBuffer.size());
+		mOut.write(createHeader(mStatusCode, mFileType, length).getBytes());
+		if (mBuffer != null) {
+			mBuffer.writeTo(mOut);
+		}
+	}
+
+	/**
+	 * End a streamed response without completing it and close the
+	 * connection, so the client sees the body was cut short
+	 */
+	public void abort() throws IOException {
+		mFinished = true;
+		mKeepAlive = false;
+		if (mChunked != null) {
+			// what was written goes out, but not the last chunk
+			mChunked.flush();
+		}
+	}
+
+	/***
+	 * Make the HTTP header for the response; a content length of -1 means
+	 * close-delimited and -2 means chunked
+	 */
+	private String createHeader(int return_code, int file_type, long contentLength) {
+	    String s = "HTTP/1.1 ";
+	    //you probably have seen these if you have been surfing the web a while
+	    switch (return_code) {
+	      case 200:
+	        s = s + "200 OK";
+	        break;
+	      case 304:
+	        s = s + "304 Not Modified";
+	        break;
+	      case 400:
+	        s = s + "400 Bad Request";
+	        break;
+	      case 403:
+	        s = s + "403 Forbidden";
+	        break;
+	      case 404:
+	        s = s + "404 Not Found";
+	        break;
+	      case 405:
+	        s = s + "405 Method Not Allowed";
+	        break;
+	      case 411:
+	        s = s + "411 Length Required";
+	        break;
+	      case 413:
+	        s = s + "413 Payload Too Large";
+	        break;
+	      case 431:
+	        s = s + "431 Request Header Fields Too Large";
+	        break;
+	      case 500:
+	        s = s + "500 Internal Server Error";
+	        break;
+	      case 501:
+	        s = s + "501 Not Implemented";
+	        break;
+	      case 503:
+	        s = s + "503 Service Unavailable";
+	        break;
+	    }
+
+	    s = s + "\r\n"; //other header fields,
+	    s = s + (mKeepAlive ? "Connection: keep-alive\r\n" : "Connection: close\r\n");
+	    s = s + "Server: Simple HTTP Server \r\n"; //server name
+	    s = s + mExtraHeaders;
+	    if (contentLength >= 0) {
+	      s = s + "Content-Length: " + contentLength + "\r\n";
+	    } else if (contentLength == -2) {
+	      s = s + "Transfer-Encoding: chunked\r\n";
+	    }
+
+	    //Construct the right Content-Type for the header.
+	    switch (return_code == 304 ? 0 : file_type) {
+	      //plenty of types for you to fill in
+	      case 0:
+	        break;
+	      case 1:
+	        s = s + "Content-Type: image/jpeg\r\n";
+	        break;
+	      case 2:
+	        s = s + "Content-Type: image/gif\r\n";
+	        break;
+	      case 3:
+	        s = s + "Content-Type: application/x-zip-compressed\r\n";
+	        break;
+	      case 4:
+	        s = s + "Content-Type: application/json\r\n";
+	        break;
+	      case 6:
+	        s = s + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n";
+	        break;
+	      case 7:
+	        s = s + "Content-Type: application/x-ndjson; charset=utf-8\r\n";
+	        break;
+	      case 8:
+	        s = s + "Content-Type: text/event-stream; charset=utf-8\r\n";
+	        break;
+	      default:
+	        s = s + "Content-Type: text/html\r\n";
+	        break;
+	    }
+
+	    s = s + "\r\n"; //this marks the end of the httpheader
+
+	    return s;
+	}
+
+	/**
+	 * Writes chunked transfer encoding, gathering small writes into
+	 * reasonably sized chunks
+	 */
+	static class ChunkedOutputStream extends OutputStream {
+		private static final byte[] CRLF = { '\r', '\n' };
+		private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+		private final OutputStream mOut;
+		private final byte[] mBuf = new byte[8192];
+		private int mCount;
+
+		ChunkedOutputStream(OutputStream out) {
+			mOut = out;
+		}
+
+		public void write(int b) throws IOException {
+			if (mCount == mBuf.length) {
+				flushChunk();
+			}
+			mBuf[mCount++] = (byte) b;
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len >= mBuf.length) {
+				flushChunk();
+				writeChunk(b, off, len);
+				return;
+			}
+			if (mCount + len > mBuf.length) {
+				flushChunk();
+			}
+			System.arraycopy(b, off, mBuf, mCount, len);
+			mCount += len;
+		}
+
+		public void flush() throws IOException {
+			flushChunk();
+			mOut.flush();
+		}
+
+		/**
+		 * Write out the buffer and the last chunk, leaving the stream open
+		 */
+		void finish() throws IOException {
+			flushChunk();
+			mOut.write(LAST_CHUNK);
+		}
+
+		private void flushChunk() throws IOException {
+			if (mCount > 0) {
+				writeChunk(mBuf, 0, mCount);
+				mCount = 0;
+			}
+		}
+
+		private void writeChunk(byte[] b, int off, int len) throws IOException {
+			mOut.write(Integer.toHexString(len).getBytes());
+			mOut.write(CRLF);
+			mOut.write(b, off, len);
+			mOut.write(CRLF);
+		}
+	}
+}
@@ -0,0 +1,194 @@
+package mailserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Helpers for writing JSON by hand, and for reading the flat objects
+ * clients send
+ */
+public class Json {
+
+    /**
+     * Append a string as a quoted JSON string, or null
+     */
+    public static StringBuilder appendString(StringBuilder sb, String s) {
+        if (s == null) {
+            return sb.append("null");
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        String hex = Integer.toHexString(c);
+                        sb.append("\\u");
+                        for (int j = hex.length(); j < 4; j++) {
+                            sb.append('0');
+                        }
+                        sb.append(hex);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"');
+    }
+
+    /**
+     * Append a "name": prefix
+     */
+    public static StringBuilder appendName(StringBuilder sb, String name) {
+        return appendString(sb, name).append(':');
+    }
+
+    /**
+     * Parse an object whose values are strings, numbers, booleans or null
+     * into their text, null for null. Returns null if the text is not such
+     * an object.
+     */
+    public static Map<String, String> parseFlatObject(String s) {
+        Reader in = new Reader(s);
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        try {
+            in.expect('{');
+            if (!in.consume('}')) {
+                do {
+                    String name = in.string();
+                    in.expect(':');
+                    fields.put(name, in.value());
+                } while (in.consume(','));
+                in.expect('}');
+            }
+            if (!in.atEnd()) {
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return fields;
+    }
+
+    private static class Reader {
+        private final String mText;
+        private int mPos;
+
+        Reader(String text) {
+            mText = text;
+        }
+
+        private void skipSpace() {
+            while (mPos < mText.length() && mText.charAt(mPos) <= ' ') {
+                mPos++;
+            }
+        }
+
+        boolean atEnd() {
+            skipSpace();
+            return mPos == mText.length();
+        }
+
+        boolean consume(char c) {
+            skipSpace();
+            if (mPos < mText.length() && mText.charAt(mPos) == c) {
+                mPos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!consume(c)) {
+                throw new IllegalArgumentException("Expected " + c + " at " + mPos);
+            }
+        }
+
+        String value() {
+            skipSpace();
+            if (mPos < mText.length() && mText.charAt(mPos) == '"') {
+                return string();
+            }
+            int start = mPos;
+            while (mPos < mText.length() && isLiteralChar(mText.charAt(mPos))) {
+                mPos++;
+            }
+            String literal = mText.substring(start, mPos);
+            if (literal.length() == 0) {
+                throw new IllegalArgumentException("Expected a value at " + start);
+            }
+            return literal.equals("null") ? null : literal;
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder sb = null;
+            int start = mPos;
+            while (true) {
+                if (mPos >= mText.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char c = mText.charAt(mPos++);
+                if (c == '"') {
+                    return sb == null ? mText.substring(start, mPos - 1) : sb.toString();
+                }
+                if (c != '\\') {
+                    if (sb != null) {
+                        sb.append(c);
+                    }
+                    continue;
+                }
+                if (sb == null) {
+                    sb = new StringBuilder(mText.substring(start, mPos - 1));
+                }
+                if (mPos >= mText.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char e = mText.charAt(mPos++);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        if (mPos + 4 > mText.length()) {
+                            throw new IllegalArgumentException("Bad escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("Bad escape");
+                        }
+                        mPos += 4;
+                        break;
+                    case '"': case '\\': case '/':
+                        sb.append(e);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Bad escape");
+                }
+            }
+        }
+
+        private static boolean isLiteralChar(char c) {
+            return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || c == '-' || c == '+' || c == '.';
+        }
+    }
+}
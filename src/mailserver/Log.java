@@ -1,28 +1,380 @@
 package mailserver;
 
-import java.util.*; 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
-import java.text.DateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * The server log.
+ *
+ * Logging never blocks the caller: messages go into a bounded ring buffer
+ * and one background thread formats and writes them, to the console and
+ * optionally to a JSON-lines file that is rotated by size. When the buffer
+ * is full the message is dropped and counted, and the writer reports how
+ * many were lost. Timestamps are formatted once per second on the writer
+ * thread and reused.
+ *
+ * The level can be changed at run time; messages below it cost one
+ * comparison.
+ */
 public class Log {
 
-	private static boolean enableLog = true;	//Enable or Disable server logs
+	public enum Level { DEBUG, INFO, WARN, ERROR }
 
-	public static void print(String message) 
+	// read directly: Config logs its own errors, so it must not be needed here
+	private static boolean enableLog = !"false".equals(System.getProperty("mailserver.log.console"));	//Enable or Disable server logs
+	private static volatile Level sLevel = parseLevel(System.getProperty("mailserver.log.level"), Level.INFO);
+
+	private static final int CAPACITY = ringSize(System.getProperty("mailserver.log.bufferSize"));
+	private static final int MASK = CAPACITY - 1;
+	// slot i holds the entry with sequence number s when sPublished[i] == s + 1
+	private static final AtomicLongArray sPublished = new AtomicLongArray(CAPACITY);
+	private static final long[] sTimes = new long[CAPACITY];
+	private static final Level[] sLevels = new Level[CAPACITY];
+	private static final String[] sMessages = new String[CAPACITY];
+	private static final Throwable[] sErrors = new Throwable[CAPACITY];
+	private static final String[] sThreads = new String[CAPACITY];
+	private static final AtomicLong sTail = new AtomicLong();
+	private static volatile long sHead;
+	private static volatile Thread sWriterThread;
+
+	private static final LongAdder sDropped = new LongAdder();
+	private static final LongAdder sWritten = new LongAdder();
+
+	private static final String sFileName = System.getProperty("mailserver.log.file");
+	private static final long sMaxFileBytes = parseLong(System.getProperty("mailserver.log.maxFileBytes"), 10 * 1024 * 1024);
+	private static final int sMaxFiles = (int) parseLong(System.getProperty("mailserver.log.maxFiles"), 5);
+
+	static {
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				new LogWriter().loop();
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		sWriterThread = writer;
+		writer.start();
+		// whatever is still buffered at exit is written out
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush(1000);
+			}
+		}, "log-flush"));
+	}
+
+	public static void print(String message)
 	{
-		try {
-			if (enableLog == true) {
-				Calendar cal = Calendar.getInstance();
-				Date date = cal.getTime(); 
-				DateFormat dateFormat = new SimpleDateFormat("dd-MM-yyyy/HH:mm:ss");
-				String time = dateFormat.format(date);
+		log(Level.INFO, message, null);
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message, null);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message, null);
+	}
+
+	public static void error(String message, Throwable error) {
+		log(Level.ERROR, message, error);
+	}
+
+	/**
+	 * Return whether messages of the given level are logged, so callers can
+	 * skip building expensive messages
+	 */
+	public static boolean isEnabled(Level level) {
+		return level.ordinal() >= sLevel.ordinal();
+	}
+
+	public static Level getLevel() {
+		return sLevel;
+	}
+
+	public static void setLevel(Level level) {
+		sLevel = level;
+	}
+
+	/**
+	 * Return the number of messages dropped because the buffer was full
+	 */
+	public static long getDropped() {
+		return sDropped.sum();
+	}
+
+	/**
+	 * Return the number of messages written
+	 */
+	public static long getWritten() {
+		return sWritten.sum();
+	}
+
+	/**
+	 * Put a message in the buffer, or drop it if the buffer is full
+	 */
+	public static void log(Level level, String message, Throwable error) {
+		if (level.ordinal() < sLevel.ordinal()) {
+			return;
+		}
+		long seq;
+		do {
+			seq = sTail.get();
+			if (seq - sHead >= CAPACITY) {
+				sDropped.increment();
+				return;
+			}
+		} while (!sTail.compareAndSet(seq, seq + 1));
+		int slot = (int) (seq & MASK);
+		sTimes[slot] = System.currentTimeMillis();
+		sLevels[slot] = level;
+		sMessages[slot] = message;
+		sErrors[slot] = error;
+		sThreads[slot] = Thread.currentThread().getName();
+		// publishing the sequence makes the fields above visible to the writer
+		sPublished.lazySet(slot, seq + 1);
+	}
+
+	/**
+	 * Wait up to the given time for the buffer to be written out
+	 */
+	public static void flush(long timeoutMillis) {
+		long target = sTail.get();
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (sHead < target && System.currentTimeMillis() < deadline) {
+			LockSupport.unpark(sWriterThread);
+			LockSupport.parkNanos(1000000);
+		}
+	}
+
+	/**
+	 * Takes the messages out of the buffer and writes them
+	 */
+	private static class LogWriter {
+		private final SimpleDateFormat mConsoleFormat = new SimpleDateFormat("dd-MM-yyyy/HH:mm:ss");
+		private final SimpleDateFormat mIsoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+		private long mCachedSecond = Long.MIN_VALUE;
+		private String mConsoleTime;
+		private String mIsoTime;
+
+		private final PrintStream mConsole = System.out;
+		private final StringBuilder mLine = new StringBuilder(256);
+		private Writer mFile;
+		private long mFileBytes;
+		private long mReportedDropped;
 
+		LogWriter() {
+			mIsoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+			if (sFileName != null && sFileName.trim().length() > 0) {
+				openFile();
+			}
+		}
+
+		void loop() {
+			while (true) {
+				int written = drain();
+				if (written == 0) {
+					reportDropped();
+					flushSinks();
+					LockSupport.parkNanos(2000000);
+				}
+			}
+		}
+
+		/**
+		 * Write the messages published so far; returns how many
+		 */
+		private int drain() {
+			int count = 0;
+			long head = sHead;
+			while (true) {
+				int slot = (int) (head & MASK);
+				if (sPublished.get(slot) != head + 1) {
+					break;
+				}
+				long time = sTimes[slot];
+				Level level = sLevels[slot];
+				String message = sMessages[slot];
+				Throwable error = sErrors[slot];
+				String thread = sThreads[slot];
+				sMessages[slot] = null;
+				sErrors[slot] = null;
+				sThreads[slot] = null;
+				head++;
+				// frees the slot for the producers
+				sHead = head;
+				try {
+					write(time, level, message, error, thread);
+				} catch (Exception e) {
+					// the log cannot report its own failures anywhere else
+					e.printStackTrace();
+				}
+				count++;
+				if (count % 1024 == 0) {
+					flushSinks();
+				}
+			}
+			return count;
+		}
+
+		private void write(long time, Level level, String message, Throwable error, String thread)
+				throws IOException {
+			updateTime(time);
+			String trace = null;
+			if (error != null) {
+				StringWriter sw = new StringWriter();
+				error.printStackTrace(new PrintWriter(sw));
+				trace = sw.toString();
+			}
+			if (enableLog == true) {
+				mLine.setLength(0);
 				//Print the log along with the time
-				System.out.println("[" + time + "] "+ message);
+				mLine.append('[').append(mConsoleTime).append("] ");
+				if (level != Level.INFO) {
+					mLine.append(level.name()).append(' ');
+				}
+				mLine.append(message);
+				mConsole.println(mLine);
+				if (trace != null) {
+					mConsole.print(trace);
+				}
+			}
+			if (mFile != null) {
+				mLine.setLength(0);
+				mLine.append('{');
+				Json.appendName(mLine, "time");
+				mLine.append('"').append(mIsoTime).append('.');
+				int millis = (int) (time % 1000);
+				mLine.append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+					.append((char) ('0' + millis % 10)).append("Z\",");
+				Json.appendName(mLine, "level");
+				Json.appendString(mLine, level.name()).append(',');
+				Json.appendName(mLine, "thread");
+				Json.appendString(mLine, thread).append(',');
+				Json.appendName(mLine, "message");
+				Json.appendString(mLine, message);
+				if (trace != null) {
+					mLine.append(',');
+					Json.appendName(mLine, "error");
+					Json.appendString(mLine, trace);
+				}
+				mLine.append("}\n");
+				mFile.write(mLine.toString());
+				mFileBytes += mLine.length();
+				if (mFileBytes >= sMaxFileBytes) {
+					rotate();
+				}
+			}
+			sWritten.increment();
+		}
+
+		/**
+		 * Format the time, reusing the strings while the second is the same
+		 */
+		private void updateTime(long time) {
+			long second = time / 1000;
+			if (second != mCachedSecond) {
+				Date date = new Date(time);
+				mConsoleTime = mConsoleFormat.format(date);
+				mIsoTime = mIsoFormat.format(date);
+				mCachedSecond = second;
+			}
+		}
+
+		private void reportDropped() {
+			long dropped = sDropped.sum();
+			if (dropped != mReportedDropped) {
+				try {
+					write(System.currentTimeMillis(), Level.WARN, (dropped - mReportedDropped)
+						+ " log messages were dropped because the log buffer was full", null, "log-writer");
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				mReportedDropped = dropped;
+			}
+		}
+
+		private void flushSinks() {
+			mConsole.flush();
+			if (mFile != null) {
+				try {
+					mFile.flush();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+		private void openFile() {
+			try {
+				File file = new File(sFileName);
+				mFileBytes = file.length();
+				mFile = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(file, true), StandardCharsets.UTF_8), 65536);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mFile = null;
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
-		
+
+		/**
+		 * Move log to log.1, log.1 to log.2 and so on, dropping the oldest
+		 */
+		private void rotate() throws IOException {
+			mFile.close();
+			new File(sFileName + "." + sMaxFiles).delete();
+			for (int i = sMaxFiles - 1; i >= 1; i--) {
+				File older = new File(sFileName + "." + i);
+				if (older.exists()) {
+					older.renameTo(new File(sFileName + "." + (i + 1)));
+				}
+			}
+			new File(sFileName).renameTo(new File(sFileName + ".1"));
+			openFile();
+		}
+	}
+
+	static Level parseLevel(String value, Level defaultValue) {
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Level.valueOf(value.trim().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return defaultValue;
+		}
+	}
+
+	private static long parseLong(String value, long defaultValue) {
+		try {
+			return value == null ? defaultValue : Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Return the buffer size as a power of two
+	 */
+	private static int ringSize(String value) {
+		long size = Math.max(16, Math.min(1 << 24, parseLong(value, 8192)));
+		return Integer.highestOneBit((int) size - 1) << 1;
 	}
 }
@@ -0,0 +1,766 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A durable log of the emails waiting to be sent, so they survive a
+ * restart.
+ *
+ * The spool is a directory of memory-mapped segment files. Records are
+ * only ever appended: one when an email is scheduled, one when it is done,
+ * a short one with the new send time whenever it is deferred, and, for
+ * emails confirmed in digests, one with the outcome waiting to be
+ * confirmed.
+ * Each record carries a CRC, so a write torn by a crash is recognised and
+ * ignored at recovery. Callers that need an email on disk wait for a
+ * background thread that syncs whatever has been appended meanwhile; many
+ * emails composed at the same time share one sync (group commit).
+ *
+ * Segments are rolled when full. A background task rewrites the emails
+ * still pending from the oldest segments, once they are mostly finished,
+ * into the current one and deletes the old files, so the spool stays
+ * proportional to the queue.
+ */
+public class MailSpool {
+    private static final byte ADD = 1;
+    private static final byte DONE = 2;
+    private static final byte OUTCOME = 3;
+    private static final byte RESCHEDULE = 4;
+    // length, CRC, type
+    private static final int HEADER = 9;
+    private static final String SUFFIX = ".spool";
+    // records a compaction moves per hold of the lock
+    private static final int COMPACT_SLICE = 1000;
+
+    /**
+     * Receives the emails still pending at recovery; those delivered or
+     * failed whose confirmation is still to be sent come in that state
+     */
+    public interface Visitor {
+        void visit(Email email, boolean needConfirm);
+    }
+
+    private final File mDir;
+    private final int mSegmentBytes;
+    private final boolean mSync;
+    private final double mCompactRatio;
+
+    // guarded by this
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private final Map<Long, Location> mIndex = new HashMap<Long, Location>();
+    private Segment mActive;
+    private long mNextSeq;
+
+    // group commit
+    private final Object mSyncLock = new Object();
+    private volatile long mWritten;
+    private long mDurable;
+    private final Thread mSyncer;
+    private final ScheduledExecutorService mCompactor;
+
+    public MailSpool(File dir) throws IOException {
+        this(dir,
+            Config.getInt("mailserver.spool.segmentBytes", 64 * 1024 * 1024),
+            Config.getBoolean("mailserver.spool.fsync", true),
+            Config.getLong("mailserver.spool.compactIntervalMillis", 10000));
+    }
+
+    public MailSpool(File dir, int segmentBytes, boolean sync, long compactIntervalMillis) throws IOException {
+        mDir = dir;
+        mSegmentBytes = segmentBytes;
+        mSync = sync;
+        mCompactRatio = 0.5;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spool directory " + dir);
+        }
+        mSyncer = new NamedThreadFactory("spool-sync", true).newThread(new Runnable() {
+            public void run() {
+                syncLoop();
+            }
+        });
+        mCompactor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("spool-compact", true));
+        if (compactIntervalMillis > 0) {
+            mCompactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Exception e) {
+                        Log.error("Spool compaction failed", e);
+                    }
+                }
+            }, compactIntervalMillis, compactIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Open the spool directory named by the settings, or return null if
+     * spooling is turned off
+     */
+    public static MailSpool fromConfig() {
+        if (!Config.getBoolean("mailserver.spool.enabled", true)) {
+            return null;
+        }
+        File dir = new File(Config.getString("mailserver.spool.dir", "spool"));
+        try {
+            return new MailSpool(dir);
+        } catch (IOException e) {
+            Log.print("Unable to open the spool in " + dir + ", emails will not survive a restart: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Read every segment, hand the emails still pending to the visitor and
+     * make the spool ready for appending. Returns the number of emails
+     * recovered.
+     */
+    public synchronized int recover(Visitor visitor) throws IOException {
+        long start = System.currentTimeMillis();
+        File[] files = mDir.listFiles();
+        long[] seqs = new long[files == null ? 0 : files.length];
+        int n = 0;
+        for (int i = 0; files != null && i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    seqs[n++] = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        seqs = Arrays.copyOf(seqs, n);
+        Arrays.sort(seqs);
+
+        for (long seq : seqs) {
+            Segment segment = Segment.open(fileOf(seq), seq, 0);
+            scan(segment);
+            mSegments.add(segment);
+            mNextSeq = seq + 1;
+        }
+        if (mSegments.isEmpty()) {
+            roll(0);
+        } else {
+            mActive = mSegments.get(mSegments.size() - 1);
+        }
+
+        int recovered = 0;
+        for (Location location : mIndex.values()) {
+            ByteBuffer record = location.mSegment.record(location.mOffset);
+            byte type = record.get();
+            long id = record.getLong();
+            if (type == OUTCOME) {
+                visitor.visit(readOutcome(id, record), true);
+            } else {
+                boolean needConfirm = record.get() != 0;
+                Email email = readEmail(id, record);
+                if (location.mReschedule != null) {
+                    ByteBuffer reschedule = location.mReschedule.mSegment.record(location.mReschedule.mOffset);
+                    // the type and id
+                    reschedule.position(reschedule.position() + 9);
+                    email.setSendTime(reschedule.getLong());
+                    email.attempts = reschedule.getInt();
+                    email.state = EmailState.DEFERRED;
+                }
+                visitor.visit(email, needConfirm);
+            }
+            recovered++;
+        }
+        mSyncer.start();
+        Log.print("Recovered " + recovered + " emails from " + mSegments.size() + " spool segments in "
+            + (System.currentTimeMillis() - start) + " ms");
+        return recovered;
+    }
+
+    /**
+     * Index the valid records of a segment, stopping at the first torn one
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buf = segment.mBuffer;
+        int pos = 0;
+        CRC32 crc = new CRC32();
+        while (pos + HEADER <= buf.capacity()) {
+            int length = buf.getInt(pos);
+            if (length <= 0 || pos + HEADER + length > buf.capacity()) {
+                break;
+            }
+            ByteBuffer body = buf.duplicate();
+            body.limit(pos + HEADER + length).position(pos + 8);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != buf.getInt(pos + 4)) {
+                break;
+            }
+            byte type = buf.get(pos + 8);
+            long id = buf.getLong(pos + HEADER);
+            if (type == ADD || type == OUTCOME) {
+                Location previous = mIndex.put(id, new Location(segment, pos));
+                if (previous != null) {
+                    previous.release();
+                }
+                segment.mLive++;
+            } else if (type == RESCHEDULE) {
+                Location location = mIndex.get(id);
+                if (location != null) {
+                    location.reschedule(new Location(segment, pos));
+                }
+            } else if (type == DONE) {
+                Location location = mIndex.remove(id);
+                if (location != null) {
+                    location.release();
+                }
+            }
+            segment.mRecords++;
+            pos += HEADER + length;
+        }
+        segment.mWritePos = pos;
+    }
+
+    /**
+     * Record a scheduled email; returns once it is on disk
+     */
+    public void add(Email email, boolean needConfirm) throws IOException {
+        byte[] payload = encode(email, needConfirm);
+        long end;
+        synchronized (this) {
+            record(email, payload);
+            end = mWritten;
+        }
+        awaitDurable(end);
+    }
+
+    /**
+     * Record several scheduled emails at once; returns once all of them are
+     * on disk, after a single wait
+     */
+    public void addAll(List<Email> emails, boolean needConfirm) throws IOException {
+        byte[][] payloads = new byte[emails.size()][];
+        for (int i = 0; i < payloads.length; i++) {
+            payloads[i] = encode(emails.get(i), needConfirm);
+        }
+        long end;
+        synchronized (this) {
+            for (int i = 0; i < payloads.length; i++) {
+                record(emails.get(i), payloads[i]);
+            }
+            end = mWritten;
+        }
+        awaitDurable(end);
+    }
+
+    private void record(Email email, byte[] payload) throws IOException {
+        Location previous = mIndex.get(email.id);
+        Location location = append(ADD, payload);
+        mIndex.put(email.id, location);
+        if (previous != null) {
+            previous.release();
+        }
+        location.mSegment.mLive++;
+    }
+
+    /**
+     * Record that a spooled email was deferred to its current send time.
+     * Only the send time and attempts are written, and the caller does not
+     * wait for the disk: losing this record only means the email is tried
+     * again sooner after a crash.
+     */
+    public void reschedule(Email email) {
+        ByteBuffer payload = ByteBuffer.allocate(20);
+        payload.putLong(email.id).putLong(email.sendTimeMillis).putInt(email.attempts);
+        synchronized (this) {
+            Location location = mIndex.get(email.id);
+            if (location == null) {
+                return;
+            }
+            try {
+                location.reschedule(append(RESCHEDULE, payload.array()));
+            } catch (IOException e) {
+                Log.error("Unable to spool the new send time of email " + email.id, e);
+            }
+        }
+        requestSync();
+    }
+
+    /**
+     * Record the outcome of an email whose confirmation is sent later, in
+     * place of the email, until done is called for it. The caller does not
+     * wait for the disk: losing this record only means the email is sent
+     * again after a crash.
+     */
+    public void outcome(Email email) {
+        byte[] payload = encodeOutcome(email);
+        synchronized (this) {
+            Location previous = mIndex.get(email.id);
+            if (previous == null) {
+                return;
+            }
+            try {
+                Location location = append(OUTCOME, payload);
+                mIndex.put(email.id, location);
+                previous.release();
+                location.mSegment.mLive++;
+            } catch (IOException e) {
+                Log.error("Unable to spool the outcome of email " + email.id, e);
+            }
+        }
+        requestSync();
+    }
+
+    /**
+     * Record that an email was delivered or given up on. The caller does
+     * not wait for the disk: losing this record only means the email is
+     * sent again after a crash.
+     */
+    public void done(Email email) {
+        ByteBuffer payload = ByteBuffer.allocate(9);
+        payload.putLong(email.id).put((byte) email.state.ordinal());
+        synchronized (this) {
+            Location location = mIndex.remove(email.id);
+            if (location == null) {
+                return;
+            }
+            location.release();
+            try {
+                append(DONE, payload.array());
+            } catch (IOException e) {
+                Log.error("Unable to spool the outcome of email " + email.id, e);
+            }
+        }
+        requestSync();
+    }
+
+    /**
+     * Return the number of emails in the spool
+     */
+    public synchronized int size() {
+        return mIndex.size();
+    }
+
+    /**
+     * Return the number of segment files
+     */
+    public synchronized int segmentCount() {
+        return mSegments.size();
+    }
+
+    private Location append(byte type, byte[] payload) throws IOException {
+        int size = HEADER + payload.length;
+        if (mActive.mWritePos + size > mActive.mBuffer.capacity()) {
+            roll(size);
+        }
+        int pos = mActive.mWritePos;
+        ByteBuffer buf = mActive.mBuffer;
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload, 0, payload.length);
+        // the length goes last, so a half-written record reads as the end
+        buf.putInt(pos + 4, (int) crc.getValue());
+        buf.put(pos + 8, type);
+        ByteBuffer body = buf.duplicate();
+        body.position(pos + HEADER);
+        body.put(payload);
+        buf.putInt(pos, payload.length);
+        mActive.mWritePos = pos + size;
+        mActive.mRecords++;
+        mWritten += size;
+        return new Location(mActive, pos);
+    }
+
+    /**
+     * Close the current segment and start a new one big enough for a record
+     * of the given size
+     */
+    private void roll(int recordSize) throws IOException {
+        if (mActive != null) {
+            // the syncer only follows the current segment, so finish this one here
+            mActive.mBuffer.force();
+        }
+        long seq = mNextSeq++;
+        mActive = Segment.open(fileOf(seq), seq, Math.max(mSegmentBytes, recordSize + HEADER));
+        mSegments.add(mActive);
+    }
+
+    private File fileOf(long seq) {
+        return new File(mDir, String.format("%012d", seq) + SUFFIX);
+    }
+
+    private void requestSync() {
+        synchronized (mSyncLock) {
+            mSyncLock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until everything up to the given position is on disk
+     */
+    private void awaitDurable(long end) throws IOException {
+        if (!mSync) {
+            return;
+        }
+        synchronized (mSyncLock) {
+            mSyncLock.notifyAll();
+            while (mDurable < end) {
+                try {
+                    mSyncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the spool");
+                }
+            }
+        }
+    }
+
+    /**
+     * Sync whatever was appended since the last sync, waking up every
+     * writer it covers
+     */
+    private void syncLoop() {
+        while (true) {
+            try {
+                synchronized (mSyncLock) {
+                    while (mDurable >= mWritten) {
+                        mSyncLock.wait();
+                    }
+                }
+                long target;
+                MappedByteBuffer buffer;
+                synchronized (this) {
+                    target = mWritten;
+                    buffer = mActive.mBuffer;
+                }
+                if (mSync) {
+                    buffer.force();
+                }
+                synchronized (mSyncLock) {
+                    mDurable = Math.max(mDurable, target);
+                    mSyncLock.notifyAll();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Log.error("Spool sync failed", e);
+            }
+        }
+    }
+
+    /**
+     * Rewrite the pending emails of the oldest segments into the current
+     * one and delete those segments.
+     *
+     * Segments go strictly oldest first, up to the first one still mostly
+     * pending. Besides its pending emails, a segment holds the records that
+     * cancel earlier ones of the same email, e.g. that it is done, and
+     * those are not copied; so a segment is only deleted once no older one
+     * is left with records it cancels.
+     */
+    void compact() throws IOException {
+        List<Segment> victims = new ArrayList<Segment>();
+        synchronized (this) {
+            for (Segment segment : mSegments) {
+                if (segment == mActive || segment.mLive > segment.mRecords * (1 - mCompactRatio)) {
+                    break;
+                }
+                victims.add(segment);
+            }
+        }
+        for (Segment victim : victims) {
+            // the segment is full, so its records no longer change; they are
+            // walked in slices, each under the lock but short, so composing
+            // is not held up for the whole segment
+            int end = victim.mWritePos;
+            int pos = 0;
+            int moved = 0;
+            while (pos < end) {
+                synchronized (this) {
+                    for (int n = 0; n < COMPACT_SLICE && pos < end; n++) {
+                        moved += move(victim, pos);
+                        pos += HEADER + victim.mBuffer.getInt(pos);
+                    }
+                }
+            }
+            synchronized (this) {
+                victim.mLive = 0;
+                mActive.mBuffer.force();
+                mSegments.remove(victim);
+            }
+            victim.delete();
+            Log.print("Compacted spool segment " + victim.mSeq + ", moved " + moved + " pending emails");
+        }
+    }
+
+    /**
+     * Copy the record at the given offset of a segment being compacted into
+     * the current one if it is still live. Returns 1 if it was a pending
+     * email, 0 otherwise.
+     */
+    private int move(Segment victim, int offset) throws IOException {
+        byte type = victim.mBuffer.get(offset + 8);
+        if (type == DONE) {
+            return 0;
+        }
+        long id = victim.mBuffer.getLong(offset + HEADER);
+        Location location = mIndex.get(id);
+        if (location == null) {
+            // done ones are skipped, so they stay done
+            return 0;
+        }
+        Location reschedule = location.mReschedule;
+        if (type == RESCHEDULE) {
+            // the latest send time of an email recorded in a later segment
+            if (reschedule != null && reschedule.mSegment == victim && reschedule.mOffset == offset) {
+                location.reschedule(copy(reschedule));
+            }
+            return 0;
+        }
+        if (location.mSegment != victim || location.mOffset != offset) {
+            // recorded again since
+            return 0;
+        }
+        Location copy = copy(location);
+        copy.mSegment.mLive++;
+        copy.mReschedule = reschedule;
+        mIndex.put(id, copy);
+        if (reschedule != null) {
+            // a new send time must come after the email it belongs to
+            copy.reschedule(copy(reschedule));
+        }
+        return 1;
+    }
+
+    /**
+     * Append a copy of a record to the current segment
+     */
+    private Location copy(Location location) throws IOException {
+        ByteBuffer record = location.mSegment.record(location.mOffset);
+        byte type = record.get();
+        byte[] payload = new byte[record.remaining()];
+        record.get(payload);
+        return append(type, payload);
+    }
+
+    /**
+     * Stop the background threads, leaving everything appended on disk
+     */
+    public void close() {
+        mCompactor.shutdownNow();
+        mSyncer.interrupt();
+        synchronized (this) {
+            if (mActive != null) {
+                mActive.mBuffer.force();
+            }
+        }
+    }
+
+    private static byte[] encode(Email email, boolean needConfirm) {
+        MessageBody body = email.body;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(128 + (body.isDeflated() ? 0 : body.text().length()));
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            out.writeLong(email.id);
+            out.writeBoolean(needConfirm);
+            out.writeLong(email.submittedTimeMillis);
+            out.writeLong(email.sendTimeMillis);
+            out.writeInt(email.delayTime);
+            writeString(out, email.source);
+            writeString(out, email.dest);
+            writeString(out, email.subject);
+            writeString(out, email.smtpServer);
+            // a deflated text is stored as it is, after the fields older records have
+            writeString(out, body.isDeflated() ? "" : body.text());
+            out.writeInt(email.attempts);
+            if (body.isDeflated()) {
+                byte[] deflated = body.deflatedBytes();
+                out.writeInt(body.length());
+                out.writeInt(deflated.length);
+                out.write(deflated);
+            }
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * Encode what a confirmation needs to know about a finished email; its
+     * text is not kept
+     */
+    private static byte[] encodeOutcome(Email email) {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(buf);
+        try {
+            out.writeLong(email.id);
+            out.writeByte(email.state.ordinal());
+            out.writeLong(email.submittedTimeMillis);
+            out.writeLong(email.sendTimeMillis);
+            out.writeInt(email.attempts);
+            writeString(out, email.source);
+            writeString(out, email.dest);
+            writeString(out, email.subject);
+            writeString(out, email.smtpServer);
+            writeString(out, email.error);
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    private static Email readOutcome(long id, ByteBuffer in) {
+        EmailState state = EmailState.values()[in.get()];
+        long submitted = in.getLong();
+        long sendTime = in.getLong();
+        int attempts = in.getInt();
+        String source = readString(in);
+        String dest = readString(in);
+        String subject = readString(in);
+        String smtpServer = readString(in);
+        String error = readString(in);
+        Email email = new Email(id, source, dest, subject, smtpServer, 0, MessageBody.of(""), submitted, sendTime);
+        email.attempts = attempts;
+        email.state = state;
+        email.error = error.isEmpty() ? null : error;
+        return email;
+    }
+
+    private static Email readEmail(long id, ByteBuffer in) {
+        long submitted = in.getLong();
+        long sendTime = in.getLong();
+        int delayTime = in.getInt();
+        String source = readString(in);
+        String dest = readString(in);
+        String subject = readString(in);
+        String smtpServer = readString(in);
+        MessageBody body = MessageBody.of(readString(in));
+        int attempts = in.remaining() >= 4 ? in.getInt() : 0;
+        if (in.remaining() >= 8) {
+            int length = in.getInt();
+            byte[] deflated = new byte[in.getInt()];
+            in.get(deflated);
+            body = MessageBody.deflated(deflated, 0, deflated.length, length);
+        }
+        Email email = new Email(id, source, dest, subject, smtpServer, delayTime, body, submitted, sendTime);
+        email.attempts = attempts;
+        if (attempts > 0) {
+            email.state = EmailState.DEFERRED;
+        }
+        return email;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Where the record of a pending email is, and that of its latest send
+     * time if it was deferred since
+     */
+    private static final class Location {
+        final Segment mSegment;
+        final int mOffset;
+        Location mReschedule;
+
+        Location(Segment segment, int offset) {
+            mSegment = segment;
+            mOffset = offset;
+        }
+
+        /**
+         * Replace the record of the send time, which stays live in its
+         * segment
+         */
+        void reschedule(Location location) {
+            if (mReschedule != null) {
+                mReschedule.mSegment.mLive--;
+            }
+            mReschedule = location;
+            location.mSegment.mLive++;
+        }
+
+        /**
+         * The email was done or recorded again: its records are no longer live
+         */
+        void release() {
+            mSegment.mLive--;
+            if (mReschedule != null) {
+                mReschedule.mSegment.mLive--;
+            }
+        }
+    }
+
+    /**
+     * One mapped segment file
+     */
+    private static final class Segment {
+        final File mFile;
+        final long mSeq;
+        final MappedByteBuffer mBuffer;
+        int mWritePos;
+        int mRecords;
+        int mLive;
+
+        private Segment(File file, long seq, MappedByteBuffer buffer) {
+            mFile = file;
+            mSeq = seq;
+            mBuffer = buffer;
+        }
+
+        /**
+         * Map an existing file, or create one of the given size
+         */
+        static Segment open(File file, long seq, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.length() < size) {
+                    raf.setLength(size);
+                }
+                FileChannel channel = raf.getChannel();
+                // the mapping stays valid after the file is closed
+                return new Segment(file, seq, channel.map(FileChannel.MapMode.READ_WRITE, 0, raf.length()));
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Return the record at the given offset, positioned at its type
+         */
+        ByteBuffer record(int offset) {
+            ByteBuffer record = mBuffer.duplicate();
+            int length = mBuffer.getInt(offset);
+            record.limit(offset + HEADER + length).position(offset + 8);
+            return record;
+        }
+
+        void delete() {
+            if (!mFile.delete()) {
+                Log.print("Unable to delete spool segment " + mFile);
+            }
+        }
+    }
+}
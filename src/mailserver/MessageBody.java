@@ -0,0 +1,284 @@
+package mailserver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The text of an email.
+ *
+ * Emails can wait days for their send time, and nothing reads the text
+ * until delivery. Short texts stay on the heap as they are; longer ones
+ * are deflated, into a direct buffer outside the heap while direct memory
+ * use stays under mailserver.email.offHeapMaxBytes and into a heap array
+ * beyond that. The deflated form is what the spool stores, so recovery
+ * does not inflate it either.
+ *
+ * This saves heap while emails wait in the queue. Delivery inflates the
+ * text a block at a time straight into the SMTP connection (reader());
+ * text() still builds the whole string on the heap, for the confirmation
+ * emails and the status pages.
+ */
+final class MessageBody {
+    static final int OFF_HEAP_THRESHOLD = Config.getInt("mailserver.email.offHeapThreshold", 1024);
+    // direct buffers count against -XX:MaxDirectMemorySize, which defaults
+    // to the heap size and is shared with the NIO buffers
+    static final long OFF_HEAP_MAX_BYTES =
+        Config.getLong("mailserver.email.offHeapMaxBytes", Runtime.getRuntime().maxMemory() / 2);
+    private static final BufferPoolMXBean DIRECT_POOL = directPool();
+
+    // zlib keeps its state in native memory that only end() frees, so a
+    // few are kept for reuse by whichever thread needs one next
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+    private static final ArrayBlockingQueue<Deflater> sDeflaters = new ArrayBlockingQueue<Deflater>(POOL_SIZE);
+    private static final ArrayBlockingQueue<Inflater> sInflaters = new ArrayBlockingQueue<Inflater>(POOL_SIZE);
+
+    // exactly one of the two is set
+    private final String mText;
+    private final ByteBuffer mDeflated;
+    // UTF-8 length of a deflated text
+    private final int mLength;
+    private final int mHash;
+    // length in quoted-printable, -1 until the first delivery measures it
+    private volatile long mEncodedSize = -1;
+
+    private MessageBody(String text, ByteBuffer deflated, int length, int hash) {
+        mText = text;
+        mDeflated = deflated;
+        mLength = length;
+        mHash = hash;
+    }
+
+    /**
+     * Return the body for the text, deflated if it is long
+     */
+    static MessageBody of(String text) {
+        if (text.length() < OFF_HEAP_THRESHOLD) {
+            return new MessageBody(text, null, 0, text.hashCode());
+        }
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = sDeflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED, true);
+        }
+        byte[] out = new byte[utf8.length / 2 + 64];
+        int size = 0;
+        try {
+            deflater.setInput(utf8);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+        } finally {
+            deflater.reset();
+            if (!sDeflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+        return deflated(out, 0, size, utf8.length);
+    }
+
+    /**
+     * Return the body for text deflated earlier, e.g. read from the spool
+     */
+    static MessageBody deflated(byte[] deflated, int offset, int size, int length) {
+        // an allocation past the limit would throw OutOfMemoryError, after a
+        // full GC and a wait, so the heap is used well before that
+        boolean offHeap = DIRECT_POOL == null || DIRECT_POOL.getMemoryUsed() + size <= OFF_HEAP_MAX_BYTES;
+        ByteBuffer buffer = offHeap ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        buffer.put(deflated, offset, size).flip();
+        return new MessageBody(null, buffer, length, buffer.hashCode());
+    }
+
+    /**
+     * Return whether the text is kept deflated
+     */
+    boolean isDeflated() {
+        return mDeflated != null;
+    }
+
+    /**
+     * Return the UTF-8 length of a deflated text
+     */
+    int length() {
+        return mLength;
+    }
+
+    /**
+     * Return a copy of the deflated text
+     */
+    byte[] deflatedBytes() {
+        byte[] bytes = new byte[mDeflated.remaining()];
+        mDeflated.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Return the text, inflating it if needed
+     */
+    String text() {
+        if (mText != null) {
+            return mText;
+        }
+        Inflater inflater = takeInflater();
+        byte[] utf8 = new byte[mLength];
+        try {
+            inflater.setInput(deflatedBytes());
+            int size = 0;
+            while (size < utf8.length && !inflater.finished()) {
+                int n = inflater.inflate(utf8, size, utf8.length - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            return new String(utf8, 0, size, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt message body", e);
+        } finally {
+            giveBack(inflater);
+        }
+    }
+
+    /**
+     * Return a reader of the text that inflates it a block at a time; close
+     * it when done
+     */
+    Reader reader() {
+        if (mText != null) {
+            return new StringReader(mText);
+        }
+        return new InputStreamReader(new InflatingStream(mDeflated.duplicate()), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return the length of the text in quoted-printable, encoding it only
+     * the first time, so retries and further sessions do not again
+     */
+    long encodedSize(QuotedPrintable encoder) throws IOException {
+        long size = mEncodedSize;
+        if (size < 0) {
+            CountingOutputStream out = new CountingOutputStream();
+            Reader text = reader();
+            try {
+                encoder.encodeBody(text, out);
+            } finally {
+                text.close();
+            }
+            size = out.getCount();
+            mEncodedSize = size;
+        }
+        return size;
+    }
+
+    /**
+     * The inflated bytes of a deflated text, using a pooled inflater until
+     * closed
+     */
+    private static final class InflatingStream extends InputStream {
+        private final ByteBuffer mInput;
+        private final byte[] mChunk = new byte[4096];
+        private Inflater mInflater = takeInflater();
+
+        InflatingStream(ByteBuffer input) {
+            mInput = input;
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mInflater == null) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                while (!mInflater.finished()) {
+                    if (mInflater.needsInput()) {
+                        if (!mInput.hasRemaining()) {
+                            break;
+                        }
+                        int n = Math.min(mChunk.length, mInput.remaining());
+                        mInput.get(mChunk, 0, n);
+                        mInflater.setInput(mChunk, 0, n);
+                    }
+                    int n = mInflater.inflate(b, off, len);
+                    if (n > 0) {
+                        return n;
+                    }
+                    if (mInflater.needsDictionary()) {
+                        break;
+                    }
+                }
+                return -1;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt message body", e);
+            }
+        }
+
+        public void close() {
+            if (mInflater != null) {
+                giveBack(mInflater);
+                mInflater = null;
+            }
+        }
+    }
+
+    private static BufferPoolMXBean directPool() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    private static Inflater takeInflater() {
+        Inflater inflater = sInflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    private static void giveBack(Inflater inflater) {
+        inflater.reset();
+        if (!sInflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof MessageBody)) {
+            return false;
+        }
+        MessageBody body = (MessageBody) other;
+        if (mHash != body.mHash) {
+            return false;
+        }
+        return mText != null ? mText.equals(body.mText) : mDeflated.equals(body.mDeflated);
+    }
+
+    public int hashCode() {
+        return mHash;
+    }
+
+    public String toString() {
+        return text();
+    }
+}
@@ -0,0 +1,152 @@
+package mailserver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The server's metrics: latency histograms, gauges and counters, named
+ * and labelled the Prometheus way and served at /metrics in its text
+ * format.
+ *
+ * Series are registered once, typically in static fields of the class that
+ * records them, so recording never looks anything up. Histograms are
+ * exported as summaries (a few quantiles, the sum and the count).
+ */
+public class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    /**
+     * A value read when the metrics are scraped
+     */
+    public interface Gauge {
+        double value();
+    }
+
+    // metric name to family, in registration order
+    private static final Map<String, Family> sFamilies = new LinkedHashMap<String, Family>();
+
+    /**
+     * Return the histogram with the given name and labels (e.g.
+     * phase="connect"), creating it on first use
+     */
+    public static synchronized LatencyHistogram histogram(String name, String help, String labels) {
+        Series series = family(name, help, "summary").series(labels);
+        if (series.mHistogram == null) {
+            series.mHistogram = new LatencyHistogram();
+        }
+        return series.mHistogram;
+    }
+
+    /**
+     * Register a value that can go up and down, replacing any gauge with the
+     * same name and labels
+     */
+    public static synchronized void gauge(String name, String help, String labels, Gauge gauge) {
+        family(name, help, "gauge").series(labels).mGauge = gauge;
+    }
+
+    /**
+     * Register a count that only goes up, read from elsewhere
+     */
+    public static synchronized void counter(String name, String help, String labels, Gauge counter) {
+        family(name, help, "counter").series(labels).mGauge = counter;
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = sFamilies.get(name);
+        if (family == null) {
+            family = new Family(name, help, type);
+            sFamilies.put(name, family);
+        }
+        return family;
+    }
+
+    /**
+     * Write every metric in the Prometheus text format; times in seconds
+     */
+    public static void writePrometheus(StringBuilder sb) {
+        List<Family> families;
+        synchronized (Metrics.class) {
+            families = new ArrayList<Family>(sFamilies.values());
+        }
+        for (Family family : families) {
+            sb.append("# HELP ").append(family.mName).append(' ').append(family.mHelp).append('\n');
+            sb.append("# TYPE ").append(family.mName).append(' ').append(family.mType).append('\n');
+            List<Series> all;
+            synchronized (Metrics.class) {
+                all = new ArrayList<Series>(family.mSeries.values());
+            }
+            for (Series series : all) {
+                if (series.mHistogram != null) {
+                    LatencyHistogram h = series.mHistogram;
+                    for (double q : QUANTILES) {
+                        sample(sb, family.mName, series.mLabels, "quantile=\"" + q + "\"",
+                            h.quantileMicros(q) / 1e6);
+                    }
+                    sample(sb, family.mName + "_sum", series.mLabels, null, h.getSumMicros() / 1e6);
+                    sample(sb, family.mName + "_count", series.mLabels, null, h.getCount());
+                } else if (series.mGauge != null) {
+                    double value;
+                    try {
+                        value = series.mGauge.value();
+                    } catch (RuntimeException e) {
+                        value = Double.NaN;
+                    }
+                    sample(sb, family.mName, series.mLabels, null, value);
+                }
+            }
+        }
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, String extra, double value) {
+        sb.append(name);
+        if (labels.length() > 0 || extra != null) {
+            sb.append('{').append(labels);
+            if (extra != null) {
+                sb.append(labels.length() > 0 ? "," : "").append(extra);
+            }
+            sb.append('}');
+        }
+        sb.append(' ');
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static final class Family {
+        final String mName;
+        final String mHelp;
+        final String mType;
+        final Map<String, Series> mSeries = new LinkedHashMap<String, Series>();
+
+        Family(String name, String help, String type) {
+            mName = name;
+            mHelp = help;
+            mType = type;
+        }
+
+        Series series(String labels) {
+            Series series = mSeries.get(labels);
+            if (series == null) {
+                series = new Series(labels);
+                mSeries.put(labels, series);
+            }
+            return series;
+        }
+    }
+
+    private static final class Series {
+        final String mLabels;
+        LatencyHistogram mHistogram;
+        Gauge mGauge;
+
+        Series(String labels) {
+            mLabels = labels;
+        }
+    }
+}
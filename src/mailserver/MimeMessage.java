@@ -0,0 +1,54 @@
+package mailserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * The message sent for an email: headers, then the body in
+ * quoted-printable, written straight to the SMTP connection as the text
+ * is inflated
+ */
+class MimeMessage implements SmtpSession.Content {
+    private final Email mEmail;
+    private final String mToHeader;
+
+    /**
+     * The To header is "<dest>", or a group when the message goes to
+     * several recipients at once
+     */
+    MimeMessage(Email email, String toHeader) {
+        mEmail = email;
+        mToHeader = toHeader;
+    }
+
+    public void writeTo(OutputStream out, QuotedPrintable encoder) throws IOException {
+        writeHeaders(out, encoder);
+        Reader text = mEmail.body.reader();
+        try {
+            encoder.encodeBody(text, out);
+        } finally {
+            text.close();
+        }
+    }
+
+    public long size(QuotedPrintable encoder) throws IOException {
+        CountingOutputStream headers = new CountingOutputStream();
+        writeHeaders(headers, encoder);
+        encoder.flush(headers);
+        return headers.getCount() + mEmail.body.encodedSize(encoder);
+    }
+
+    private void writeHeaders(OutputStream out, QuotedPrintable encoder) throws IOException {
+        encoder.writeLine(out, "From: <" + AddressValidator.toAscii(mEmail.source) + ">");
+        encoder.writeLine(out, "To: " + mToHeader);
+        encoder.writeAscii(out, "Subject: ");
+        encoder.encodeHeader(mEmail.subject, "Subject: ".length(), out);
+        encoder.writeLine(out, "");
+        encoder.writeLine(out, "Date: " + mEmail.getSendTime());
+        encoder.writeLine(out, "MIME-Version: 1.0");
+        encoder.writeLine(out, "Content-Type: text/plain; charset=" + QuotedPrintable.CHARSET_NAME);
+        encoder.writeLine(out, "Content-Transfer-Encoding: quoted-printable");
+        encoder.writeLine(out, "");
+    }
+}
@@ -0,0 +1,24 @@
+package mailserver;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread factory giving threads a readable name, e.g. "delivery-3"
+ */
+public class NamedThreadFactory implements ThreadFactory {
+    private final String mPrefix;
+    private final boolean mDaemon;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    public NamedThreadFactory(String prefix, boolean daemon) {
+        mPrefix = prefix;
+        mDaemon = daemon;
+    }
+
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, mPrefix + "-" + mCount.incrementAndGet());
+        thread.setDaemon(mDaemon);
+        return thread;
+    }
+}
@@ -0,0 +1,377 @@
+package mailserver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A non-blocking HTTP front end built on NIO selectors.
+ *
+ * An acceptor hands new connections round-robin to a few event loops (one
+ * per core by default). The loops read and write without blocking; once a
+ * whole request has arrived it is handled by HttpRequest, on the loop itself
+ * only for the few GETs answered from counters and on worker pools for
+ * everything else, since pages and API calls scan the queue or read files
+ * and EmailAgent.composeEmail may wait on DNS lookups. Submissions have a
+ * pool of their own (HandlerPools). Requests a pool has no room or no time
+ * for are refused by AdmissionControl.
+ *
+ * Each connection reads straight into its own HttpRequestParser, which
+ * picks up where it stopped on every read. Connections are persistent.
+ * Pipelined requests stay buffered while the one before them is handled,
+ * so responses go out in request order. A bulk request is the exception:
+ * its connection goes to a worker that serves it with blocking I/O, reading
+ * the body as the rows are composed and sending results as they are ready,
+ * and then closes it.
+ */
+class NioHttpServer {
+	private static final long SWEEP_INTERVAL = 1000;
+	private static final byte[] INTERNAL_ERROR = HttpRequest.errorResponse(500);
+
+	private final int mPort;
+	private final EmailAgent mEmailAgent;
+	private final EventLoop[] mLoops;
+	private final HandlerPools mWorkers;
+	private int mNextLoop;
+
+	public NioHttpServer(int port, EmailAgent emailAgent, int loops, int workers) throws IOException {
+		mPort = port;
+		mEmailAgent = emailAgent;
+		mLoops = new EventLoop[Math.max(1, loops)];
+		for (int i = 0; i < mLoops.length; i++) {
+			mLoops[i] = new EventLoop("http-loop-" + (i+1));
+		}
+		mWorkers = new HandlerPools("http-worker", AdmissionControl.COMPOSE_HANDLERS, workers, 
+									Config.getInt("mailserver.http.maxConcurrentHandlers", 10000),
+									AdmissionControl.QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Accept connections forever
+	 */
+	public void run() throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().setReuseAddress(true);
+		server.socket().bind(new InetSocketAddress(mPort));
+		server.configureBlocking(false);
+		Selector selector = Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+
+		for (EventLoop loop : mLoops) {
+			loop.start();
+		}
+		Log.print("The HTTP Server is running (NIO, " + mLoops.length + " event loops)...");
+
+		while (true) {
+			selector.select();
+			selector.selectedKeys().clear();
+			SocketChannel channel;
+			while ((channel = server.accept()) != null) {
+				try {
+					channel.configureBlocking(false);
+					channel.socket().setTcpNoDelay(true);
+					mLoops[mNextLoop].register(channel);
+					mNextLoop = (mNextLoop + 1) % mLoops.length;
+				} catch (IOException e) {
+					Log.error("Unable to register a connection", e);
+					closeQuietly(channel);
+				}
+			}
+		}
+	}
+
+	private static void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// nothing left to do
+		}
+	}
+
+	/**
+	 * A selector thread owning a set of connections
+	 */
+	private class EventLoop extends Thread {
+		private final Selector mSelector;
+		private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+
+		EventLoop(String name) throws IOException {
+			super(name);
+			setDaemon(true);
+			mSelector = Selector.open();
+		}
+
+		/**
+		 * Run a task on this loop's thread
+		 */
+		void execute(Runnable task) {
+			mTasks.add(task);
+			mSelector.wakeup();
+		}
+
+		void register(final SocketChannel channel) {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+						key.attach(new Connection(channel, key, EventLoop.this));
+					} catch (ClosedChannelException e) {
+						closeQuietly(channel);
+					}
+				}
+			});
+		}
+
+		public void run() {
+			long lastSweep = System.currentTimeMillis();
+			while (true) {
+				try {
+					mSelector.select(SWEEP_INTERVAL);
+					long now = System.currentTimeMillis();
+					if (now - lastSweep >= SWEEP_INTERVAL) {
+						closeIdle(now);
+						lastSweep = now;
+					}
+					Runnable task;
+					while ((task = mTasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						Connection conn = (Connection) key.attachment();
+						if (conn == null) {
+							continue;
+						}
+						try {
+							if (key.isValid() && key.isReadable()) {
+								conn.onReadable();
+							}
+							if (key.isValid() && key.isWritable()) {
+								conn.onWritable();
+							}
+						} catch (IOException e) {
+							conn.close();
+						}
+					}
+				} catch (Throwable t) {
+					Log.error("Event loop error", t);
+				}
+			}
+		}
+
+		/**
+		 * Close keep-alive connections idle for longer than the timeout
+		 */
+		private void closeIdle(long now) {
+			for (SelectionKey key : mSelector.keys()) {
+				Connection conn = (Connection) key.attachment();
+				if (conn != null && conn.isIdle()
+						&& now - conn.mLastActive > HttpRequest.KEEP_ALIVE_TIMEOUT) {
+					conn.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * The state of one client connection, only touched by its event loop
+	 */
+	private class Connection {
+		private final SocketChannel mChannel;
+		private final SelectionKey mKey;
+		private final EventLoop mLoop;
+		private final HttpRequestParser mParser = new HttpRequestParser();
+		private ByteBuffer mOut;
+		// set when the connection goes to the status stream after the response
+		private StatusStream.Subscriber mSubscriber;
+		private boolean mInFlight;
+		private boolean mCloseAfterWrite;
+		private int mServed;
+		private long mLastActive = System.currentTimeMillis();
+
+		Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+			mChannel = channel;
+			mKey = key;
+			mLoop = loop;
+		}
+
+		boolean isIdle() {
+			return !mInFlight && mOut == null;
+		}
+
+		void onReadable() throws IOException {
+			int n = mChannel.read(mParser.buffer());
+			if (n < 0) {
+				close();
+				return;
+			}
+			mLastActive = System.currentTimeMillis();
+			processBuffered();
+		}
+
+		/**
+		 * Dispatch the next buffered request if it is complete, otherwise
+		 * wait for more data
+		 */
+		private void processBuffered() {
+			int state = mParser.parse();
+			if (state == HttpRequestParser.INVALID) {
+				mKey.interestOps(0);
+				respond(HttpRequest.errorResponse(mParser.getErrorStatus()), false);
+			} else if (state == HttpRequestParser.COMPLETE && mParser.hasStreamedBody()) {
+				mInFlight = true;
+				handOver();
+			} else if (state == HttpRequestParser.COMPLETE) {
+				// one request at a time: stop reading while it is handled,
+				// which also keeps the parser's buffer still for the handler
+				mKey.interestOps(0);
+				mInFlight = true;
+				dispatch();
+			} else {
+				mKey.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		/**
+		 * Leave the connection to a worker that serves its request with
+		 * blocking I/O and then closes it
+		 */
+		private void handOver() {
+			mKey.cancel();
+			mLoop.execute(new Runnable() {
+				public void run() {
+					Socket socket = mChannel.socket();
+					try {
+						if (mChannel.isRegistered()) {
+							// a selection deregisters the cancelled key
+							mLoop.mSelector.selectNow();
+						}
+						mChannel.configureBlocking(true);
+					} catch (IOException e) {
+						closeQuietly(mChannel);
+						return;
+					}
+					HttpRequest request = new HttpRequest(socket, mEmailAgent, mParser);
+					request.closeAfterFirst();
+					AdmissionControl.enqueued();
+					try {
+						mWorkers.execute(HttpRequest.routeOf(mParser), request);
+					} catch (RejectedExecutionException e) {
+						AdmissionControl.rejected();
+						AdmissionControl.refuse(socket);
+					}
+				}
+			});
+		}
+
+		private void dispatch() {
+			final HttpRequestParser request = mParser;
+			final boolean allowKeepAlive = mServed + 1 < HttpRequest.MAX_REQUESTS_PER_CONNECTION;
+			if (HttpRequest.isCheap(request)) {
+				HttpRequest handler = new HttpRequest(null, mEmailAgent);
+				respond(handler, handle(handler, request, allowKeepAlive));
+				return;
+			}
+			final long queuedAt = System.nanoTime();
+			AdmissionControl.enqueued();
+			try {
+				mWorkers.execute(HttpRequest.routeOf(request), new Runnable() {
+					public void run() {
+						final HttpRequest handler = new HttpRequest(null, mEmailAgent);
+						final byte[] response = AdmissionControl.dequeued(queuedAt)
+							? handle(handler, request, allowKeepAlive) : AdmissionControl.overloaded();
+						mLoop.execute(new Runnable() {
+							public void run() {
+								respond(handler, response);
+							}
+						});
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				AdmissionControl.rejected();
+				respond(AdmissionControl.overloaded(), false);
+			}
+		}
+
+		/**
+		 * Return the handler's response, or null if it failed
+		 */
+		private byte[] handle(HttpRequest handler, HttpRequestParser request, boolean allowKeepAlive) {
+			try {
+				return handler.process(request, allowKeepAlive);
+			} catch (Exception e) {
+				Log.error("Unable to handle a request", e);
+				return null;
+			}
+		}
+
+		private void respond(HttpRequest handler, byte[] response) {
+			if (response == null) {
+				// whatever the handler left behind, the connection is not reusable
+				respond(INTERNAL_ERROR, false);
+				return;
+			}
+			mSubscriber = handler.getStreamSubscriber();
+			respond(response, handler.isKeepAlive());
+		}
+
+		private void respond(byte[] response, boolean keepAlive) {
+			mOut = ByteBuffer.wrap(response);
+			mCloseAfterWrite = !keepAlive;
+			try {
+				onWritable();
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		void onWritable() throws IOException {
+			if (mOut == null) {
+				return;
+			}
+			mChannel.write(mOut);
+			if (mOut.hasRemaining()) {
+				mKey.interestOps(SelectionKey.OP_WRITE);
+				return;
+			}
+			mOut = null;
+			if (mSubscriber != null) {
+				// the status stream writes from now on
+				mKey.cancel();
+				mSubscriber.attach(mChannel);
+				mSubscriber = null;
+				return;
+			}
+			if (mCloseAfterWrite) {
+				close();
+				return;
+			}
+			mInFlight = false;
+			mServed++;
+			mLastActive = System.currentTimeMillis();
+			mParser.next();
+			processBuffered();
+		}
+
+		void close() {
+			if (mSubscriber != null) {
+				mSubscriber.cancel();
+				mSubscriber = null;
+			}
+			mKey.cancel();
+			closeQuietly(mChannel);
+		}
+	}
+}
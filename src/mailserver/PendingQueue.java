@@ -0,0 +1,137 @@
+package mailserver;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The emails waiting to be sent, indexed by id and ordered by send time.
+ *
+ * Both indexes are lock-free: adding, finding and removing an email by id
+ * never blocks, and readers iterate the send-time order while deliveries
+ * add and remove entries. Iteration never throws
+ * ConcurrentModificationException; it reflects the queue at some point
+ * during the walk, with each email either fully present or absent.
+ *
+ * The send-time order is keyed on (send time, id), so an email's send time
+ * must only change while it is out of the queue.
+ */
+public class PendingQueue implements Iterable<Email> {
+    private final ConcurrentHashMap<Long, Email> mById = new ConcurrentHashMap<Long, Email>();
+    private final ConcurrentSkipListMap<SendKey, Email> mBySendTime = new ConcurrentSkipListMap<SendKey, Email>();
+
+    /**
+     * Add an email; returns false if an email with the same id is queued
+     */
+    public boolean add(Email email) {
+        if (mById.putIfAbsent(email.id, email) != null) {
+            return false;
+        }
+        SendKey key = new SendKey(email.sendTimeMillis, email.id);
+        mBySendTime.put(key, email);
+        if (mById.get(email.id) != email) {
+            // removed while we were adding it
+            mBySendTime.remove(key, email);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the email with the given id, returning it or null if not queued
+     */
+    public Email remove(long id) {
+        Email email = mById.remove(id);
+        if (email != null) {
+            mBySendTime.remove(new SendKey(email.sendTimeMillis, email.id), email);
+        }
+        return email;
+    }
+
+    /**
+     * Return the queued email with the given id, or null
+     */
+    public Email get(long id) {
+        return mById.get(id);
+    }
+
+    public int size() {
+        return mById.size();
+    }
+
+    public boolean isEmpty() {
+        return mById.isEmpty();
+    }
+
+    /**
+     * Iterate the emails in send-time order
+     */
+    public Iterator<Email> iterator() {
+        return mBySendTime.values().iterator();
+    }
+
+    /**
+     * Return the emails that come after the given one in send-time order
+     * (all emails if it is null), without copying
+     */
+    public Collection<Email> after(Email from) {
+        if (from == null) {
+            return mBySendTime.values();
+        }
+        return from(from.sendTimeMillis, from.id, false);
+    }
+
+    /**
+     * Return the emails at or after the given send time and id in send-time
+     * order, without copying
+     */
+    public Collection<Email> from(long sendTimeMillis, long id, boolean inclusive) {
+        return mBySendTime.tailMap(new SendKey(sendTimeMillis, id), inclusive).values();
+    }
+
+    /**
+     * Return the earliest email to be sent, or null if the queue is empty
+     */
+    public Email first() {
+        Map.Entry<SendKey, Email> first = mBySendTime.firstEntry();
+        return first != null ? first.getValue() : null;
+    }
+
+    /**
+     * Return a copy of the queue in send-time order
+     */
+    public List<Email> snapshot() {
+        return new ArrayList<Email>(mBySendTime.values());
+    }
+
+    /**
+     * A position in the send-time order: send time, then id
+     */
+    private static final class SendKey implements Comparable<SendKey> {
+        private final long mSendTimeMillis;
+        private final long mId;
+
+        SendKey(long sendTimeMillis, long id) {
+            mSendTimeMillis = sendTimeMillis;
+            mId = id;
+        }
+
+        public int compareTo(SendKey other) {
+            if (mSendTimeMillis != other.mSendTimeMillis) {
+                return mSendTimeMillis < other.mSendTimeMillis ? -1 : 1;
+            }
+            return mId < other.mId ? -1 : (mId == other.mId ? 0 : 1);
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof SendKey && compareTo((SendKey) other) == 0;
+        }
+
+        public int hashCode() {
+            return (int) (mSendTimeMillis ^ (mSendTimeMillis >>> 32)) * 31 + (int) (mId ^ (mId >>> 32));
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Quoted-printable encoding of message bodies (RFC 2045) and of header
+ * text as encoded-words (RFC 2047), in ISO-8859-15.
+ *
+ * The encoder streams: characters are converted a block at a time and the
+ * result goes through one reusable buffer straight into the output stream,
+ * so encoding takes linear time and allocates nothing per byte. An instance
+ * keeps that buffer between calls and is not thread-safe; each SMTP session
+ * owns one.
+ *
+ * Body lines end in CRLF whatever line breaks the text had, are soft-broken
+ * to stay within 76 characters, and never start with a '.', so the body can
+ * be sent as SMTP data without dot-stuffing.
+ */
+public class QuotedPrintable {
+    public static final String CHARSET_NAME = "ISO-8859-15";
+    private static final Charset CHARSET = Charset.forName(CHARSET_NAME);
+    private static final int MAX_LINE = 76;
+    // an encoded-word may be at most 75 characters, prefix and suffix included
+    private static final int MAX_WORD = 75;
+    private static final String WORD_PREFIX = "=?" + CHARSET_NAME + "?Q?";
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7',
+                                        '8', '9', 'A', 'B', 'C', 'D', 'E', 'F' };
+
+    private final CharsetEncoder mEncoder = CHARSET.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final ByteBuffer mBytes = ByteBuffer.allocate(4096);
+    private final CharBuffer mChars = CharBuffer.allocate(2048);
+    private final byte[] mBuf = new byte[8192];
+    private int mCount;
+    private OutputStream mOut;
+
+    // body state
+    private int mLineLength;
+    private int mPendingSpace = -1;
+    private boolean mAfterCR;
+
+    // encoded-word state
+    private int mWordLength;
+    private boolean mWordOpen;
+
+    /**
+     * Write the text as a quoted-printable body
+     */
+    public void encodeBody(CharSequence text, OutputStream out) throws IOException {
+        startBody(out);
+        try {
+            encodeBodyChars(CharBuffer.wrap(text), true);
+            endBody();
+        } finally {
+            mOut = null;
+        }
+    }
+
+    /**
+     * Write the text read from the reader as a quoted-printable body, a
+     * block at a time, so the whole text is never held at once
+     */
+    public void encodeBody(Reader text, OutputStream out) throws IOException {
+        startBody(out);
+        try {
+            CharBuffer chars = mChars;
+            chars.clear();
+            boolean end = false;
+            while (!end) {
+                end = text.read(chars) < 0;
+                chars.flip();
+                encodeBodyChars(chars, end);
+                // keeps a surrogate whose pair is still to be read
+                chars.compact();
+            }
+            endBody();
+        } finally {
+            mOut = null;
+        }
+    }
+
+    private void startBody(OutputStream out) throws IOException {
+        flush(out);
+        mOut = out;
+        mLineLength = 0;
+        mPendingSpace = -1;
+        mAfterCR = false;
+        mEncoder.reset();
+    }
+
+    private void encodeBodyChars(CharBuffer chars, boolean end) throws IOException {
+        CoderResult result;
+        do {
+            result = mEncoder.encode(chars, mBytes, end);
+            if (!result.isUnderflow()) {
+                // only an overflow can end up here with the actions set above
+                drainBody();
+            }
+        } while (!result.isUnderflow());
+    }
+
+    private void endBody() throws IOException {
+        mEncoder.flush(mBytes);
+        drainBody();
+        if (mPendingSpace >= 0) {
+            // whitespace at the very end must be encoded as well
+            bodyToken(mPendingSpace, true);
+            mPendingSpace = -1;
+        }
+        flushBuffer();
+    }
+
+    private void drainBody() throws IOException {
+        mBytes.flip();
+        while (mBytes.hasRemaining()) {
+            bodyByte(mBytes.get() & 0xff);
+        }
+        mBytes.clear();
+    }
+
+    private void bodyByte(int b) throws IOException {
+        if (b == '\r' || b == '\n') {
+            boolean lfAfterCR = b == '\n' && mAfterCR;
+            mAfterCR = b == '\r';
+            if (lfAfterCR) {
+                return;
+            }
+            if (mPendingSpace >= 0) {
+                // whitespace before a line break would be lost in transit
+                bodyToken(mPendingSpace, true);
+                mPendingSpace = -1;
+            }
+            put('\r');
+            put('\n');
+            mLineLength = 0;
+            return;
+        }
+        mAfterCR = false;
+        if (mPendingSpace >= 0) {
+            bodyToken(mPendingSpace, false);
+            mPendingSpace = -1;
+        }
+        if (b == ' ' || b == '\t') {
+            // whether it can stay literal depends on what follows
+            mPendingSpace = b;
+            return;
+        }
+        boolean literal = b > ' ' && b < 127 && b != '=' && !(b == '.' && mLineLength == 0);
+        bodyToken(b, !literal);
+    }
+
+    private void bodyToken(int b, boolean encode) throws IOException {
+        int length = encode ? 3 : 1;
+        // leave room for the '=' of a soft line break
+        if (mLineLength + length > MAX_LINE - 1) {
+            put('=');
+            put('\r');
+            put('\n');
+            mLineLength = 0;
+            if (b == '.') {
+                encode = true;
+                length = 3;
+            }
+        }
+        if (encode) {
+            putHex(b);
+        } else {
+            put(b);
+        }
+        mLineLength += length;
+    }
+
+    /**
+     * Write a header value as it must appear after "Name: ", which takes
+     * the given number of characters on the first line. Plain ASCII text
+     * is written as is; anything else becomes encoded-words, folded onto
+     * further lines as needed.
+     */
+    public void encodeHeader(String text, int used, OutputStream out) throws IOException {
+        if (isPlain(text, MAX_LINE - used)) {
+            writeAscii(out, text);
+            flush(out);
+            return;
+        }
+        encodeWords(text, used, out);
+    }
+
+    /**
+     * Write the text as RFC 2047 "Q" encoded-words
+     */
+    public void encodeWords(String text, int used, OutputStream out) throws IOException {
+        flush(out);
+        mOut = out;
+        mWordLength = used;
+        mWordOpen = false;
+        try {
+            CharBuffer chars = CharBuffer.wrap(text);
+            mEncoder.reset();
+            CoderResult result;
+            do {
+                result = mEncoder.encode(chars, mBytes, true);
+                if (!result.isUnderflow()) {
+                    drainWords();
+                }
+            } while (!result.isUnderflow());
+            mEncoder.flush(mBytes);
+            drainWords();
+            if (!mWordOpen) {
+                // an empty text still needs a word to be a valid header
+                openWord();
+            }
+            put('?');
+            put('=');
+            flushBuffer();
+        } finally {
+            mOut = null;
+        }
+    }
+
+    private void drainWords() throws IOException {
+        mBytes.flip();
+        while (mBytes.hasRemaining()) {
+            wordByte(mBytes.get() & 0xff);
+        }
+        mBytes.clear();
+    }
+
+    private void wordByte(int b) throws IOException {
+        boolean literal = (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+            || b == '!' || b == '*' || b == '+' || b == '-' || b == '/' || b == ' ';
+        int length = literal ? 1 : 3;
+        if (!mWordOpen) {
+            openWord();
+        } else if (mWordLength + length + 2 > MAX_WORD) {
+            // close this word and continue on a folded line
+            put('?');
+            put('=');
+            put('\r');
+            put('\n');
+            put(' ');
+            mWordLength = 1;
+            openWord();
+        }
+        if (!literal) {
+            putHex(b);
+        } else {
+            put(b == ' ' ? '_' : b);
+        }
+        mWordLength += length;
+    }
+
+    private void openWord() throws IOException {
+        for (int i = 0; i < WORD_PREFIX.length(); i++) {
+            put(WORD_PREFIX.charAt(i));
+        }
+        mWordLength += WORD_PREFIX.length();
+        mWordOpen = true;
+    }
+
+    /**
+     * Return whether the header text can be sent as is
+     */
+    static boolean isPlain(String text, int room) {
+        if (text.length() > room) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < ' ' || c > '~') {
+                return false;
+            }
+        }
+        return text.indexOf("=?") < 0;
+    }
+
+    /**
+     * Return the text as a quoted-printable body
+     */
+    public static String encodeBody(String text) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length() + text.length() / 8 + 16);
+        try {
+            new QuotedPrintable().encodeBody(text, out);
+            return out.toString(CHARSET_NAME);
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Return the text of the encoded-words for the given header text,
+     * without the "=?charset?Q?" and "?=" around them
+     */
+    public static String encodeWordText(String text) {
+        StringBuilder sb = new StringBuilder(text.length() * 3);
+        byte[] bytes = text.getBytes(CHARSET);
+        for (byte value : bytes) {
+            int b = value & 0xff;
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '!' || b == '*' || b == '+' || b == '-' || b == '/') {
+                sb.append((char) b);
+            } else if (b == ' ') {
+                sb.append('_');
+            } else {
+                sb.append('=').append((char) HEX[b >> 4]).append((char) HEX[b & 15]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void putHex(int b) throws IOException {
+        put('=');
+        put(HEX[b >> 4]);
+        put(HEX[b & 15]);
+    }
+
+    private void put(int b) throws IOException {
+        if (mCount == mBuf.length) {
+            flushBuffer();
+        }
+        mBuf[mCount++] = (byte) b;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (mCount > 0) {
+            mOut.write(mBuf, 0, mCount);
+            mCount = 0;
+        }
+    }
+
+    /**
+     * Write ASCII text through the buffer to the given stream
+     */
+    void writeAscii(OutputStream out, String text) throws IOException {
+        mOut = out;
+        for (int i = 0; i < text.length(); i++) {
+            put(text.charAt(i));
+        }
+    }
+
+    /**
+     * Write a line of ASCII, ending it with CRLF
+     */
+    void writeLine(OutputStream out, String line) throws IOException {
+        writeAscii(out, line);
+        put('\r');
+        put('\n');
+    }
+
+    /**
+     * Pass anything still in the buffer on to the stream
+     */
+    void flush(OutputStream out) throws IOException {
+        mOut = out;
+        flushBuffer();
+        mOut = null;
+    }
+}
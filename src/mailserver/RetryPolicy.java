@@ -0,0 +1,70 @@
+package mailserver;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether a failed delivery is tried again, and when.
+ *
+ * Replies in the 4xx range (including greylisting), dropped connections and
+ * network errors are temporary; 5xx replies are permanent. Temporary
+ * failures are retried with exponential backoff, jittered so emails that
+ * failed together do not all come back at the same moment, until the
+ * maximum number of attempts is reached.
+ */
+public class RetryPolicy {
+    private final long mInitialDelayMillis;
+    private final long mMaxDelayMillis;
+    private final int mMaxAttempts;
+
+    public RetryPolicy() {
+        this(Config.getLong("mailserver.retry.initialDelayMillis", 60000),
+            Config.getLong("mailserver.retry.maxDelayMillis", 3600000),
+            Config.getInt("mailserver.retry.maxAttempts", 10));
+    }
+
+    public RetryPolicy(long initialDelayMillis, long maxDelayMillis, int maxAttempts) {
+        mInitialDelayMillis = Math.max(1, initialDelayMillis);
+        mMaxDelayMillis = Math.max(mInitialDelayMillis, maxDelayMillis);
+        mMaxAttempts = maxAttempts;
+    }
+
+    /**
+     * Return whether the failure may go away by itself
+     */
+    public static boolean isTransient(IOException e) {
+        if (e instanceof SmtpException) {
+            return isTransient(((SmtpException) e).getReply());
+        }
+        return true;
+    }
+
+    /**
+     * Return whether a SMTP reply is a temporary failure; no reply at all
+     * means the connection was lost
+     */
+    public static boolean isTransient(String reply) {
+        return reply == null || reply.startsWith("4");
+    }
+
+    /**
+     * Return whether an email that failed the given number of times may be
+     * tried again
+     */
+    public boolean canRetry(int attempts) {
+        return attempts < mMaxAttempts;
+    }
+
+    /**
+     * Return how long to wait after the given number of failed attempts:
+     * between half and all of the exponentially growing delay
+     */
+    public long nextDelay(int attempts) {
+        long delay = mInitialDelayMillis;
+        for (int i = 1; i < attempts && delay < mMaxDelayMillis; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxDelayMillis);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
@@ -0,0 +1,150 @@
+package mailserver;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps SMTP sessions open per mail server so the next message to the same
+ * host skips the connect, greeting and HELO. A reused session is reset
+ * with RSET first; if that fails, a new one is opened. Sessions are closed
+ * after a number of messages, and when they have been idle too long.
+ */
+public class SmtpConnectionPool {
+    private final long mIdleTimeoutMillis;
+    private final int mMaxMessagesPerSession;
+    private final int mMaxIdlePerHost;
+    private final String mHeloDomain;
+
+    private final ConcurrentHashMap<String, ConcurrentLinkedDeque<SmtpSession>> mIdle =
+        new ConcurrentHashMap<String, ConcurrentLinkedDeque<SmtpSession>>();
+    private final ScheduledExecutorService mReaper =
+        Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("smtp-reaper", true));
+
+    public SmtpConnectionPool(String heloDomain) {
+        this(heloDomain,
+            Config.getLong("mailserver.smtp.pool.idleTimeoutMillis", 30000),
+            Config.getInt("mailserver.smtp.pool.maxMessagesPerSession", 100),
+            // as many as may deliver to one server at once
+            Config.getInt("mailserver.smtp.pool.maxIdlePerHost", Config.getInt("mailserver.smtp.maxSessionsPerHost", 8)));
+    }
+
+    public SmtpConnectionPool(String heloDomain, long idleTimeoutMillis, int maxMessagesPerSession,
+            int maxIdlePerHost) {
+        mHeloDomain = heloDomain;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mMaxMessagesPerSession = Math.max(1, maxMessagesPerSession);
+        mMaxIdlePerHost = maxIdlePerHost;
+        long period = Math.max(100, Math.min(1000, idleTimeoutMillis / 2));
+        mReaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                closeIdle();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return an open session to the host, reusing an idle one if possible
+     */
+    public SmtpSession borrow(String host) throws IOException {
+        ConcurrentLinkedDeque<SmtpSession> idle = mIdle.get(key(host));
+        SmtpSession session;
+        while (idle != null && (session = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - session.getLastUsed() >= mIdleTimeoutMillis) {
+                session.quit();
+                continue;
+            }
+            try {
+                session.reset();
+                return session;
+            } catch (IOException e) {
+                // the server dropped it meanwhile
+                session.close();
+            }
+        }
+        return SmtpSession.open(host, mHeloDomain);
+    }
+
+    /**
+     * Give a session back after use; a session that failed is closed
+     */
+    public void release(SmtpSession session, boolean reusable) {
+        if (!reusable || session.isClosed()) {
+            session.close();
+            return;
+        }
+        if (session.getMessagesSent() >= mMaxMessagesPerSession || mMaxIdlePerHost <= 0) {
+            session.quit();
+            return;
+        }
+        ConcurrentLinkedDeque<SmtpSession> idle = mIdle.get(key(session.getHost()));
+        if (idle == null) {
+            ConcurrentLinkedDeque<SmtpSession> created = new ConcurrentLinkedDeque<SmtpSession>();
+            idle = mIdle.putIfAbsent(key(session.getHost()), created);
+            if (idle == null) {
+                idle = created;
+            }
+        }
+        if (idle.size() >= mMaxIdlePerHost) {
+            session.quit();
+            return;
+        }
+        // most recently used first, so the oldest ones age out
+        idle.offerFirst(session);
+    }
+
+    public int getMaxMessagesPerSession() {
+        return mMaxMessagesPerSession;
+    }
+
+    /**
+     * Return the number of idle sessions
+     */
+    public int idleCount() {
+        int count = 0;
+        for (ConcurrentLinkedDeque<SmtpSession> idle : mIdle.values()) {
+            count += idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * Close the sessions that have been idle too long
+     */
+    void closeIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, ConcurrentLinkedDeque<SmtpSession>>> hosts = mIdle.entrySet().iterator();
+        while (hosts.hasNext()) {
+            ConcurrentLinkedDeque<SmtpSession> idle = hosts.next().getValue();
+            Iterator<SmtpSession> it = idle.descendingIterator();
+            while (it.hasNext()) {
+                SmtpSession session = it.next();
+                if (now - session.getLastUsed() >= mIdleTimeoutMillis && idle.remove(session)) {
+                    session.quit();
+                }
+            }
+        }
+    }
+
+    /**
+     * Close every idle session
+     */
+    public void shutdown() {
+        mReaper.shutdownNow();
+        for (ConcurrentLinkedDeque<SmtpSession> idle : mIdle.values()) {
+            SmtpSession session;
+            while ((session = idle.pollFirst()) != null) {
+                session.quit();
+            }
+        }
+    }
+
+    private static String key(String host) {
+        return host.toLowerCase();
+    }
+}
@@ -0,0 +1,38 @@
+package mailserver;
+
+import java.io.IOException;
+
+/**
+ * An unexpected reply from a SMTP server
+ */
+public class SmtpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final String mReply;
+    private final boolean mSessionUsable;
+
+    public SmtpException(String reply) {
+        this(reply, false);
+    }
+
+    public SmtpException(String reply, boolean sessionUsable) {
+        super(reply != null ? reply : "Connection closed by the server");
+        mReply = reply;
+        mSessionUsable = sessionUsable;
+    }
+
+    /**
+     * Return the reply line the server sent, or null if it closed the
+     * connection
+     */
+    public String getReply() {
+        return mReply;
+    }
+
+    /**
+     * Return whether the session can still be used for another message
+     */
+    public boolean isSessionUsable() {
+        return mSessionUsable;
+    }
+}
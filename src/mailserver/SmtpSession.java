@@ -0,0 +1,394 @@
+package mailserver;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A connection to a SMTP server, able to send several messages one after
+ * another.
+ *
+ * The session greets with EHLO and remembers the extensions the server
+ * offers. With PIPELINING, MAIL, RCPT and DATA go out in one write and
+ * their replies are read afterwards (RFC 2920), so a message costs two
+ * round trips instead of three plus one per recipient. With SIZE, the
+ * message size is declared up front and a message the server would refuse
+ * is failed before anything is sent. Servers that do not know EHLO get
+ * HELO and the lock-step dialog.
+ */
+public class SmtpSession {
+    private static final int PORT = Config.getInt("mailserver.smtp.port", 25);
+    private static final int TIMEOUT = Config.getInt("mailserver.smtp.timeoutMillis", 60000);
+    private static final boolean USE_EHLO = Config.getBoolean("mailserver.smtp.ehlo", true);
+    private static final boolean USE_PIPELINING = Config.getBoolean("mailserver.smtp.pipelining", true);
+
+    private static final LatencyHistogram CONNECT_TIME = phaseHistogram("connect");
+    private static final LatencyHistogram GREETING_TIME = phaseHistogram("greeting");
+    private static final LatencyHistogram HELO_TIME = phaseHistogram("helo");
+    private static final LatencyHistogram MAIL_TIME = phaseHistogram("mail");
+    private static final LatencyHistogram RCPT_TIME = phaseHistogram("rcpt");
+    private static final LatencyHistogram DATA_TIME = phaseHistogram("data");
+
+    private final String mHost;
+    private final Socket mSocket;
+    private final BufferedReader mIn;
+    private final OutputStream mOut;
+    private final QuotedPrintable mEncoder = new QuotedPrintable();
+    // extension keyword (upper case) to its parameters, empty after HELO
+    private final Map<String, String> mExtensions = new HashMap<String, String>();
+    private int mMessagesSent;
+    private long mLastUsed;
+    private boolean mClosed;
+
+    /**
+     * The content of a message, headers and body
+     */
+    public interface Content {
+        /**
+         * Write the message as SMTP data, lines ending in CRLF and none
+         * starting with a '.'
+         */
+        void writeTo(OutputStream out, QuotedPrintable encoder) throws IOException;
+
+        /**
+         * Return the number of bytes writeTo writes
+         */
+        long size(QuotedPrintable encoder) throws IOException;
+    }
+
+    private SmtpSession(String host, Socket socket) throws IOException {
+        mHost = host;
+        mSocket = socket;
+        mIn = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        mOut = new BufferedOutputStream(socket.getOutputStream());
+        mLastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Connect to the mail server, read its greeting and say hello
+     */
+    public static SmtpSession open(String host, String heloDomain) throws IOException {
+        return open(host, PORT, heloDomain);
+    }
+
+    static SmtpSession open(String host, int port, String heloDomain) throws IOException {
+        // Establish a TCP connection with the mail server.
+        Socket socket = new Socket();
+        try {
+            long start = System.nanoTime();
+            // MX targets are absolute names; not every resolver takes the root dot
+            String address = host.endsWith(".") ? host.substring(0, host.length() - 1) : host;
+            socket.connect(new InetSocketAddress(address, port), TIMEOUT);
+            CONNECT_TIME.recordSince(start);
+            socket.setSoTimeout(TIMEOUT);
+            SmtpSession session = new SmtpSession(host, socket);
+            // Read greeting from the server. 
+            start = System.nanoTime();
+            session.expect(session.readReply(), "220");
+            GREETING_TIME.recordSince(start);
+            start = System.nanoTime();
+            session.hello(heloDomain);
+            HELO_TIME.recordSince(start);
+            return session;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Say EHLO and note the extensions, or fall back to HELO
+     */
+    private void hello(String heloDomain) throws IOException {
+        if (USE_EHLO) {
+            List<String> lines = commandLines("EHLO " + heloDomain);
+            if (lines.get(lines.size() - 1).startsWith("250")) {
+                // the first line is the greeting, the others one extension each
+                for (int i = 1; i < lines.size(); i++) {
+                    String line = lines.get(i);
+                    String ext = line.length() > 4 ? line.substring(4).trim() : "";
+                    int space = ext.indexOf(' ');
+                    String keyword = space < 0 ? ext : ext.substring(0, space);
+                    String params = space < 0 ? "" : ext.substring(space + 1).trim();
+                    mExtensions.put(keyword.toUpperCase(Locale.ROOT), params);
+                }
+                return;
+            }
+            if (lines.get(lines.size() - 1).startsWith("421")) {
+                throw new SmtpException(lines.get(lines.size() - 1));
+            }
+        }
+        // Send HELO command and get server response. 
+        expect(command("HELO " + heloDomain), "250");
+    }
+
+    /**
+     * Return whether the server offers the given extension
+     */
+    public boolean supports(String extension) {
+        return mExtensions.containsKey(extension.toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * Return the largest message the server accepts, or 0 if it set no limit
+     */
+    public long getMaxSize() {
+        String size = mExtensions.get("SIZE");
+        if (size == null || size.length() == 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(size);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getMessagesSent() {
+        return mMessagesSent;
+    }
+
+    public long getLastUsed() {
+        return mLastUsed;
+    }
+
+    /**
+     * Send one message to one or more recipients. Returns, per recipient,
+     * null if it was accepted or the reply rejecting it. Throws if the
+     * whole transaction failed.
+     */
+    public List<String> send(String from, List<String> recipients, Content body) throws IOException {
+        mLastUsed = System.currentTimeMillis();
+        String mailFrom = "MAIL FROM:<" + from + ">";
+        if (supports("SIZE")) {
+            long size = body.size(mEncoder);
+            long maxSize = getMaxSize();
+            if (maxSize > 0 && size > maxSize) {
+                // refused before anything is sent, so the session stays usable
+                throw new SmtpException("552 Message size " + size
+                    + " exceeds the server limit of " + maxSize, true);
+            }
+            mailFrom += " SIZE=" + size;
+        }
+        List<String> rejected = USE_PIPELINING && supports("PIPELINING")
+            ? sendPipelined(mailFrom, recipients, body)
+            : sendLockStep(mailFrom, recipients, body);
+        mLastUsed = System.currentTimeMillis();
+        return rejected;
+    }
+
+    /**
+     * Send the envelope one command at a time, waiting for each reply
+     */
+    private List<String> sendLockStep(String mailFrom, List<String> recipients, Content body)
+            throws IOException {
+        // Send MAIL FROM command.
+        long start = System.nanoTime();
+        expect(command(mailFrom), "250");
+        MAIL_TIME.recordSince(start);
+
+        // Send RCPT TO command for every recipient.
+        start = System.nanoTime();
+        List<String> rejected = new ArrayList<String>(recipients.size());
+        int accepted = 0;
+        for (String recipient : recipients) {
+            String reply = command("RCPT TO:<" + recipient + ">");
+            if (isRecipientAccepted(reply)) {
+                rejected.add(null);
+                accepted++;
+            } else {
+                rejected.add(reply);
+            }
+        }
+        RCPT_TIME.recordSince(start);
+        if (accepted == 0) {
+            reset();
+            return rejected;
+        }
+
+        // Send DATA command and the message data.
+        start = System.nanoTime();
+        expect(command("DATA"), "354");
+        sendData(body);
+        DATA_TIME.recordSince(start);
+        return rejected;
+    }
+
+    /**
+     * Send MAIL, every RCPT and DATA in one go, then read their replies in
+     * order
+     */
+    private List<String> sendPipelined(String mailFrom, List<String> recipients, Content body)
+            throws IOException {
+        StringBuilder envelope = new StringBuilder(mailFrom).append("\r\n");
+        for (String recipient : recipients) {
+            envelope.append("RCPT TO:<").append(recipient).append(">\r\n");
+        }
+        envelope.append("DATA\r\n");
+        long start = System.nanoTime();
+        mOut.write(envelope.toString().getBytes("US-ASCII"));
+        mOut.flush();
+
+        // every command gets a reply, so all of them must be read
+        String mailReply = readReply();
+        MAIL_TIME.recordSince(start);
+        start = System.nanoTime();
+        List<String> rejected = new ArrayList<String>(recipients.size());
+        int accepted = 0;
+        for (int i = 0; i < recipients.size(); i++) {
+            String reply = readReply();
+            if (isRecipientAccepted(reply)) {
+                rejected.add(null);
+                accepted++;
+            } else {
+                rejected.add(reply);
+            }
+        }
+        RCPT_TIME.recordSince(start);
+        start = System.nanoTime();
+        String dataReply = readReply();
+
+        if (dataReply.startsWith("354")) {
+            if (!mailReply.startsWith("250") || accepted == 0) {
+                // nothing can be delivered: end the data right away
+                mOut.write(".\r\n".getBytes("US-ASCII"));
+                mOut.flush();
+                readReply();
+                expect(mailReply, "250");
+                return rejected;
+            }
+            sendData(body);
+            DATA_TIME.recordSince(start);
+            return rejected;
+        }
+        expect(mailReply, "250");
+        if (accepted == 0) {
+            // MAIL was accepted, so its transaction is still open
+            reset();
+            return rejected;
+        }
+        throw new SmtpException(dataReply);
+    }
+
+    /**
+     * Send the message data once the server asked for it
+     */
+    private void sendData(Content body) throws IOException {
+        body.writeTo(mOut, mEncoder);
+        mOut.write("\r\n.\r\n".getBytes("US-ASCII"));
+        mOut.flush();
+        expect(readReply(), "250");
+        mMessagesSent++;
+    }
+
+    private static LatencyHistogram phaseHistogram(String phase) {
+        return Metrics.histogram("mailserver_smtp_phase_seconds",
+            "Time spent in each phase of the SMTP dialog; with pipelining, MAIL and RCPT "
+            + "include waiting for the replies of commands sent together", "phase=\"" + phase + "\"");
+    }
+
+    private static boolean isRecipientAccepted(String reply) {
+        return reply.startsWith("250") || reply.startsWith("251");
+    }
+
+    /**
+     * Abort any transaction in progress; also tells whether the connection
+     * is still usable
+     */
+    public void reset() throws IOException {
+        expect(command("RSET"), "250");
+    }
+
+    /**
+     * Say goodbye and close the connection, ignoring errors
+     */
+    public void quit() {
+        if (mClosed) {
+            return;
+        }
+        try {
+            // Send QUIT command.
+            mOut.write("QUIT\r\n".getBytes("US-ASCII"));
+            mOut.flush();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        close();
+    }
+
+    /**
+     * Close the connection without a goodbye
+     */
+    public void close() {
+        mClosed = true;
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            // nothing left to do
+        }
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Send a command line and return the reply
+     */
+    private String command(String line) throws IOException {
+        mOut.write((line + "\r\n").getBytes("US-ASCII"));
+        mOut.flush();
+        return readReply();
+    }
+
+    /**
+     * Send a command line and return every line of the reply
+     */
+    private List<String> commandLines(String line) throws IOException {
+        mOut.write((line + "\r\n").getBytes("US-ASCII"));
+        mOut.flush();
+        List<String> lines = new ArrayList<String>(8);
+        String reply;
+        do {
+            reply = mIn.readLine();
+            if (reply == null) {
+                throw new SmtpException(null);
+            }
+            lines.add(reply);
+        } while (reply.length() > 3 && reply.charAt(3) == '-');
+        return lines;
+    }
+
+    /**
+     * Read a possibly multi-line reply, returning its last line
+     */
+    String readReply() throws IOException {
+        String line = mIn.readLine();
+        while (line != null && line.length() > 3 && line.charAt(3) == '-') {
+            line = mIn.readLine();
+        }
+        if (line == null) {
+            throw new SmtpException(null);
+        }
+        return line;
+    }
+
+    private void expect(String reply, String code) throws SmtpException {
+        if (!reply.startsWith(code)) {
+            throw new SmtpException(reply);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package mailserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the HTML files in memory, with a precompressed gzip variant and an
+ * ETag for each, so serving a page never touches the file system. The gzip
+ * variant is a different representation, so its ETag has a "-gz" suffix. A file
+ * is checked for changes on disk at most once a second and reloaded when
+ * its size or modification time differs.
+ */
+class StaticAssetCache {
+	private static final long CHECK_INTERVAL = 1000;
+
+	private final ConcurrentHashMap<String, Asset> mAssets = new ConcurrentHashMap<String, Asset>();
+
+	/**
+	 * Return the cached file, loading or reloading it if needed; null if it
+	 * cannot be read
+	 */
+	public Asset get(String fileName) {
+		Asset asset = mAssets.get(fileName);
+		long now = System.currentTimeMillis();
+		if (asset != null && now - asset.mCheckedAt < CHECK_INTERVAL) {
+			return asset;
+		}
+		File file = new File(fileName);
+		if (asset != null && file.lastModified() == asset.mLastModified
+				&& file.length() == asset.mContent.length) {
+			asset.mCheckedAt = now;
+			return asset;
+		}
+		try {
+			Asset loaded = load(file);
+			mAssets.put(fileName, loaded);
+			return loaded;
+		} catch (IOException e) {
+			Log.error("Unable to load " + fileName, e);
+			mAssets.remove(fileName);
+			return null;
+		}
+	}
+
+	private static Asset load(File file) throws IOException {
+		long lastModified = file.lastModified();
+		byte[] content = Files.readAllBytes(file.toPath());
+		Log.print("Loaded " + file.getPath() + " (" + content.length + " bytes)");
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream(content.length / 2 + 64);
+		GZIPOutputStream gzip = new GZIPOutputStream(buf);
+		gzip.write(content);
+		gzip.close();
+		byte[] gzipped = buf.size() < content.length ? buf.toByteArray() : null;
+
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		String etag = "\"" + Long.toHexString(crc.getValue()) + "-"
+						+ Integer.toHexString(content.length) + "\"";
+		return new Asset(content, gzipped, etag, lastModified);
+	}
+
+	/**
+	 * One cached file
+	 */
+	static class Asset {
+		private final byte[] mContent;
+		private final byte[] mGzip;
+		private final String mETag;
+		private final String mGzipETag;
+		private final String mLastModifiedHeader;
+		private final long mLastModified;
+		private volatile long mCheckedAt;
+
+		Asset(byte[] content, byte[] gzip, String etag, long lastModified) {
+			mContent = content;
+			mGzip = gzip;
+			mETag = etag;
+			mGzipETag = etag.substring(0, etag.length() - 1) + "-gz\"";
+			mLastModified = lastModified;
+			mCheckedAt = System.currentTimeMillis();
+			SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+			format.setTimeZone(TimeZone.getTimeZone("GMT"));
+			mLastModifiedHeader = format.format(new Date(lastModified));
+		}
+
+		public byte[] getContent() {
+			return mContent;
+		}
+
+		/**
+		 * Return the gzip variant, or null if compressing does not pay off
+		 */
+		public byte[] getGzip() {
+			return mGzip;
+		}
+
+		/**
+		 * Return the ETag of the gzip variant or of the plain content
+		 */
+		public String getETag(boolean gzip) {
+			return gzip ? mGzipETag : mETag;
+		}
+
+		public String getLastModified() {
+			return mLastModifiedHeader;
+		}
+
+		/**
+		 * Return whether the client's conditional headers match this version,
+		 * in the gzip variant or the plain content
+		 */
+		public boolean isNotModified(String ifNoneMatch, String ifModifiedSince, boolean gzip) {
+			if (ifNoneMatch != null) {
+				for (String tag : ifNoneMatch.split(",")) {
+					tag = tag.trim();
+					if (tag.startsWith("W/")) {
+						tag = tag.substring(2);
+					}
+					if (tag.equals("*") || tag.equals(getETag(gzip))) {
+						return true;
+					}
+				}
+				return false;
+			}
+			return ifModifiedSince != null && ifModifiedSince.trim().equals(mLastModifiedHeader);
+		}
+	}
+
+	/**
+	 * Return whether an Accept-Encoding header allows a gzip response
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			String name = parts[0].trim();
+			if (!name.equalsIgnoreCase("gzip") && !name.equals("*")) {
+				continue;
+			}
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) {
+					try {
+						return Double.parseDouble(param.substring(2)) > 0;
+					} catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,177 @@
+package mailserver;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+
+/**
+ * One page of the pending queue, as asked for by the status page and the
+ * status API.
+ *
+ * Pages are addressed by a cursor naming the last email of the previous
+ * page (its send time and id), so fetching a page walks only that page of
+ * the send-time index, however long the queue is. Optional filters narrow
+ * the result to a sender, a recipient or a send-time window.
+ */
+class StatusQuery {
+	static final int DEFAULT_LIMIT = 100;
+	static final int MAX_LIMIT = 1000;
+
+	/**
+	 * Receives the emails of a page
+	 */
+	interface Visitor {
+		void visit(Email email) throws IOException;
+	}
+
+	private String mFrom;
+	private String mTo;
+	private long mSendAfter = Long.MIN_VALUE;
+	private long mSendBefore = Long.MAX_VALUE;
+	private long mCursorTime;
+	private long mCursorId;
+	private boolean mHasCursor;
+	private int mLimit = DEFAULT_LIMIT;
+	private boolean mCountOnly;
+	private String mNextCursor;
+
+	/**
+	 * Build a query from the request parameters: from, to, after and before
+	 * (send time in epoch millis), cursor, limit and count
+	 */
+	static StatusQuery parse(Map<String, String> params) {
+		StatusQuery query = new StatusQuery();
+		query.mFrom = emptyToNull(params.get("from"));
+		query.mTo = emptyToNull(params.get("to"));
+		query.mSendAfter = parseLong(params.get("after"), Long.MIN_VALUE);
+		query.mSendBefore = parseLong(params.get("before"), Long.MAX_VALUE);
+		int limit = (int) parseLong(params.get("limit"), DEFAULT_LIMIT);
+		query.mLimit = Math.max(1, Math.min(MAX_LIMIT, limit));
+		query.mCountOnly = "true".equals(params.get("count")) || "1".equals(params.get("count"));
+		String cursor = emptyToNull(params.get("cursor"));
+		if (cursor != null) {
+			int dot = cursor.indexOf('.');
+			try {
+				query.mCursorTime = Long.parseLong(cursor.substring(0, dot), 36);
+				query.mCursorId = Long.parseLong(cursor.substring(dot + 1), 36);
+				query.mHasCursor = true;
+			} catch (RuntimeException e) {
+				// an invalid cursor starts from the beginning
+			}
+		}
+		return query;
+	}
+
+	boolean isCountOnly() {
+		return mCountOnly;
+	}
+
+	/**
+	 * Return the cursor pointing just after the given email
+	 */
+	static String cursorOf(Email email) {
+		return Long.toString(email.sendTimeMillis, 36) + "." + Long.toString(email.id, 36);
+	}
+
+	/**
+	 * Visit the emails of this page in send-time order, returning the cursor
+	 * of the next page or null if this was the last one
+	 */
+	String page(PendingQueue queue, Visitor visitor) throws IOException {
+		int visited = 0;
+		for (Email email : start(queue)) {
+			if (email.sendTimeMillis > mSendBefore) {
+				return null;
+			}
+			if (!matches(email)) {
+				continue;
+			}
+			if (visited == mLimit) {
+				// there is more: the next page starts after the last one visited
+				return mNextCursor;
+			}
+			visitor.visit(email);
+			mNextCursor = cursorOf(email);
+			visited++;
+		}
+		return null;
+	}
+
+	/**
+	 * Count the matching emails, ignoring cursor and limit
+	 */
+	int count(PendingQueue queue) {
+		if (mFrom == null && mTo == null && mSendAfter == Long.MIN_VALUE
+				&& mSendBefore == Long.MAX_VALUE) {
+			return queue.size();
+		}
+		int count = 0;
+		for (Email email : queue.from(mSendAfter, Long.MIN_VALUE, true)) {
+			if (email.sendTimeMillis > mSendBefore) {
+				break;
+			}
+			if (matches(email)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private Iterable<Email> start(PendingQueue queue) {
+		if (mHasCursor && mCursorTime >= mSendAfter) {
+			return queue.from(mCursorTime, mCursorId, false);
+		}
+		return queue.from(mSendAfter, Long.MIN_VALUE, true);
+	}
+
+	private boolean matches(Email email) {
+		return (mFrom == null || mFrom.equalsIgnoreCase(email.source))
+			&& (mTo == null || mTo.equalsIgnoreCase(email.dest));
+	}
+
+	/**
+	 * Return the query string for the next page, keeping the filters; the
+	 * separator is "&" or "&amp;" inside HTML
+	 */
+	String nextPageQuery(String cursor, String separator) {
+		StringBuilder sb = new StringBuilder("cursor=").append(cursor);
+		sb.append(separator).append("limit=").append(mLimit);
+		if (mFrom != null) {
+			sb.append(separator).append("from=").append(urlEncode(mFrom));
+		}
+		if (mTo != null) {
+			sb.append(separator).append("to=").append(urlEncode(mTo));
+		}
+		if (mSendAfter != Long.MIN_VALUE) {
+			sb.append(separator).append("after=").append(mSendAfter);
+		}
+		if (mSendBefore != Long.MAX_VALUE) {
+			sb.append(separator).append("before=").append(mSendBefore);
+		}
+		return sb.toString();
+	}
+
+	private static String urlEncode(String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return s;
+		}
+	}
+
+	private static String emptyToNull(String s) {
+		return (s == null || s.trim().length() == 0) ? null : s.trim();
+	}
+
+	private static long parseLong(String s, long defaultValue) {
+		if (s == null || s.trim().length() == 0) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(s.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
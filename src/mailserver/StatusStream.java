@@ -0,0 +1,293 @@
+package mailserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Streams the changes of the pending emails to dashboards as server-sent
+ * events (/status/stream).
+ *
+ * Once a subscriber has been sent its snapshot, the connection is handed
+ * over here, and one thread with a selector serves every subscriber. A few
+ * times a second it writes what happened since the last write, without
+ * blocking. Events wait per subscriber keyed by email, so an email that
+ * changed several times meanwhile is sent once, in its latest state. A
+ * subscriber whose socket does not drain keeps collecting that way; once
+ * more emails than the limit are waiting it is dropped, and its browser
+ * reconnects for a fresh snapshot. A subscriber that keeps up is flushed
+ * early instead when a burst fills half the limit.
+ */
+class StatusStream implements EmailAgent.StatusListener, Runnable {
+	private static final int MAX_STREAMS = Config.getInt("mailserver.status.maxStreams", 1000);
+	private static final int MAX_PENDING = Config.getInt("mailserver.status.streamMaxPending", 10000);
+	private static final long INTERVAL = Math.max(10, Config.getLong("mailserver.status.streamIntervalMillis", 250));
+	private static final long HEARTBEAT_INTERVAL = 15000;
+	private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+
+	private static StatusStream sInstance;
+
+	private final Selector mSelector;
+	private final List<Subscriber> mSubscribers = new CopyOnWriteArrayList<Subscriber>();
+	private final Queue<Subscriber> mAttached = new ConcurrentLinkedQueue<Subscriber>();
+	private final LongAdder mDropped = new LongAdder();
+	private final StringBuilder mEvents = new StringBuilder(4096);
+	private final ByteBuffer mDiscard = ByteBuffer.allocate(1024);
+	// set when a subscriber's events pile up faster than the interval
+	private volatile boolean mFlushSoon;
+
+	/**
+	 * Return the stream of the agent's emails, starting it on first use
+	 */
+	static synchronized StatusStream get(EmailAgent agent) throws IOException {
+		if (sInstance == null) {
+			sInstance = new StatusStream(agent);
+		}
+		return sInstance;
+	}
+
+	private StatusStream(EmailAgent agent) throws IOException {
+		mSelector = Selector.open();
+		agent.addStatusListener(this);
+		Metrics.gauge("mailserver_status_streams", "Dashboards following /status/stream", "", new Metrics.Gauge() {
+			public double value() {
+				return mSubscribers.size();
+			}
+		});
+		Metrics.counter("mailserver_status_stream_dropped_total",
+				"Dashboards dropped for falling too far behind", "", new Metrics.Gauge() {
+			public double value() {
+				return mDropped.sum();
+			}
+		});
+		Thread thread = new Thread(this, "status-stream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Start collecting events for a new subscriber, before its snapshot is
+	 * taken so nothing is missed; returns null if there are too many
+	 */
+	Subscriber open() {
+		if (mSubscribers.size() >= MAX_STREAMS) {
+			return null;
+		}
+		Subscriber subscriber = new Subscriber();
+		mSubscribers.add(subscriber);
+		return subscriber;
+	}
+
+	public void onStatus(String event, Email email) {
+		for (Subscriber subscriber : mSubscribers) {
+			subscriber.offer(event, email);
+		}
+	}
+
+	public void run() {
+		long lastFlush = 0;
+		while (true) {
+			try {
+				mSelector.select(INTERVAL);
+				Subscriber subscriber;
+				while ((subscriber = mAttached.poll()) != null) {
+					subscriber.register();
+				}
+				Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					subscriber = (Subscriber) key.attachment();
+					if (key.isValid() && key.isReadable()) {
+						subscriber.onReadable();
+					}
+					if (key.isValid() && key.isWritable()) {
+						subscriber.write();
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now - lastFlush >= INTERVAL || mFlushSoon) {
+					mFlushSoon = false;
+					for (Subscriber s : mSubscribers) {
+						s.flush(now);
+					}
+					lastFlush = now;
+				}
+			} catch (Throwable t) {
+				Log.error("Status stream error", t);
+			}
+		}
+	}
+
+	/**
+	 * An email waiting to be sent to a subscriber, in its latest state
+	 */
+	private static final class Pending {
+		String mEvent;
+		Email mEmail;
+	}
+
+	/**
+	 * One dashboard. Events are collected on the threads changing emails;
+	 * everything else happens on the stream's thread.
+	 */
+	class Subscriber {
+		// guarded by this
+		private Map<Long, Pending> mPending = new LinkedHashMap<Long, Pending>();
+		private Map<Long, Pending> mSpare = new LinkedHashMap<Long, Pending>();
+		private boolean mOverflow;
+
+		private SocketChannel mChannel;
+		private SelectionKey mKey;
+		private ByteBuffer mOut;
+		// whether the last write is still waiting for the socket to drain
+		private volatile boolean mBlocked;
+		private long mLastWrite = System.currentTimeMillis();
+
+		synchronized void offer(String event, Email email) {
+			if (mOverflow) {
+				return;
+			}
+			Pending pending = mPending.get(email.id);
+			if (pending == null) {
+				int size = mPending.size();
+				// a subscriber keeping up is only flushed early, up to twice the limit
+				if (size >= MAX_PENDING && (mBlocked || size >= 2 * MAX_PENDING)) {
+					mOverflow = true;
+					mPending.clear();
+					return;
+				}
+				pending = new Pending();
+				pending.mEmail = email;
+				mPending.put(email.id, pending);
+				if (size + 1 == MAX_PENDING / 2 && !mFlushSoon) {
+					mFlushSoon = true;
+					mSelector.wakeup();
+				}
+			}
+			pending.mEvent = event;
+		}
+
+		/**
+		 * Hand over the connection, once the snapshot has been sent
+		 */
+		void attach(SocketChannel channel) {
+			mChannel = channel;
+			mAttached.add(this);
+			mSelector.wakeup();
+		}
+
+		/**
+		 * Give up on a subscriber that was never attached
+		 */
+		void cancel() {
+			mSubscribers.remove(this);
+		}
+
+		private void register() {
+			try {
+				mChannel.configureBlocking(false);
+				mKey = mChannel.register(mSelector, SelectionKey.OP_READ, this);
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Requests are not expected; this only notices the client leaving
+		 */
+		private void onReadable() {
+			try {
+				mDiscard.clear();
+				if (mChannel.read(mDiscard) < 0) {
+					close();
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		/**
+		 * Write the events collected since the last write, unless the last
+		 * write has not drained yet
+		 */
+		private void flush(long now) {
+			if (mKey == null) {
+				return;
+			}
+			Map<Long, Pending> events;
+			synchronized (this) {
+				if (mOverflow) {
+					mDropped.increment();
+					Log.warn("Dropping a status stream that fell too far behind");
+					close();
+					return;
+				}
+				if (mOut != null || (mPending.isEmpty() && now - mLastWrite < HEARTBEAT_INTERVAL)) {
+					return;
+				}
+				events = mPending;
+				mPending = mSpare;
+				mSpare = events;
+			}
+			if (events.isEmpty()) {
+				mOut = ByteBuffer.wrap(HEARTBEAT);
+			} else {
+				StringBuilder sb = mEvents;
+				sb.setLength(0);
+				for (Pending pending : events.values()) {
+					sb.append("event: ").append(pending.mEvent).append("\ndata: ");
+					HttpRequest.appendEmailJson(sb, pending.mEmail);
+					sb.append("\n\n");
+				}
+				events.clear();
+				mOut = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+				if (sb.length() > 65536) {
+					// do not keep a large buffer around
+					sb.setLength(0);
+					sb.trimToSize();
+				}
+			}
+			write();
+		}
+
+		private void write() {
+			try {
+				mChannel.write(mOut);
+				mLastWrite = System.currentTimeMillis();
+				mBlocked = mOut.hasRemaining();
+				if (mBlocked) {
+					mKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				} else {
+					mOut = null;
+					mKey.interestOps(SelectionKey.OP_READ);
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		private void close() {
+			mSubscribers.remove(this);
+			if (mKey != null) {
+				mKey.cancel();
+			}
+			try {
+				mChannel.close();
+			} catch (IOException e) {
+				// nothing left to do
+			}
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package mailserver;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the worker pools of the server according to mailserver.threads:
+ * "platform" (default) gives fixed pools of ordinary threads, "virtual"
+ * runs every task on its own virtual thread, capped per subsystem so the
+ * blocking work behind them still sees backpressure.
+ *
+ * Virtual threads need Java 21; the server is built for older releases, so
+ * they are looked up by reflection and unbounded platform threads (with the
+ * same caps) are used where they are missing.
+ */
+public class WorkerThreads {
+    private static final boolean VIRTUAL =
+        Config.getString("mailserver.threads", "platform").equalsIgnoreCase("virtual");
+
+    /**
+     * Create a pool of the given number of platform threads, or in virtual
+     * mode an executor running at most maxConcurrent virtual threads
+     */
+    public static ExecutorService newPool(String name, int platformThreads, int maxConcurrent) {
+        return newPool(name, platformThreads, maxConcurrent, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Create a pool as above whose tasks wait in a queue of at most
+     * maxQueued; execute() throws RejectedExecutionException beyond that
+     */
+    public static ExecutorService newPool(String name, int platformThreads, int maxConcurrent, int maxQueued) {
+        if (!VIRTUAL) {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(platformThreads, platformThreads, 0L,
+                TimeUnit.MILLISECONDS, maxQueued <= 0 ? new SynchronousQueue<Runnable>()
+                    : new LinkedBlockingQueue<Runnable>(maxQueued), new NamedThreadFactory(name, true));
+            registerMetrics(name, new Metrics.Gauge() {
+                public double value() {
+                    return pool.getActiveCount();
+                }
+            }, new Metrics.Gauge() {
+                public double value() {
+                    return pool.getQueue().size();
+                }
+            });
+            return pool;
+        }
+        ExecutorService executor = newVirtualThreadExecutor(name);
+        if (executor != null) {
+            Log.print("Using virtual threads for " + name + " (at most " + maxConcurrent + " at once)");
+        } else {
+            Log.print("Virtual threads are not available on this JVM, using platform threads for "
+                + name + " (at most " + maxConcurrent + " at once)");
+            executor = Executors.newCachedThreadPool(new NamedThreadFactory(name, true));
+        }
+        final BoundedExecutor bounded = new BoundedExecutor(executor, maxConcurrent, maxQueued);
+        registerMetrics(name, new Metrics.Gauge() {
+            public double value() {
+                return bounded.activeCount();
+            }
+        }, new Metrics.Gauge() {
+            public double value() {
+                return bounded.queuedCount();
+            }
+        });
+        return bounded;
+    }
+
+    private static void registerMetrics(String name, Metrics.Gauge active, Metrics.Gauge queued) {
+        String labels = "pool=\"" + name + "\"";
+        Metrics.gauge("mailserver_pool_active_tasks", "Tasks running in a worker pool", labels, active);
+        Metrics.gauge("mailserver_pool_queued_tasks", "Tasks waiting for a worker", labels, queued);
+    }
+
+    /**
+     * Return a thread-per-task executor of virtual threads, or null before Java 21
+     */
+    private static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, name + "-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, factory);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}